@@ -2,14 +2,16 @@ package com.pearson.entech.elasticsearch.plugin.approx;
 
 import org.elasticsearch.common.inject.AbstractModule;
 
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DateFacetPool;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalCountingFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalDistinctFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalMultiIntervalFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedDistinctFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedFacet;
 
 /**
- * DI module for registering the facet types with ElasticSearch's serialization mechanisms.
- * 
+ * DI module for registering the facet types with ElasticSearch's serialization mechanisms,
+ * and binding the node's date facet thread pool.
  */
 public class DateFacetsModule extends AbstractModule {
 
@@ -19,6 +21,8 @@ public class DateFacetsModule extends AbstractModule {
         InternalDistinctFacet.registerStreams();
         InternalSlicedFacet.registerStreams();
         InternalSlicedDistinctFacet.registerStreams();
+        InternalMultiIntervalFacet.registerStreams();
+        bind(DateFacetPool.class).asEagerSingleton();
     }
 
 }
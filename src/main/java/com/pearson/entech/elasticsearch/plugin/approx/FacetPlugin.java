@@ -3,12 +3,14 @@ package com.pearson.entech.elasticsearch.plugin.approx;
 import java.util.Collection;
 
 import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.search.facet.FacetModule;
 
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DateFacetParser;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DateFacetPool;
 import com.pearson.entech.elasticsearch.search.facet.approx.termlist.InternalTermListFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.termlist.TermListFacetParser;
 
@@ -41,6 +43,14 @@ public class FacetPlugin extends AbstractPlugin {
         return modules;
     }
 
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        final Collection<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
+        // Started and closed with the node, so the date facet pool's threads don't outlive it
+        services.add(DateFacetPool.class);
+        return services;
+    }
+
     @Override
     public void processModule(final Module module) {
         if(module instanceof FacetModule) {
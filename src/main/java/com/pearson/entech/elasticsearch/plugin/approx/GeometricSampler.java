@@ -0,0 +1,87 @@
+package com.pearson.entech.elasticsearch.plugin.approx;
+
+import java.util.Random;
+
+/**
+ * Samples a stream of items, accepting each one independently with a fixed probability.
+ * Rather than drawing a random number for every item, it draws the length of the gap
+ * until the next accepted item from the geometric distribution, so the per-item cost
+ * is just a counter decrement.
+ */
+public class GeometricSampler {
+
+    private final Random _random;
+
+    /**
+     * ln(1 - rate), or 0 if every item is accepted.
+     */
+    private final double _logRejectRate;
+
+    /**
+     * Number of items still to be rejected before the next accepted one.
+     */
+    private long _skip;
+
+    /**
+     * Create a new sampler.
+     *
+     * @param rate the probability of accepting each item, greater than 0 and at most 1
+     * @param random the source of randomness
+     */
+    public GeometricSampler(final double rate, final Random random) {
+        if(rate <= 0 || rate > 1)
+            throw new IllegalArgumentException("Sample rate must be greater than 0 and less than or equal to 1");
+        _random = random;
+        _logRejectRate = rate >= 1 ? 0 : Math.log(1 - rate);
+        _skip = nextSkip();
+    }
+
+    /**
+     * Create a new sampler with its own source of randomness.
+     *
+     * @param rate the probability of accepting each item, greater than 0 and at most 1
+     */
+    public GeometricSampler(final double rate) {
+        this(rate, new Random());
+    }
+
+    /**
+     * Decide whether to accept the next item in the stream.
+     *
+     * @return true if the item is part of the sample
+     */
+    public boolean accept() {
+        if(_skip > 0) {
+            _skip--;
+            return false;
+        }
+        _skip = nextSkip();
+        return true;
+    }
+
+    /**
+     * Get the number of items to skip before the next accepted one, and move past them
+     * and the accepted item. For iterators which can jump ahead rather than calling accept() for every item.
+     *
+     * @return the number of items to skip
+     */
+    public long skip() {
+        final long skip = _skip;
+        _skip = nextSkip();
+        return skip;
+    }
+
+    /**
+     * Draw a gap length from the geometric distribution: the number of failures before the first success.
+     *
+     * @return the gap length
+     */
+    private long nextSkip() {
+        if(_logRejectRate == 0)
+            return 0;
+        // 1 - nextDouble() is in (0, 1], so the log is finite and non-positive
+        final double gap = Math.floor(Math.log(1 - _random.nextDouble()) / _logRejectRate);
+        return gap >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) gap;
+    }
+
+}
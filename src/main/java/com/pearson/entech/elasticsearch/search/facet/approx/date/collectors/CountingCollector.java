@@ -3,12 +3,14 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
 import java.io.IOException;
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.IntsRef;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 import org.elasticsearch.search.facet.InternalFacet;
 
@@ -26,6 +28,16 @@ public class CountingCollector<V extends AtomicFieldData<? extends ScriptDocValu
      */
     private TLongIntHashMap _counts;
 
+    /**
+     * Counts per key field ordinal for the current segment, if it has ordinals; otherwise null.
+     */
+    private int[] _ordCounts;
+
+    /**
+     * Array backing _ordCounts, kept between segments to save reallocating it.
+     */
+    private int[] _ordCountsBuffer;
+
     /**
      * Create a new collector.
      * 
@@ -54,11 +66,114 @@ public class CountingCollector<V extends AtomicFieldData<? extends ScriptDocValu
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
         super.setNextReader(context);
+
+        // If the key field has ordinals, we count per ordinal while collecting, and only
+        // convert to timestamps at the end of the segment: one hash update per timestamp, not per doc
+        if(hasTimestampOrdinals()) {
+            final int maxOrd = keyOrdinals().getMaxOrd();
+            if(_ordCountsBuffer == null || _ordCountsBuffer.length < maxOrd)
+                _ordCountsBuffer = new int[maxOrd];
+            _ordCounts = _ordCountsBuffer;
+        }
+    }
+
+    @Override
+    protected void collectBlock(final int[] docs, final int count) throws IOException {
+        if(_ordCounts != null) {
+            collectOrdinals(docs, count);
+            return;
+        }
+
+        // Resolve all of the timestamps for the block first, then update the counts in a tight loop
+        final int found = resolveTimestamps(docs, count);
+        final long[] timestamps = blockTimestamps();
+        if(!hasValueField()) {
+            // We are only counting docs
+            for(int i = 0; i < found; i++) {
+                _counts.adjustOrPutValue(timestamps[i], 1, 1);
+            }
+        } else {
+            // We are counting each occurrence of valueField (regardless of its contents)
+            final int[] valueCounts = countValues(docs, count);
+            final int[] positions = blockDocPositions();
+            for(int i = 0; i < found; i++) {
+                final int increment = valueCounts[positions[i]];
+                if(increment > 0)
+                    _counts.adjustOrPutValue(timestamps[i], increment, increment);
+            }
+        }
+    }
+
+    /**
+     * Fast path for collectBlock(), used when the key field has ordinals.
+     * Just increments the counts for the ordinals of each doc.
+     * 
+     * @param docs the doc IDs
+     * @param count the number of valid doc IDs in the array
+     */
+    private void collectOrdinals(final int[] docs, final int count) {
+        final Ordinals.Docs ordinals = keyOrdinals();
+        final int[] ordCounts = _ordCounts;
+        final int[] valueCounts = hasValueField() ? countValues(docs, count) : null;
+        if(valueCounts == null && !ordinals.isMultiValued()) {
+            // Ord 0 (no value) is counted too, but never folded
+            for(int i = 0; i < count; i++) {
+                ordCounts[ordinals.getOrd(docs[i])]++;
+            }
+            return;
+        }
+        for(int i = 0; i < count; i++) {
+            final int increment = valueCounts == null ? 1 : valueCounts[i];
+            if(increment == 0)
+                continue;
+            final IntsRef ords = ordinals.getOrds(docs[i]);
+            final int end = ords.offset + ords.length;
+            for(int j = ords.offset; j < end; j++) {
+                ordCounts[ords.ints[j]] += increment;
+            }
+        }
+    }
+
+    /**
+     * Fold the current segment's ordinal counts into the main counts map, resetting them as we go.
+     * Ordinals are in ascending order of value, so ordinals with the same timestamp are adjacent,
+     * and we only need one hash update per run of them.
+     */
+    @Override
+    protected void segmentFinished() {
+        if(_ordCounts == null)
+            return;
+
+        final int[] ordCounts = _ordCounts;
+        final int maxOrd = keyOrdinals().getMaxOrd();
+        int runIndex = -1;
+        int runCount = 0;
+        for(int ord = 1; ord < maxOrd; ord++) {
+            final int count = ordCounts[ord];
+            if(count == 0)
+                continue;
+            ordCounts[ord] = 0;
+            final int index = getTimestampIndex(ord);
+            if(index < 0)
+                // Out of bounds
+                continue;
+            if(index != runIndex) {
+                if(runCount > 0)
+                    _counts.adjustOrPutValue(getTimestamp(runIndex), runCount, runCount);
+                runIndex = index;
+                runCount = 0;
+            }
+            runCount += count;
+        }
+        if(runCount > 0)
+            _counts.adjustOrPutValue(getTimestamp(runIndex), runCount, runCount);
+        ordCounts[0] = 0;
+        _ordCounts = null;
     }
 
     @Override
-    public void collect(final int doc) throws IOException {
-        super.collect(doc);
+    protected void collectDoc(final int doc) throws IOException {
+        loadDoc(doc);
 
         if(!hasValueField()) {
             // We are only counting docs
@@ -83,6 +198,7 @@ public class CountingCollector<V extends AtomicFieldData<? extends ScriptDocValu
 
     @Override
     public InternalFacet build(final String facetName) {
+        finishSegment();
         final InternalFacet facet = new InternalCountingFacet(facetName, _counts);
         _counts = null;
         return facet;
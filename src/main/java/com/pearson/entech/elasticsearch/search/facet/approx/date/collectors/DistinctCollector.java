@@ -65,15 +65,17 @@ public class DistinctCollector<V extends AtomicFieldData<? extends ScriptDocValu
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
         super.setNextReader(context);
+        if(isSegmentSkipped())
+            return;
         _distinctFieldIter.setNextReader(context);
     }
 
     @Override
-    public void collect(final int doc) throws IOException {
+    protected void collectDoc(final int doc) throws IOException {
         _distinctFieldIter.collect(doc);
 
         // Exit as early as possible in order to avoid unnecessary lookups/conversions
-        super.collect(doc);
+        loadDoc(doc);
         if(!hasNextTimestamp())
             return;
 
@@ -99,7 +101,7 @@ public class DistinctCollector<V extends AtomicFieldData<? extends ScriptDocValu
 
             // Reset timestamp iterator for this doc
             // TODO make this a standalone CollectableIterator like _distinctFieldIter
-            super.collect(doc);
+            loadDoc(doc);
         }
     }
 
@@ -111,6 +113,7 @@ public class DistinctCollector<V extends AtomicFieldData<? extends ScriptDocValu
 
     @Override
     public InternalFacet build(final String facetName) {
+        finishSegment();
         // This is where we invert the distinct value->timestamp map to build the actual facet object
         final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
         for(final BytesRef fieldVal : _occurrences.keySet()) {
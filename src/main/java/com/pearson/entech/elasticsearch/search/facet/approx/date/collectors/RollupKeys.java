@@ -0,0 +1,68 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.trove.function.TLongFunction;
+import org.elasticsearch.common.trove.iterator.TLongLongIterator;
+import org.elasticsearch.common.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Maps the timestamps of a collector's own interval to the timestamps of a coarser interval.
+ *
+ * Rounding a timestamp again with the coarser interval doesn't always give the right answer:
+ * time zones, offsets and large-interval adjustments mean a timestamp need not fall inside
+ * its own period. So the collector records, for each timestamp it produces, the coarser
+ * timestamp of a raw datetime that was rounded to it. Timestamps which were never recorded
+ * fall back to being rounded again.
+ */
+public class RollupKeys implements TLongFunction {
+
+    private final TimeZoneRounding _tzRounding;
+    private final TLongLongHashMap _keys = new TLongLongHashMap();
+
+    /**
+     * Create a new, empty mapping.
+     *
+     * @param tzRounding the rounding of the coarser interval
+     */
+    public RollupKeys(final TimeZoneRounding tzRounding) {
+        _tzRounding = tzRounding;
+    }
+
+    /**
+     * Record the coarser timestamp for a timestamp, if it doesn't have one yet.
+     *
+     * @param timestamp the timestamp in the collector's own interval
+     * @param datetime a raw datetime which was rounded to that timestamp
+     */
+    public void record(final long timestamp, final long datetime) {
+        if(!_keys.containsKey(timestamp))
+            _keys.put(timestamp, _tzRounding.calc(datetime));
+    }
+
+    /**
+     * Add all the timestamps recorded by another mapping for the same intervals.
+     *
+     * @param other the other mapping
+     */
+    public void merge(final RollupKeys other) {
+        for(final TLongLongIterator iter = other._keys.iterator(); iter.hasNext();) {
+            iter.advance();
+            if(!_keys.containsKey(iter.key()))
+                _keys.put(iter.key(), iter.value());
+        }
+    }
+
+    /**
+     * Get the coarser timestamp for a timestamp.
+     *
+     * @param timestamp the timestamp in the collector's own interval
+     * @return the timestamp in the coarser interval
+     */
+    @Override
+    public long execute(final long timestamp) {
+        if(_keys.containsKey(timestamp))
+            return _keys.get(timestamp);
+        return _tzRounding.calc(timestamp);
+    }
+
+}
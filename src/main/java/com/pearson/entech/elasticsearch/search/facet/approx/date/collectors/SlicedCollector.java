@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
@@ -13,6 +14,7 @@ import org.elasticsearch.index.fielddata.AtomicFieldData;
 import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 import org.elasticsearch.search.facet.InternalFacet;
 
@@ -42,6 +44,36 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
      */
     private ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> _counts;
 
+    /**
+     * Ordinal-enabled values for the slice field, if the current segment is being counted into a matrix; otherwise null.
+     */
+    private BytesValues.WithOrdinals _sliceOrdinals;
+
+    /**
+     * A flat timestamp index x slice ordinal matrix of counts for the current segment.
+     */
+    private int[] _matrix;
+
+    /**
+     * The number of columns (slice ordinals) in the matrix for the current segment.
+     */
+    private int _matrixStride;
+
+    /**
+     * The number of rows (timestamps) in the matrix for the current segment.
+     */
+    private int _matrixRows;
+
+    /**
+     * Slice ordinals of each doc in the current block, end to end, when counting into a matrix.
+     */
+    private int[] _blockSliceOrds = new int[BLOCK_SIZE];
+
+    /**
+     * Start of each doc's slice ordinals in _blockSliceOrds, plus one end marker.
+     */
+    private final int[] _blockSliceStarts = new int[BLOCK_SIZE + 1];
+
     /**
      * Create a new Collector.
      * 
@@ -76,80 +108,209 @@ public class SlicedCollector<V extends AtomicFieldData<? extends ScriptDocValues
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
+        // The previous segment's matrix is folded by segmentFinished() before its ordinals go out of scope
         super.setNextReader(context);
+        if(isSegmentSkipped())
+            return;
         _sliceFieldValues = _sliceFieldData.load(context).getBytesValues();
+
+        // If both the key field and the slice field have ordinals, we can count into a flat
+        // timestamp x slice ordinal matrix, and only look at the slice labels at the end of the segment.
+        // We only do this if the matrix would be of a reasonable size.
+        _sliceOrdinals = null;
+        if(hasTimestampOrdinals() && _sliceFieldValues instanceof BytesValues.WithOrdinals) {
+            final BytesValues.WithOrdinals sliceOrdinals = (BytesValues.WithOrdinals) _sliceFieldValues;
+            final int stride = sliceOrdinals.ordinals().getMaxOrd();
+            final long cells = (long) timestampCount() * stride;
+            if(cells <= MAX_MATRIX_CELLS) {
+                _sliceOrdinals = sliceOrdinals;
+                _matrixStride = stride;
+                _matrixRows = timestampCount();
+                if(_matrix == null || _matrix.length < cells)
+                    _matrix = new int[(int) cells];
+            }
+        }
+    }
+
+    @Override
+    protected void collectBlock(final int[] docs, final int count) throws IOException {
+        if(_sliceOrdinals == null) {
+            super.collectBlock(docs, count);
+            return;
+        }
+
+        // Resolve timestamp indices for the whole block first, then slice ordinals and value counts,
+        // and only then touch the matrix
+        final int found = resolveTimestamps(docs, count);
+        if(found == 0)
+            return;
+        final int[] valueCounts = hasValueField() ? countValues(docs, count) : null;
+        resolveSliceOrdinals(docs, count);
+
+        final int[] matrix = _matrix;
+        final int stride = _matrixStride;
+        final int[] indices = blockTimestampIndices();
+        final int[] positions = blockDocPositions();
+        final int[] sliceOrds = _blockSliceOrds;
+        final int[] sliceStarts = _blockSliceStarts;
+        for(int i = 0; i < found; i++) {
+            final int position = positions[i];
+            final int increment = valueCounts == null ? 1 : valueCounts[position];
+            final int row = indices[i] * stride;
+            final int end = sliceStarts[position + 1];
+            for(int j = sliceStarts[position]; j < end; j++) {
+                matrix[row + sliceOrds[j]] += increment;
+            }
+        }
+    }
+
+    /**
+     * Copy the slice ordinals of a block of docs into _blockSliceOrds, in one pass over the slice field.
+     * 
+     * @param docs the doc IDs
+     * @param count the number of valid doc IDs in the array
+     */
+    private void resolveSliceOrdinals(final int[] docs, final int count) {
+        final Ordinals.Docs ordinals = _sliceOrdinals.ordinals();
+        int total = 0;
+        for(int i = 0; i < count; i++) {
+            _blockSliceStarts[i] = total;
+            final IntsRef ords = ordinals.getOrds(docs[i]);
+            if(total + ords.length > _blockSliceOrds.length) {
+                final int[] grown = new int[Math.max(total + ords.length, _blockSliceOrds.length * 2)];
+                System.arraycopy(_blockSliceOrds, 0, grown, 0, total);
+                _blockSliceOrds = grown;
+            }
+            System.arraycopy(ords.ints, ords.offset, _blockSliceOrds, total, ords.length);
+            total += ords.length;
+        }
+        _blockSliceStarts[count] = total;
     }
 
+    /**
+     * Slow path, used unless both the key and slice fields have ordinals.
+     */
     @Override
-    public void collect(final int doc) throws IOException {
+    protected void collectDoc(final int doc) throws IOException {
         // Exit as early as possible in order to avoid unnecessary lookups
-        super.collect(doc);
+        loadDoc(doc);
         if(!hasNextTimestamp())
             return;
 
-        if(!hasValueField()) {
-            // We are only counting docs for each slice
-            while(hasNextTimestamp()) {
-                final BytesValues.Iter sliceIter = getSliceIter(doc);
-                if(!sliceIter.hasNext())
-                    return;
+        // Count each doc once per slice, or each occurrence of value_field once per slice (regardless of its contents)
+        final int increment = hasValueField() ? countValues() : 1;
+        if(increment == 0)
+            return;
+
+        while(hasNextTimestamp()) {
+            final BytesValues.Iter sliceIter = getSliceIter(doc);
+            if(!sliceIter.hasNext())
+                return;
 
-                final long time = nextTimestamp();
+            final long time = nextTimestamp();
 
-                while(sliceIter.hasNext()) {
-                    incrementSafely(_counts, time, sliceIter.next());
-                }
+            while(sliceIter.hasNext()) {
+                incrementSafely(_counts, time, sliceIter.next(), increment);
             }
-        } else {
-            // We are counting each occurrence of value_field in each slice (regardless of its contents)
-            while(hasNextTimestamp()) {
-                final BytesValues.Iter sliceIter = getSliceIter(doc);
-                if(!sliceIter.hasNext())
-                    return;
-
-                final long time = nextTimestamp();
-
-                while(sliceIter.hasNext()) {
-                    while(hasNextValue()) {
-                        final BytesRef unsafe = sliceIter.next();
-                        incrementSafely(_counts, time, unsafe);
-                    }
-                }
+        }
+    }
+
+    @Override
+    protected void segmentFinished() {
+        foldMatrix();
+    }
+
+    /**
+     * Fold all non-zero cells of the current segment's matrix into the main counts map,
+     * resetting the matrix as we go. Does nothing if the current segment didn't use a matrix.
+     */
+    private void foldMatrix() {
+        if(_sliceOrdinals == null)
+            return;
+
+        final int[] matrix = _matrix;
+        final int stride = _matrixStride;
+        // Slice labels are only copied once per segment, and only if they're used
+        final BytesRef[] labels = new BytesRef[stride];
+        for(int row = 0; row < _matrixRows; row++) {
+            final int rowStart = row * stride;
+            TObjectIntHashMap<BytesRef> subMap = null;
+            for(int ord = 1; ord < stride; ord++) {
+                final int count = matrix[rowStart + ord];
+                if(count == 0)
+                    continue;
+                matrix[rowStart + ord] = 0;
+                if(subMap == null)
+                    subMap = getSubMap(_counts, getTimestamp(row));
+                if(labels[ord] == null)
+                    labels[ord] = _sliceOrdinals.getSafeValueByOrd(ord);
+                subMap.adjustOrPutValue(labels[ord], count, count);
             }
         }
+        _sliceOrdinals = null;
+    }
 
+    /**
+     * Count the values of the value field in the current doc.
+     * 
+     * @return the number of values
+     */
+    private int countValues() {
+        int count = 0;
+        while(hasNextValue()) {
+            nextValue();
+            count++;
+        }
+        return count;
     }
 
     @Override
     public void postCollection() {
         super.postCollection();
         _sliceFieldValues = null;
+        _matrix = null;
     }
 
     @Override
     public InternalFacet build(final String facetName) {
+        finishSegment();
         final InternalFacet facet = new InternalSlicedFacet(facetName, _counts);
         _counts = null;
         return facet;
     }
 
     /**
-     * Retrieve a slice labels->count map by timestamp, creating it if it doesn't exist already,
-     * and increment the count for a given slice label.
+     * Retrieve a slice labels->count map by timestamp, creating it if it doesn't exist already.
      * 
      * @param counts the timestamp->slice label->count map
      * @param key the timestamp required
-     * @param unsafe a BytesRef holding the newly-seen slice label -- this will be made safe automatically
+     * @return the slice labels->count map
      */
-    private void incrementSafely(final TLongObjectMap<TObjectIntHashMap<BytesRef>> counts,
-            final long key, final BytesRef unsafe) {
+    private TObjectIntHashMap<BytesRef> getSubMap(final TLongObjectMap<TObjectIntHashMap<BytesRef>> counts, final long key) {
         TObjectIntHashMap<BytesRef> subMap = counts.get(key);
         if(subMap == null) {
             subMap = CacheRecycler.popObjectIntMap();
             counts.put(key, subMap);
         }
-        final BytesRef safe = BytesRef.deepCopyOf(unsafe);
-        subMap.adjustOrPutValue(safe, 1, 1);
+        return subMap;
+    }
+
+    /**
+     * Retrieve a slice labels->count map by timestamp, creating it if it doesn't exist already,
+     * and increment the count for a given slice label.
+     * 
+     * @param counts the timestamp->slice label->count map
+     * @param key the timestamp required
+     * @param unsafe a BytesRef holding the newly-seen slice label -- this will be made safe automatically
+     * @param increment the amount to increment the count by
+     */
+    private void incrementSafely(final TLongObjectMap<TObjectIntHashMap<BytesRef>> counts,
+            final long key, final BytesRef unsafe, final int increment) {
+        final TObjectIntHashMap<BytesRef> subMap = getSubMap(counts, key);
+        // Only copy the label if we haven't seen it before in this period
+        if(!subMap.adjustValue(unsafe, increment)) {
+            subMap.put(BytesRef.deepCopyOf(unsafe), increment);
+        }
     }
 
     /**
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.trove.ExtTHashMap;
@@ -59,6 +60,26 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
      */
     private final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> _counts;
 
+    /**
+     * Ordinal-enabled values for the slice field, if the current segment is being counted into a matrix; otherwise null.
+     */
+    private BytesValues.WithOrdinals _sliceOrdinals;
+
+    /**
+     * A flat timestamp index x slice ordinal matrix of distinct counters for the current segment.
+     */
+    private DistinctCountPayload[] _matrix;
+
+    /**
+     * The number of columns (slice ordinals) in the matrix for the current segment.
+     */
+    private int _matrixStride;
+
+    /**
+     * The number of rows (timestamps) in the matrix for the current segment.
+     */
+    private int _matrixRows;
+
     /**
      * Create a new Collector.
      * 
@@ -82,28 +103,50 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
 
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
+        // The previous segment's matrix is folded by segmentFinished() before its ordinals go out of scope
         super.setNextReader(context);
+        if(isSegmentSkipped())
+            return;
         _distinctFieldValues = _distinctFieldData.load(context).getBytesValues();
         _sliceFieldValues = _sliceFieldData.load(context).getBytesValues();
+
+        // If both the key field and the slice field have ordinals, we can keep the counters for
+        // this segment in a flat timestamp x slice ordinal matrix, and only look at the slice labels
+        // at the end of the segment. We only do this if the matrix would be of a reasonable size.
+        _sliceOrdinals = null;
+        if(hasTimestampOrdinals() && _sliceFieldValues instanceof BytesValues.WithOrdinals) {
+            final BytesValues.WithOrdinals sliceOrdinals = (BytesValues.WithOrdinals) _sliceFieldValues;
+            final int stride = sliceOrdinals.ordinals().getMaxOrd();
+            final long cells = (long) timestampCount() * stride;
+            if(cells <= MAX_MATRIX_CELLS) {
+                _sliceOrdinals = sliceOrdinals;
+                _matrixStride = stride;
+                _matrixRows = timestampCount();
+                if(_matrix == null || _matrix.length < cells)
+                    _matrix = new DistinctCountPayload[(int) cells];
+            }
+        }
     }
 
     @Override
-    public void collect(final int doc) throws IOException {
+    protected void collectDoc(final int doc) throws IOException {
         // Exit as early as possible in order to avoid unnecessary lookups
-        super.collect(doc);
+        loadDoc(doc);
         if(!hasNextTimestamp())
             return;
 
-        final org.elasticsearch.index.fielddata.BytesValues.Iter distinctIter =
-                _distinctFieldValues.getIter(doc);
-        final org.elasticsearch.index.fielddata.BytesValues.Iter sliceIter =
-                _sliceFieldValues.getIter(doc);
+        if(_sliceOrdinals != null) {
+            collectOrdinals(doc);
+            return;
+        }
 
         while(hasNextTimestamp()) {
             final long time = nextTimestamp();
+            final BytesValues.Iter sliceIter = _sliceFieldValues.getIter(doc);
             while(sliceIter.hasNext()) {
                 final BytesRef unsafeSlice = sliceIter.next();
                 final DistinctCountPayload count = getSafely(_counts, time, unsafeSlice);
+                final BytesValues.Iter distinctIter = _distinctFieldValues.getIter(doc);
                 while(distinctIter.hasNext()) {
                     final BytesRef unsafeTerm = distinctIter.next();
                     // Unsafe because the BytesRef may be changed if we continue reading,
@@ -114,19 +157,106 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
         }
     }
 
+    /**
+     * Fast path for collectDoc(), used when both the key and slice fields have ordinals.
+     * Updates the counters in the cells of the matrix corresponding to this doc.
+     * 
+     * @param doc the doc ID
+     */
+    private void collectOrdinals(final int doc) {
+        final IntsRef sliceOrds = _sliceOrdinals.ordinals().getOrds(doc);
+        if(sliceOrds.length == 0)
+            return;
+
+        final DistinctCountPayload[] matrix = _matrix;
+        final int stride = _matrixStride;
+        final int[] ords = sliceOrds.ints;
+        final int start = sliceOrds.offset;
+        final int end = start + sliceOrds.length;
+        while(hasNextTimestamp()) {
+            final int row = nextTimestampIndex() * stride;
+            for(int i = start; i < end; i++) {
+                final int cell = row + ords[i];
+                DistinctCountPayload count = matrix[cell];
+                if(count == null) {
+                    count = new DistinctCountPayload(_exactThreshold);
+                    matrix[cell] = count;
+                }
+                final BytesValues.Iter distinctIter = _distinctFieldValues.getIter(doc);
+                while(distinctIter.hasNext()) {
+                    count.update(distinctIter.next());
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void segmentFinished() {
+        foldMatrix();
+    }
+
+    /**
+     * Merge all non-empty cells of the current segment's matrix into the main counts map,
+     * resetting the matrix as we go. Does nothing if the current segment didn't use a matrix.
+     */
+    private void foldMatrix() {
+        if(_sliceOrdinals == null)
+            return;
+
+        final DistinctCountPayload[] matrix = _matrix;
+        final int stride = _matrixStride;
+        // Slice labels are only copied once per segment, and only if they're used
+        final BytesRef[] labels = new BytesRef[stride];
+        for(int row = 0; row < _matrixRows; row++) {
+            final int rowStart = row * stride;
+            ExtTHashMap<BytesRef, DistinctCountPayload> subMap = null;
+            for(int ord = 1; ord < stride; ord++) {
+                final DistinctCountPayload count = matrix[rowStart + ord];
+                if(count == null)
+                    continue;
+                matrix[rowStart + ord] = null;
+                if(subMap == null)
+                    subMap = getSubMap(_counts, getTimestamp(row));
+                if(labels[ord] == null)
+                    labels[ord] = _sliceOrdinals.getSafeValueByOrd(ord);
+                count.mergeInto(subMap, labels[ord]);
+            }
+        }
+        _sliceOrdinals = null;
+    }
+
     @Override
     public void postCollection() {
         super.postCollection();
         _distinctFieldValues = null;
         _sliceFieldValues = null;
+        _matrix = null;
     }
 
     @Override
     public InternalFacet build(final String facetName) {
+        finishSegment();
         final InternalFacet facet = new InternalSlicedDistinctFacet(facetName, _counts);
         return facet;
     }
 
+    /**
+     * Retrieve a slice labels->distinct count map by timestamp, creating it if it doesn't exist already.
+     * 
+     * @param counts the timestamp->slice label->distinct count map
+     * @param key the timestamp required
+     * @return the slice labels->distinct count map
+     */
+    private ExtTHashMap<BytesRef, DistinctCountPayload> getSubMap(
+            final TLongObjectMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts, final long key) {
+        ExtTHashMap<BytesRef, DistinctCountPayload> subMap = counts.get(key);
+        if(subMap == null) {
+            subMap = CacheRecycler.popHashMap();
+            counts.put(key, subMap);
+        }
+        return subMap;
+    }
+
     /**
      * Retrieve a slice labels->distinct count map by timestamp,
      * creating it if it doesn't exist already,
@@ -139,11 +269,7 @@ public class SlicedDistinctCollector<V extends AtomicFieldData<? extends ScriptD
     private DistinctCountPayload getSafely(
             final TLongObjectMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts,
             final long key, final BytesRef unsafe) {
-        ExtTHashMap<BytesRef, DistinctCountPayload> subMap = counts.get(key);
-        if(subMap == null) {
-            subMap = CacheRecycler.popHashMap();
-            counts.put(key, subMap);
-        }
+        final ExtTHashMap<BytesRef, DistinctCountPayload> subMap = getSubMap(counts, key);
         DistinctCountPayload payload = subMap.get(unsafe);
         if(payload == null) {
             final BytesRef safe = BytesRef.deepCopyOf(unsafe);
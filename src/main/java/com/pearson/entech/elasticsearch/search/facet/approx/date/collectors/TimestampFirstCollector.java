@@ -3,11 +3,14 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
 import java.io.IOException;
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TermsEnum.SeekStatus;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.joda.TimeZoneRounding;
-import org.elasticsearch.common.trove.list.array.TIntArrayList;
-import org.elasticsearch.common.trove.list.array.TLongArrayList;
 import org.elasticsearch.index.fielddata.AtomicFieldData;
 import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.IndexFieldData;
@@ -15,8 +18,11 @@ import org.elasticsearch.index.fielddata.LongValues;
 import org.elasticsearch.index.fielddata.LongValues.Iter;
 import org.elasticsearch.index.fielddata.LongValues.WithOrdinals;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
 
+import com.pearson.entech.elasticsearch.plugin.approx.GeometricSampler;
+
 /**
  * A buildable collector which iterates through value of a long datetime field, applying timezone rounding to them.
  *  
@@ -29,11 +35,22 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      */
     protected static final Iter EMPTY = new Iter.Empty();
 
+    /**
+     * The largest number of cells (timestamps x ordinals) a subclass should allocate for a
+     * per-segment ordinal matrix. Above this, subclasses should fall back to hash maps.
+     */
+    protected static final int MAX_MATRIX_CELLS = 1 << 22;
+
+    /**
+     * The number of doc IDs buffered before they are collected together as a block.
+     */
+    protected static final int BLOCK_SIZE = 1024;
+
     private LongValues _keyFieldValues;
     private IntsRef _docOrds;
     private int _docOrdPointer;
-    private final TLongArrayList _timestamps = new TLongArrayList();
-    private final TIntArrayList _ordToTimestampPointers = new TIntArrayList();
+    private TimestampTable _timestampTable;
+    private TimestampTableCache _timestampTableCache;
     private Iter _docIter;
     private long _lastNonOrdDatetime = 0;
     private long _lastNonOrdTimestamp = 0;
@@ -44,6 +61,34 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
     private BytesValues _valueFieldValues;
     private BytesValues.Iter _valueFieldIter;
 
+    // Inclusive bounds on datetime values; values outside them are ignored
+    private boolean _bounded = false;
+    private long _min = Long.MIN_VALUE;
+    private long _max = Long.MAX_VALUE;
+    private BoundedIter _boundedIter;
+
+    // Whether the current segment has no values within the bounds
+    private boolean _skipSegment = false;
+
+    // Whether the current segment has values both within and outside the bounds
+    private boolean _filterValues = false;
+
+    // Decides which docs to collect when sampling, or null to collect all of them
+    private GeometricSampler _sampler;
+
+    // Mappings to coarser intervals, if any, filled in as timestamps are calculated
+    private RollupKeys[] _rollupKeys;
+
+    // Doc IDs waiting to be collected
+    private final int[] _blockDocs = new int[BLOCK_SIZE];
+    private int _blockDocCount = 0;
+
+    // Per-block scratch space, filled by resolveTimestamps() and countValues()
+    private long[] _blockTimestamps = new long[BLOCK_SIZE];
+    private int[] _blockTimestampIndices = new int[BLOCK_SIZE];
+    private int[] _blockDocPositions = new int[BLOCK_SIZE];
+    private final int[] _blockValueCounts = new int[BLOCK_SIZE];
+
     /**
      * Create a new collector.
      * 
@@ -69,21 +114,162 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
         this(keyFieldData, null, tzRounding);
     }
 
+    /**
+     * Only count datetime values between min and max (inclusive). Segments with no values in this
+     * range are skipped without loading any field data, and values outside it are dropped before rounding.
+     * 
+     * @param min the lower bound, or Long.MIN_VALUE for none
+     * @param max the upper bound, or Long.MAX_VALUE for none
+     */
+    public void setBounds(final long min, final long max) {
+        _min = min;
+        _max = max;
+        _bounded = min > Long.MIN_VALUE || max < Long.MAX_VALUE;
+        _boundedIter = _bounded ? new BoundedIter(min, max) : null;
+    }
+
+    /**
+     * Share timestamp tables with other collectors using the same key field, rounding and bounds.
+     * 
+     * @param cache the cache to get timestamp tables from, or null to build them for this collector only
+     */
+    public void setTimestampTableCache(final TimestampTableCache cache) {
+        _timestampTableCache = cache;
+    }
+
+    /**
+     * Record how the timestamps produced by this collector map to the timestamps of some coarser intervals,
+     * so that facets for those intervals can be rolled up from this collector's facet afterwards.
+     * 
+     * @param tzRoundings the roundings of the coarser intervals
+     */
+    public void setRollups(final TimeZoneRounding[] tzRoundings) {
+        _rollupKeys = new RollupKeys[tzRoundings.length];
+        for(int i = 0; i < tzRoundings.length; i++) {
+            _rollupKeys[i] = new RollupKeys(tzRoundings[i]);
+        }
+    }
+
+    /**
+     * Get the mappings to coarser intervals recorded so far, in the order they were passed to setRollups().
+     * 
+     * @return the mappings, or null if setRollups() hasn't been called
+     */
+    public RollupKeys[] getRollupKeys() {
+        return _rollupKeys;
+    }
+
+    /**
+     * Collect only a random sample of the docs passed to collect(). Counts are not scaled up here;
+     * that is up to whoever builds the facet.
+     * 
+     * @param rate the probability of collecting each doc, greater than 0 and at most 1
+     */
+    public void setSampleRate(final float rate) {
+        _sampler = rate < 1 ? new GeometricSampler(rate) : null;
+    }
+
+    /**
+     * Buffers the doc ID, if it's included in the sample. Docs are passed on to collectBlock() in
+     * blocks of up to BLOCK_SIZE, so that subclasses can make several tight passes over the field
+     * data for a block rather than jumping between fields for every doc.
+     */
     @Override
-    public void collect(final int doc) throws IOException {
+    public final void collect(final int doc) throws IOException {
+        if(_skipSegment)
+            return;
+        if(_sampler != null && !_sampler.accept())
+            return;
+        _blockDocs[_blockDocCount++] = doc;
+        if(_blockDocCount == BLOCK_SIZE)
+            flushBlock();
+    }
+
+    /**
+     * Collect a block of docs from the current segment. The default implementation
+     * simply calls collectDoc() for each doc in turn; subclasses may override it
+     * with a faster block-wise implementation.
+     * 
+     * @param docs the doc IDs, in ascending order
+     * @param count the number of valid doc IDs in the array
+     * @throws IOException
+     */
+    protected void collectBlock(final int[] docs, final int count) throws IOException {
+        for(int i = 0; i < count; i++) {
+            collectDoc(docs[i]);
+        }
+    }
+
+    /**
+     * Collect a single doc from the current segment.
+     * 
+     * @param doc the doc ID
+     * @throws IOException
+     */
+    protected abstract void collectDoc(int doc) throws IOException;
+
+    /**
+     * Position the timestamp and value iterators at the given doc, ready for
+     * hasNextTimestamp(), nextTimestamp() etc. to be called.
+     * 
+     * @param doc the doc ID
+     */
+    protected void loadDoc(final int doc) {
         // If the datetime field has ordinals available, we can take a bunch of shortcuts later
         if(_keyFieldValues instanceof WithOrdinals) {
             _docOrds = ((WithOrdinals) _keyFieldValues).ordinals().getOrds(doc);
             _docOrdPointer = _docOrds.offset;
         } else {
-            _docIter = _keyFieldValues.getIter(doc);
+            _docIter = boundedIter(_keyFieldValues.getIter(doc));
         }
         if(hasValueField())
             _valueFieldIter = _valueFieldValues.getIter(doc);
     }
 
+    /**
+     * Collect any buffered docs.
+     * 
+     * @throws IOException
+     */
+    private void flushBlock() throws IOException {
+        final int count = _blockDocCount;
+        if(count == 0)
+            return;
+        _blockDocCount = 0;
+        collectBlock(_blockDocs, count);
+    }
+
+    /**
+     * Collect any buffered docs, then let the subclass finish its work on the current segment.
+     * Must be called before moving on to a new segment, and before building the facet.
+     */
+    protected final void finishSegment() {
+        try {
+            flushBlock();
+        } catch(final IOException e) {
+            throw new ElasticSearchException("Failed to collect buffered documents", e);
+        }
+        segmentFinished();
+    }
+
+    /**
+     * Called once all docs from the current segment have been collected, while its field data
+     * is still available. Does nothing by default.
+     */
+    protected void segmentFinished() {}
+
     @Override
     public void setNextReader(final AtomicReaderContext context) throws IOException {
+        // Anything still buffered belongs to the previous segment
+        finishSegment();
+
+        // Avoid loading any field data if we can tell from the terms that no values are in bounds
+        checkBounds(context);
+        if(_skipSegment) {
+            _keyFieldValues = null;
+            return;
+        }
+
         _keyFieldValues = _keyFieldData.load(context).getLongValues();
         if(hasValueField())
             _valueFieldValues = _valueFieldData.load(context).getBytesValues();
@@ -100,53 +286,214 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
         // by calculating timestamps for all of the ordinals up front.
         // TODO come up with a heuristic to avoid falling into this trap.
 
+        // Other date facets in the same request may share the table, if we have a cache.
+
         if(_keyFieldValues instanceof WithOrdinals) {
-            final int maxOrd = ((WithOrdinals) _keyFieldValues).ordinals().getMaxOrd();
-            int tsPointer = 0;
-
-            // _timestamps holds the rounded timestamps
-            _timestamps.resetQuick();
-            _timestamps.add(0);
-
-            // _ordToTimestampPointers has one entry for every ord
-            _ordToTimestampPointers.resetQuick();
-            _ordToTimestampPointers.add(0);
-
-            // We cache these for some small optimizations
-            long lastDateTime = 0;
-            long lastTimestamp = 0;
-            for(int i = 1; i < maxOrd; i++) {
-                // Get the next ordinal's value so we can calculate its timestamp
-                final long datetime = ((WithOrdinals) _keyFieldValues).getValueByOrd(i);
-
-                // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
-                // (true because we don't support granularity less than 1 sec)
-                if(datetime == lastDateTime || (datetime > lastTimestamp && datetime - lastTimestamp < 1000)) {
-                    // Just add another instance of the same timestamp pointer
-                    _ordToTimestampPointers.add(tsPointer);
-                } else {
-                    // We may or may not have a new timestamp
-                    final long newTimestamp = _tzRounding.calc(datetime);
-                    if(newTimestamp != lastTimestamp) {
-                        // We do -- save it and update pointer
-                        lastTimestamp = newTimestamp;
-                        _timestamps.add(newTimestamp);
-                        tsPointer++;
-                        // Otherwise this ord will have the same pointer as the last one
-                    }
+            final WithOrdinals ordinalValues = (WithOrdinals) _keyFieldValues;
+            _timestampTable = _timestampTableCache == null
+                    ? TimestampTable.build(ordinalValues, _tzRounding, _filterValues, _min, _max)
+                    : _timestampTableCache.get(context, ordinalValues, _tzRounding, _filterValues, _min, _max);
+            if(_rollupKeys != null) {
+                for(int i = 1; i < _timestampTable.size(); i++) {
+                    recordRollups(_timestampTable.timestamp(i), _timestampTable.datetime(i));
                 }
-                lastDateTime = datetime;
-
-                // Add timestamp pointer for this ord -- could be the same as the previous ord, or a new one
-                _ordToTimestampPointers.add(tsPointer);
             }
         } else {
             _docIter = EMPTY;
         }
     }
 
+    /**
+     * Work out whether the segment has no values within the bounds (so can be skipped),
+     * or some values outside them (so values need to be checked individually), by
+     * seeking in the trie-encoded terms of the key field.
+     * 
+     * @param context the segment
+     * @throws IOException
+     */
+    private void checkBounds(final AtomicReaderContext context) throws IOException {
+        _skipSegment = false;
+        _filterValues = false;
+        if(!_bounded)
+            return;
+
+        final Terms terms = context.reader().terms(_keyFieldData.getFieldNames().indexName());
+        if(terms == null) {
+            _skipSegment = true;
+            return;
+        }
+        final TermsEnum termsEnum = terms.iterator(null);
+        final BytesRef scratch = new BytesRef(NumericUtils.BUF_SIZE_LONG);
+
+        // Full-precision terms sort before all lower-precision ones, in numeric order
+        if(!seekValue(termsEnum, Long.MIN_VALUE, scratch)) {
+            _skipSegment = true;
+            return;
+        }
+        final boolean valuesBelow = NumericUtils.prefixCodedToLong(termsEnum.term()) < _min;
+        if(!seekValue(termsEnum, _min, scratch) || NumericUtils.prefixCodedToLong(termsEnum.term()) > _max) {
+            _skipSegment = true;
+            return;
+        }
+        final boolean valuesAbove = _max < Long.MAX_VALUE && seekValue(termsEnum, _max + 1, scratch);
+        _filterValues = valuesBelow || valuesAbove;
+    }
+
+    /**
+     * Seek to the smallest full-precision term for a value greater than or equal to the one given.
+     * 
+     * @param termsEnum the terms of a numeric long field
+     * @param value the value
+     * @param scratch a BytesRef to encode the value into
+     * @return true if there was such a term, in which case termsEnum is positioned on it
+     * @throws IOException
+     */
+    private static boolean seekValue(final TermsEnum termsEnum, final long value, final BytesRef scratch) throws IOException {
+        NumericUtils.longToPrefixCodedBytes(value, 0, scratch);
+        if(termsEnum.seekCeil(scratch) == SeekStatus.END)
+            return false;
+        return NumericUtils.getPrefixCodedLongShift(termsEnum.term()) == 0;
+    }
+
+    /**
+     * Wrap an iterator over datetime values so that it skips out-of-bounds values, if necessary.
+     * 
+     * @param iter the iterator
+     * @return an iterator over the in-bounds values
+     */
+    private Iter boundedIter(final Iter iter) {
+        return _filterValues ? _boundedIter.reset(iter) : iter;
+    }
+
+    /**
+     * Has the current segment been skipped because it has no values within the bounds?
+     * If so, subclasses needn't load any field data for it, as no docs will be collected.
+     * 
+     * @return true/false
+     */
+    protected boolean isSegmentSkipped() {
+        return _skipSegment;
+    }
+
     @Override
-    public void postCollection() {}
+    public void postCollection() {
+        finishSegment();
+    }
+
+    /**
+     * Resolve the timestamps of a whole block of docs in one pass over the key field.
+     * Afterwards, for each i below the returned count, blockTimestamps()[i] is a timestamp,
+     * and blockDocPositions()[i] is the position in docs of the doc it belongs to.
+     * If hasTimestampOrdinals() is true, blockTimestampIndices()[i] is also set to the
+     * index of the timestamp, as returned by nextTimestampIndex().
+     * 
+     * @param docs the doc IDs
+     * @param count the number of valid doc IDs in the array
+     * @return the number of timestamps found
+     */
+    protected int resolveTimestamps(final int[] docs, final int count) {
+        int found = 0;
+        if(_keyFieldValues instanceof WithOrdinals) {
+            final Ordinals.Docs ordinals = ((WithOrdinals) _keyFieldValues).ordinals();
+            for(int i = 0; i < count; i++) {
+                final IntsRef ords = ordinals.getOrds(docs[i]);
+                ensureBlockCapacity(found + ords.length);
+                final int end = ords.offset + ords.length;
+                for(int j = ords.offset; j < end; j++) {
+                    final int index = _timestampTable.index(ords.ints[j]);
+                    if(index < 0)
+                        continue;
+                    _blockTimestampIndices[found] = index;
+                    _blockDocPositions[found] = i;
+                    found++;
+                }
+            }
+            for(int i = 0; i < found; i++) {
+                _blockTimestamps[i] = _timestampTable.timestamp(_blockTimestampIndices[i]);
+            }
+        } else {
+            for(int i = 0; i < count; i++) {
+                final Iter iter = boundedIter(_keyFieldValues.getIter(docs[i]));
+                while(iter.hasNext()) {
+                    ensureBlockCapacity(found + 1);
+                    _blockTimestamps[found] = round(iter.next());
+                    _blockDocPositions[found] = i;
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Count the values of the value field for each of a block of docs, in one pass over the value field.
+     * Only valid if hasValueField() is true.
+     * 
+     * @param docs the doc IDs
+     * @param count the number of valid doc IDs in the array
+     * @return an array holding the number of values for each doc, in the same positions as docs
+     */
+    protected int[] countValues(final int[] docs, final int count) {
+        if(_valueFieldValues instanceof BytesValues.WithOrdinals) {
+            // The number of ords is the number of values, so there's no need to look at the values themselves
+            final Ordinals.Docs ordinals = ((BytesValues.WithOrdinals) _valueFieldValues).ordinals();
+            for(int i = 0; i < count; i++) {
+                _blockValueCounts[i] = ordinals.getOrds(docs[i]).length;
+            }
+            return _blockValueCounts;
+        }
+        for(int i = 0; i < count; i++) {
+            final BytesValues.Iter iter = _valueFieldValues.getIter(docs[i]);
+            int values = 0;
+            while(iter.hasNext()) {
+                iter.next();
+                values++;
+            }
+            _blockValueCounts[i] = values;
+        }
+        return _blockValueCounts;
+    }
+
+    /**
+     * @return the timestamps found by the last call to resolveTimestamps()
+     */
+    protected long[] blockTimestamps() {
+        return _blockTimestamps;
+    }
+
+    /**
+     * @return the timestamp indices found by the last call to resolveTimestamps(), if hasTimestampOrdinals() is true
+     */
+    protected int[] blockTimestampIndices() {
+        return _blockTimestampIndices;
+    }
+
+    /**
+     * @return the doc positions of the timestamps found by the last call to resolveTimestamps()
+     */
+    protected int[] blockDocPositions() {
+        return _blockDocPositions;
+    }
+
+    /**
+     * Grow the per-block timestamp arrays if necessary, for docs with many datetime values.
+     * 
+     * @param size the required size
+     */
+    private void ensureBlockCapacity(final int size) {
+        if(size <= _blockTimestamps.length)
+            return;
+        final int newSize = Math.max(size, _blockTimestamps.length * 2);
+        final long[] timestamps = new long[newSize];
+        System.arraycopy(_blockTimestamps, 0, timestamps, 0, _blockTimestamps.length);
+        _blockTimestamps = timestamps;
+        final int[] indices = new int[newSize];
+        System.arraycopy(_blockTimestampIndices, 0, indices, 0, _blockTimestampIndices.length);
+        _blockTimestampIndices = indices;
+        final int[] positions = new int[newSize];
+        System.arraycopy(_blockDocPositions, 0, positions, 0, _blockDocPositions.length);
+        _blockDocPositions = positions;
+    }
 
     /**
      * Are there any more timestamps available?
@@ -155,6 +502,11 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
      */
     protected boolean hasNextTimestamp() {
         if(_keyFieldValues instanceof WithOrdinals) {
+            if(_filterValues) {
+                while(_docOrdPointer < _docOrds.length && _timestampTable.index(_docOrds.ints[_docOrdPointer]) < 0) {
+                    _docOrdPointer++;
+                }
+            }
             return _docOrdPointer < _docOrds.length;
         } else {
             return _docIter.hasNext();
@@ -169,26 +521,112 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
     protected long nextTimestamp() {
         if(_keyFieldValues instanceof WithOrdinals) {
             // We can bypass getting the raw datetime value, and go from ord to timestamp directly (well, directly-ish)
-            final long ts = _timestamps.get(_ordToTimestampPointers.get(_docOrds.ints[_docOrdPointer]));
+            final long ts = _timestampTable.timestamp(_timestampTable.index(_docOrds.ints[_docOrdPointer]));
             _docOrdPointer++;
             return ts;
         } else {
             // Get the next raw datetime, and if necessary, round it
-            final long datetime = _docIter.next();
-            // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
-            // (true because we don't support granularity less than 1 sec)
-            if(datetime == _lastNonOrdDatetime || (datetime > _lastNonOrdTimestamp && datetime - _lastNonOrdTimestamp < 1000)) {
-                _lastNonOrdDatetime = datetime;
-                // _lastNonOrdTimestamp already contains right value
-            } else {
-                // Get and save new timestamp
-                _lastNonOrdDatetime = datetime;
-                _lastNonOrdTimestamp = _tzRounding.calc(datetime);
-            }
-            return _lastNonOrdTimestamp;
+            return round(_docIter.next());
+        }
+    }
+
+    /**
+     * Round a raw datetime to its timestamp, reusing the last result where possible.
+     * 
+     * @param datetime the datetime
+     * @return the timestamp
+     */
+    private long round(final long datetime) {
+        // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
+        // (true because we don't support granularity less than 1 sec)
+        if(datetime == _lastNonOrdDatetime || (datetime > _lastNonOrdTimestamp && datetime - _lastNonOrdTimestamp < 1000)) {
+            _lastNonOrdDatetime = datetime;
+            // _lastNonOrdTimestamp already contains right value
+        } else {
+            // Get and save new timestamp
+            _lastNonOrdDatetime = datetime;
+            _lastNonOrdTimestamp = _tzRounding.calc(datetime);
+            if(_rollupKeys != null)
+                recordRollups(_lastNonOrdTimestamp, datetime);
+        }
+        return _lastNonOrdTimestamp;
+    }
+
+    /**
+     * Record the coarser timestamps for a timestamp, in each of the rollup mappings.
+     * 
+     * @param timestamp the timestamp
+     * @param datetime a raw datetime which was rounded to it
+     */
+    private void recordRollups(final long timestamp, final long datetime) {
+        for(int i = 0; i < _rollupKeys.length; i++) {
+            _rollupKeys[i].record(timestamp, datetime);
         }
     }
 
+    /**
+     * Are timestamps for the current segment being looked up by ordinal? If so,
+     * nextTimestampIndex() and getTimestamp() may be used instead of nextTimestamp(),
+     * and the indices they return will be in the range 0 (inclusive) to timestampCount() (exclusive).
+     * 
+     * @return true/false
+     */
+    protected boolean hasTimestampOrdinals() {
+        return _keyFieldValues instanceof WithOrdinals;
+    }
+
+    /**
+     * Get the ordinals of the key field in the current segment. Only valid if hasTimestampOrdinals() is true.
+     * 
+     * @return the ordinals
+     */
+    protected Ordinals.Docs keyOrdinals() {
+        return ((WithOrdinals) _keyFieldValues).ordinals();
+    }
+
+    /**
+     * Get the index of the timestamp for a key field ordinal, as used by getTimestamp().
+     * Only valid if hasTimestampOrdinals() is true.
+     * 
+     * @param ord the ordinal
+     * @return the timestamp index, or a negative number if the ordinal's value is out of bounds
+     */
+    protected int getTimestampIndex(final int ord) {
+        return _timestampTable.index(ord);
+    }
+
+    /**
+     * Get the number of distinct timestamps in the current segment, including the placeholder
+     * at index 0 for documents with no value. Only valid if hasTimestampOrdinals() is true.
+     * 
+     * @return the number of timestamps
+     */
+    protected int timestampCount() {
+        return _timestampTable.size();
+    }
+
+    /**
+     * Get the index of the next timestamp, i.e. a pointer to the rounded value of the next available
+     * datetime. Only valid if hasTimestampOrdinals() is true.
+     * 
+     * @return the timestamp index
+     */
+    protected int nextTimestampIndex() {
+        final int index = _timestampTable.index(_docOrds.ints[_docOrdPointer]);
+        _docOrdPointer++;
+        return index;
+    }
+
+    /**
+     * Get the timestamp at the given index in the current segment. Only valid if hasTimestampOrdinals() is true.
+     * 
+     * @param index the timestamp index, as returned by nextTimestampIndex()
+     * @return the timestamp
+     */
+    protected long getTimestamp(final int index) {
+        return _timestampTable.timestamp(index);
+    }
+
     /**
      * Returns true if this iterator is getting each timestamp once per value of a value field.
      * Otherwise, it's getting each timestamp once per document.
@@ -218,4 +656,52 @@ public abstract class TimestampFirstCollector<V extends AtomicFieldData<? extend
         return _valueFieldIter == null ? null : _valueFieldIter.next();
     }
 
+    /**
+     * Iterator over datetime values which skips any outside the bounds. Reused for every doc.
+     */
+    private static final class BoundedIter implements Iter {
+
+        private final long _min;
+        private final long _max;
+        private Iter _inner;
+        private boolean _hasNext;
+        private long _next;
+
+        BoundedIter(final long min, final long max) {
+            _min = min;
+            _max = max;
+        }
+
+        BoundedIter reset(final Iter inner) {
+            _inner = inner;
+            advance();
+            return this;
+        }
+
+        private void advance() {
+            while(_inner.hasNext()) {
+                final long value = _inner.next();
+                if(value >= _min && value <= _max) {
+                    _next = value;
+                    _hasNext = true;
+                    return;
+                }
+            }
+            _hasNext = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _hasNext;
+        }
+
+        @Override
+        public long next() {
+            final long value = _next;
+            advance();
+            return value;
+        }
+
+    }
+
 }
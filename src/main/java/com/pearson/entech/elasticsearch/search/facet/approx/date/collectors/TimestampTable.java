@@ -0,0 +1,134 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.trove.list.array.TLongArrayList;
+import org.elasticsearch.index.fielddata.LongValues.WithOrdinals;
+
+/**
+ * A mapping from the ordinals of a datetime field in one segment to rounded timestamps.
+ * Once built, it is read-only, so it can be shared between collectors and threads.
+ */
+public class TimestampTable {
+
+    /**
+     * For each ordinal, a pointer into _timestamps, or -1 if the ordinal's value is out of bounds.
+     */
+    private final int[] _ordToTimestampPointers;
+
+    /**
+     * The distinct rounded timestamps, in ascending order, with a placeholder at index 0 for documents with no value.
+     */
+    private final long[] _timestamps;
+
+    /**
+     * For each timestamp, the first raw datetime which was rounded to it.
+     */
+    private final long[] _datetimes;
+
+    private TimestampTable(final int[] ordToTimestampPointers, final long[] timestamps, final long[] datetimes) {
+        _ordToTimestampPointers = ordToTimestampPointers;
+        _timestamps = timestamps;
+        _datetimes = datetimes;
+    }
+
+    /**
+     * Build a table from a segment's datetime field values.
+     *
+     * @param values the datetime field values, with ordinals
+     * @param tzRounding the rounding to apply
+     * @param filter whether to check values against the bounds
+     * @param min the lower bound (inclusive), if filtering
+     * @param max the upper bound (inclusive), if filtering
+     * @return the new table
+     */
+    public static TimestampTable build(final WithOrdinals values, final TimeZoneRounding tzRounding,
+            final boolean filter, final long min, final long max) {
+        final int maxOrd = values.ordinals().getMaxOrd();
+        int tsPointer = 0;
+
+        // timestamps holds the rounded timestamps
+        final TLongArrayList timestamps = new TLongArrayList();
+        timestamps.add(0);
+        final TLongArrayList datetimes = new TLongArrayList();
+        datetimes.add(0);
+
+        // ordToTimestampPointers has one entry for every ord
+        final int[] ordToTimestampPointers = new int[maxOrd];
+
+        // We cache these for some small optimizations
+        long lastDateTime = 0;
+        long lastTimestamp = 0;
+        for(int i = 1; i < maxOrd; i++) {
+            // Get the next ordinal's value so we can calculate its timestamp
+            final long datetime = values.getValueByOrd(i);
+
+            // Out-of-bounds ords get a negative pointer, and are skipped when iterating
+            if(filter && (datetime < min || datetime > max)) {
+                ordToTimestampPointers[i] = -1;
+                continue;
+            }
+
+            // If this datetime is less than a second after the previously-seen timestamp, it will have the same timestamp
+            // (true because we don't support granularity less than 1 sec)
+            if(datetime == lastDateTime || (datetime > lastTimestamp && datetime - lastTimestamp < 1000)) {
+                // Nothing to do: this ord will have the same pointer as the last one
+            } else {
+                // We may or may not have a new timestamp
+                final long newTimestamp = tzRounding.calc(datetime);
+                if(newTimestamp != lastTimestamp) {
+                    // We do -- save it and update pointer
+                    lastTimestamp = newTimestamp;
+                    timestamps.add(newTimestamp);
+                    datetimes.add(datetime);
+                    tsPointer++;
+                    // Otherwise this ord will have the same pointer as the last one
+                }
+            }
+            lastDateTime = datetime;
+
+            // Add timestamp pointer for this ord -- could be the same as the previous ord, or a new one
+            ordToTimestampPointers[i] = tsPointer;
+        }
+        return new TimestampTable(ordToTimestampPointers, timestamps.toArray(), datetimes.toArray());
+    }
+
+    /**
+     * Get the timestamp index for an ordinal.
+     *
+     * @param ord the ordinal
+     * @return the index, or a negative number if the ordinal's value is out of bounds
+     */
+    public int index(final int ord) {
+        return _ordToTimestampPointers[ord];
+    }
+
+    /**
+     * Get the timestamp at an index.
+     *
+     * @param index the index
+     * @return the timestamp
+     */
+    public long timestamp(final int index) {
+        return _timestamps[index];
+    }
+
+    /**
+     * Get the first raw datetime which was rounded to the timestamp at an index.
+     *
+     * @param index the index
+     * @return the datetime
+     */
+    public long datetime(final int index) {
+        return _datetimes[index];
+    }
+
+    /**
+     * Get the number of timestamps, including the placeholder at index 0.
+     *
+     * @return the number of timestamps
+     */
+    public int size() {
+        return _timestamps.length;
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.collectors;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.fielddata.LongValues.WithOrdinals;
+
+/**
+ * Shares timestamp tables between all the collectors in a request which use the same
+ * key field, rounding and bounds, so that each table is only built once per segment
+ * rather than once per facet. Safe for use by several threads at once.
+ */
+public class TimestampTableCache {
+
+    /**
+     * Tables by segment core cache key.
+     */
+    private final ConcurrentMap<Object, TimestampTable> _tables = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * Get the table for a segment, building it if no other collector has done so yet.
+     *
+     * @param context the segment
+     * @param values the datetime field values, with ordinals
+     * @param tzRounding the rounding to apply
+     * @param filter whether to check values against the bounds
+     * @param min the lower bound (inclusive), if filtering
+     * @param max the upper bound (inclusive), if filtering
+     * @return the table
+     */
+    public TimestampTable get(final AtomicReaderContext context, final WithOrdinals values, final TimeZoneRounding tzRounding,
+            final boolean filter, final long min, final long max) {
+        final Object key = context.reader().getCoreCacheKey();
+        final TimestampTable table = _tables.get(key);
+        if(table != null)
+            return table;
+
+        // Two threads may both build the same table, but only one will be kept
+        final TimestampTable built = TimestampTable.build(values, tzRounding, filter, min, max);
+        final TimestampTable existing = _tables.putIfAbsent(key, built);
+        return existing == null ? built : existing;
+    }
+
+}
@@ -25,6 +25,9 @@ public interface Constants {
     /** String representing the count field. */
     static final XContentBuilderString COUNT = new XContentBuilderString("count");
 
+    /** String representing the sample rate field. */
+    static final XContentBuilderString SAMPLE_RATE = new XContentBuilderString("sample_rate");
+
     /** String representing the distinct count field. */
     static final XContentBuilderString DISTINCT_COUNT = new XContentBuilderString("distinct_count");
 
@@ -34,6 +37,24 @@ public interface Constants {
     /** String representing the "slice field" field. */
     static final XContentBuilderString SLICE_FIELD = new XContentBuilderString("slice_field");
 
+    /** String representing the intervals field of a multi-interval facet. */
+    static final XContentBuilderString INTERVALS = new XContentBuilderString("intervals");
+
+    /** String representing the slices left out of a period when only the top slices are returned. */
+    static final XContentBuilderString OTHER = new XContentBuilderString("other");
+
+    /** String representing the period timestamps of a columnar facet. */
+    static final XContentBuilderString TIMES = new XContentBuilderString("times");
+
+    /** String representing the counts of a columnar facet. */
+    static final XContentBuilderString COUNTS = new XContentBuilderString("counts");
+
+    /** String representing the distinct counts of a columnar facet. */
+    static final XContentBuilderString DISTINCT_COUNTS = new XContentBuilderString("distinct_counts");
+
+    /** String representing the position of each period's first slice in a columnar facet. */
+    static final XContentBuilderString OFFSETS = new XContentBuilderString("offsets");
+
     /** String representing the term field. */
     static final XContentBuilderString TERM = new XContentBuilderString("term");
 
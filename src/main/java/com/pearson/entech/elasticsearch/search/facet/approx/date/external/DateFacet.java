@@ -3,10 +3,19 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.external;
 import java.io.IOException;
 import java.util.List;
 
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.Compressor;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.compress.lzf.LZFCompressor;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.function.TLongFunction;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.InternalFacet;
 
 
@@ -17,8 +26,38 @@ import org.elasticsearch.search.facet.InternalFacet;
  */
 public abstract class DateFacet<P extends ToXContent> extends InternalFacet {
 
+    /**
+     * Version of the serialized facet data: delta-encoded period keys, then per-period data, inline or LZF-compressed.
+     */
+    private static final byte DATA_VERSION = 1;
+
+    /**
+     * Serialized data at least this many bytes long is compressed. Below this size, compression
+     * costs more time than it saves on the wire.
+     */
+    public static final int COMPRESSION_THRESHOLD = 8 * 1024;
+
+    private static final Compressor __compressor = CompressorFactory.compressor(LZFCompressor.TYPE);
+
     private long _totalCount;
 
+    private float _sampleRate = 1;
+
+    private boolean _columnar;
+
+    /**
+     * Pool for reducing this facet in parallel, handed over by the executor which built it. It isn't serialized,
+     * so facets received from other nodes don't have one.
+     */
+    private ForkJoinPool _reducePool;
+
+    /**
+     * Compressed serialized data received from another node, which hasn't been read into this facet's own data
+     * structures yet. It stays compressed until it's read, so a node reducing many large shard results only holds
+     * one of them uncompressed at a time.
+     */
+    private BytesReference _pendingData;
+
     /**
      * Create a new date facet.
      * 
@@ -48,6 +87,102 @@ public abstract class DateFacet<P extends ToXContent> extends InternalFacet {
         _totalCount = count;
     }
 
+    /**
+     * Get the fraction of matching documents which were sampled to build this facet.
+     * If this is less than 1, all counts are estimates, scaled up from the sample.
+     * 
+     * @return the sample rate
+     */
+    public float getSampleRate() {
+        return _sampleRate;
+    }
+
+    /**
+     * Record that this facet was built from a sample of the matching documents,
+     * and scale its counts up by the inverse of the sample rate.
+     * 
+     * @param sampleRate the sample rate, greater than 0 and at most 1
+     */
+    public void applySampleRate(final float sampleRate) {
+        _sampleRate = sampleRate;
+        if(sampleRate < 1)
+            scaleCounts(1.0 / sampleRate);
+    }
+
+    /**
+     * Multiply all counts held by this facet by the given factor. Distinct counts
+     * are not scaled, as there is no way of knowing how many distinct values the
+     * unsampled documents would have added.
+     * 
+     * @param factor the factor
+     */
+    protected abstract void scaleCounts(double factor);
+
+    /**
+     * Is this facet rendered as columns, i.e. parallel arrays of times and counts, rather than as
+     * an object for every period?
+     * 
+     * @return true for the columnar format
+     */
+    public boolean isColumnar() {
+        return _columnar;
+    }
+
+    /**
+     * Set whether this facet is rendered as columns.
+     * 
+     * @param columnar true for the columnar format
+     */
+    public void setColumnar(final boolean columnar) {
+        _columnar = columnar;
+    }
+
+    /**
+     * Set the pool of the node building this facet, for reducing it in parallel with other facets.
+     * 
+     * @param pool the pool, or null if parallel reduce is disabled
+     */
+    public void setReducePool(final ForkJoinPool pool) {
+        _reducePool = pool;
+    }
+
+    /**
+     * Find a pool for reducing some facets in parallel. Only facets built on this node carry its pool,
+     * so there is one only if at least one of the facets comes from a local shard.
+     * 
+     * @param facets the facets
+     * @return the pool, or null if none of the facets has a pool which is still running
+     */
+    protected static ForkJoinPool reducePool(final List<Facet> facets) {
+        for(final Facet facet : facets) {
+            final ForkJoinPool pool = ((DateFacet<?>) facet)._reducePool;
+            if(pool != null && !pool.isShutdown())
+                return pool;
+        }
+        return null;
+    }
+
+    /**
+     * Keep only the top slices of each period, by count or by distinct count, and add up the rest
+     * into an "other" slice for the period. The reduced facet is trimmed again to the final size.
+     * Facets without slices ignore this.
+     * 
+     * @param size the number of slices per period to return from the reduced facet, or 0 for all of them
+     * @param shardSize the number of slices per period to keep in this facet, at least size
+     */
+    public void trimSlices(final int size, final int shardSize) {}
+
+    /**
+     * Build a new facet of the same type at a coarser interval, by merging together the periods
+     * of this facet which fall into the same coarser period. Counts are added together and distinct
+     * counters are merged. This facet is left unchanged, and the new one has a sample rate of 1.
+     * 
+     * @param name the name of the new facet
+     * @param keyMap a function mapping each timestamp in this facet to the timestamp of its coarser period
+     * @return the new facet
+     */
+    public abstract DateFacet<P> rollUp(String name, TLongFunction keyMap);
+
     /**
      * Get the time periods covered by this facet.
      * 
@@ -86,34 +221,201 @@ public abstract class DateFacet<P extends ToXContent> extends InternalFacet {
         builder.startObject(getName());
         builder.field(Constants._TYPE, getType());
         builder.field(Constants.COUNT, getTotalCount());
+        if(_sampleRate < 1)
+            builder.field(Constants.SAMPLE_RATE, _sampleRate);
         injectHeaderXContent(builder);
+        if(_columnar) {
+            columnsToXContent(builder, params);
+        } else {
+            builder.startArray(Constants.ENTRIES);
+            periodsToXContent(builder, params);
+            builder.endArray();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Render the time periods of this facet in the columnar format: parallel arrays of times,
+     * counts and so on, in chronological order, with no field names repeated per period.
+     * Facets which don't support the columnar format render their periods as usual.
+     * 
+     * @param builder an XContentBuilder to use
+     * @param params the parameters passed to toXContent()
+     * @throws IOException
+     */
+    protected void columnsToXContent(final XContentBuilder builder, final Params params) throws IOException {
         builder.startArray(Constants.ENTRIES);
+        periodsToXContent(builder, params);
+        builder.endArray();
+    }
+
+    /**
+     * Render the time periods of this facet, in chronological order. By default this renders
+     * the objects returned by getTimePeriods(). Override it to render straight from the facet's
+     * own data instead, without creating an object for every period and slice.
+     * 
+     * @param builder an XContentBuilder to use
+     * @param params the parameters passed to toXContent()
+     * @throws IOException
+     */
+    protected void periodsToXContent(final XContentBuilder builder, final Params params) throws IOException {
         for(final P period : getTimePeriods()) {
             period.toXContent(builder, params);
         }
-        builder.endArray();
-        builder.endObject();
-        return builder;
     }
 
+    /**
+     * Reads the header, but keeps large facet data in compressed form until it is needed. When reducing,
+     * facets from other shards can then be merged straight from their serialized form, one at a time,
+     * rather than all being expanded into hash maps at once. Small facet data is read straight away.
+     */
     @Override
     public final void readFrom(final StreamInput in) throws IOException {
         super.readFrom(in);
-        readData(in);
+        _sampleRate = in.readFloat();
+        final byte version = in.readByte();
+        if(version != DATA_VERSION)
+            throw new IOException("Unsupported date facet data version " + version + " in facet " + getName());
+        _columnar = in.readBoolean();
+        if(in.readBoolean()) {
+            _pendingData = in.readBytesReference().toBytesArray();
+        } else {
+            // Uncompressed data is written inline, with no length in front of it, so it can't be kept for later
+            readData(in);
+        }
     }
 
+    /**
+     * Writes the header, then the facet data. Data is only compressed if it is large -- typically
+     * distinct counters which have tipped over into estimation, whose registers are mostly zero for
+     * all but the busiest periods. Compressed data is preceded by its length, and uncompressed data
+     * is written inline. Data which was received compressed and hasn't been read is passed on as it is.
+     */
     @Override
     public final void writeTo(final StreamOutput out) throws IOException {
         super.writeTo(out);
-        writeData(out);
+        out.writeFloat(_sampleRate);
+        out.writeByte(DATA_VERSION);
+        out.writeBoolean(_columnar);
+        if(_pendingData != null) {
+            out.writeBoolean(true);
+            out.writeBytesReference(_pendingData);
+            _pendingData = null;
+            return;
+        }
+        if(estimateDataSize() >= COMPRESSION_THRESHOLD) {
+            // The data is compressed as it's written, so only the compressed bytes are buffered, to find their length
+            final BytesStreamOutput compressed = new BytesStreamOutput();
+            final StreamOutput compressing = __compressor.streamOutput(compressed);
+            writeData(compressing);
+            compressing.close();
+            out.writeBoolean(true);
+            out.writeBytesReference(compressed.bytes());
+        } else {
+            // Not worth compressing, so there's no need to buffer it either
+            out.writeBoolean(false);
+            writeData(out);
+        }
         releaseCache();
     }
 
+    /**
+     * Open a stream which decompresses a facet's serialized data as it is read.
+     * 
+     * @param facet the facet, which must have serialized data
+     * @return the stream
+     * @throws IOException
+     */
+    private static StreamInput openPendingData(final DateFacet<?> facet) throws IOException {
+        return __compressor.streamInput(facet._pendingData.streamInput());
+    }
+
+    /**
+     * Read any serialized data received from another node into this facet's own data structures.
+     * Subclasses must call this before touching their data.
+     */
+    protected final void readPendingData() {
+        if(_pendingData == null)
+            return;
+        try {
+            final StreamInput in = openPendingData(this);
+            try {
+                readData(in);
+            } finally {
+                in.close();
+            }
+        } catch(final IOException e) {
+            throw new ElasticSearchException("Unable to read facet data", e);
+        }
+        _pendingData = null;
+    }
+
+    /**
+     * Open a new stream over a facet's serialized data, if it hasn't been read yet. Several streams
+     * may be open over the same data at once, e.g. one per thread of a parallel reduce. Each stream
+     * decompresses the data as it goes, and should be closed once it has been read.
+     * 
+     * @param facet the facet
+     * @return the stream, or null if the facet has no serialized data
+     * @throws IOException
+     */
+    protected static StreamInput pendingDataStream(final DateFacet<?> facet) throws IOException {
+        return facet._pendingData == null ? null : openPendingData(facet);
+    }
+
+    /**
+     * Drop a facet's serialized data, once it has been merged into another facet.
+     * 
+     * @param facet the facet
+     * @return true if the facet had serialized data
+     */
+    protected static boolean discardPendingData(final DateFacet<?> facet) {
+        if(facet._pendingData == null)
+            return false;
+        facet._pendingData = null;
+        return true;
+    }
+
+    /**
+     * Merge the serialized data of another facet of the same type straight into this facet's data,
+     * without building the other facet's data structures. The other facet is left empty.
+     * 
+     * @param other the other facet
+     * @return true if the other facet's data was merged, or false if it had no serialized data,
+     *   in which case the caller must merge its data structures instead
+     */
+    protected final boolean mergePendingData(final DateFacet<?> other) {
+        if(other._pendingData == null)
+            return false;
+        readPendingData();
+        try {
+            final StreamInput in = openPendingData(other);
+            try {
+                mergeData(in);
+            } finally {
+                in.close();
+            }
+        } catch(final IOException e) {
+            throw new ElasticSearchException("Unable to merge facet data", e);
+        }
+        other._pendingData = null;
+        return true;
+    }
+
     /**
      * Free up any data structures for garbage collection.
      */
     protected abstract void releaseCache();
 
+    /**
+     * Estimate how many bytes writeData() will write, without serializing anything. This decides
+     * whether the data is large enough to be worth compressing, so it only needs to be roughly right.
+     * 
+     * @return the estimated size in bytes
+     */
+    protected abstract int estimateDataSize();
+
     /**
      * Serialize the facet data to a stream.
      * 
@@ -130,6 +432,14 @@ public abstract class DateFacet<P extends ToXContent> extends InternalFacet {
      */
     protected abstract void readData(StreamInput in) throws IOException;
 
+    /**
+     * Deserialize facet data from a stream, merging it into this facet's existing data as it is read.
+     * 
+     * @param in the StreamInput
+     * @throws IOException
+     */
+    protected abstract void mergeData(StreamInput in) throws IOException;
+
     /**
      * Override this class to inject additional header fields before the list
      * of facet entries (time periods) -- e.g. distinct counts. This method
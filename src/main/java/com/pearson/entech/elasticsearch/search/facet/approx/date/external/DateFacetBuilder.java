@@ -40,6 +40,7 @@ public class DateFacetBuilder extends FacetBuilder {
     private String sliceFieldName;
     private String distinctFieldName;
     private String interval = null;
+    private String[] intervals = null;
     private String preZone = null;
     private String postZone = null;
     private Boolean preZoneAdjustLargeInterval;
@@ -47,6 +48,12 @@ public class DateFacetBuilder extends FacetBuilder {
     private long preOffset = 0;
     private long postOffset = 0;
     private float factor = 1.0f;
+    private float sample = 1.0f;
+    private int size = 0;
+    private int shardSize = 0;
+    private String format;
+    private Long min;
+    private Long max;
 
     private String valueScript;
     private Map<String, Object> params;
@@ -170,6 +177,19 @@ public class DateFacetBuilder extends FacetBuilder {
         return this;
     }
 
+    /**
+     * Several intervals to compute in one go, instead of a single interval. Only the finest is actually
+     * collected; the others are rolled up from it, so they must all be made up of whole periods of the
+     * finest one. The response holds one facet per interval, named after the interval.
+     * 
+     * @param intervals the interval settings
+     * @return the builder
+     */
+    public DateFacetBuilder intervals(final String... intervals) {
+        this.intervals = intervals;
+        return this;
+    }
+
     /**
      * Should pre zone be adjusted for large (day and above) intervals. Defaults to <tt>false</tt>.
      * 
@@ -257,6 +277,78 @@ public class DateFacetBuilder extends FacetBuilder {
         return this;
     }
 
+    /**
+     * The fraction of matching documents to sample, greater than 0 and at most 1. Counts in the
+     * response are scaled up by the inverse of this rate, and the response includes the rate used.
+     * Distinct counts are not scaled. Defaults to 1, i.e. every document is counted.
+     * 
+     * @param sample the sample rate
+     * @return the builder
+     */
+    public DateFacetBuilder sample(final float sample) {
+        this.sample = sample;
+        return this;
+    }
+
+    /**
+     * The number of slices to return for each period, with the rest added up into an "other" slice.
+     * Slices are ranked by count, or by distinct count if a distinct field is set. (Sliced mode only)
+     * Defaults to 0, i.e. every slice is returned.
+     * 
+     * @param size the number of slices
+     * @return the builder
+     */
+    public DateFacetBuilder size(final int size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * The number of slices each shard returns for each period. Larger values make the top slices
+     * more accurate, at the cost of more network traffic. (Sliced mode only) Defaults to size.
+     * 
+     * @param shardSize the number of slices
+     * @return the builder
+     */
+    public DateFacetBuilder shardSize(final int shardSize) {
+        this.shardSize = shardSize;
+        return this;
+    }
+
+    /**
+     * The response format: "periods" for an object per time period, or "columnar" for parallel arrays
+     * of times and counts, with slices as a label dictionary and a sparse matrix. Defaults to "periods".
+     * 
+     * @param format the format
+     * @return the builder
+     */
+    public DateFacetBuilder format(final String format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Ignore datetime values before this time. Segments with no values between min and max are skipped entirely.
+     * 
+     * @param min the lower bound (inclusive) in milliseconds since the epoch
+     * @return the builder
+     */
+    public DateFacetBuilder min(final long min) {
+        this.min = min;
+        return this;
+    }
+
+    /**
+     * Ignore datetime values after this time. Segments with no values between min and max are skipped entirely.
+     * 
+     * @param max the upper bound (inclusive) in milliseconds since the epoch
+     * @return the builder
+     */
+    public DateFacetBuilder max(final long max) {
+        this.max = max;
+        return this;
+    }
+
     /**
      * Should the facet run in global mode (not bounded by the search query) or not (bounded by
      * the search query). Defaults to <tt>false</tt>.
@@ -300,7 +392,7 @@ public class DateFacetBuilder extends FacetBuilder {
         if(keyFieldName == null) {
             throw new SearchSourceBuilderException("field must be set on date histogram facet for facet [" + name + "]");
         }
-        if(interval == null) {
+        if(interval == null && intervals == null) {
             throw new SearchSourceBuilderException("interval must be set on date histogram facet for facet [" + name + "]");
         }
         builder.startObject(name);
@@ -327,7 +419,11 @@ public class DateFacetBuilder extends FacetBuilder {
                 builder.field("params", this.params);
             }
         }
-        builder.field("interval", interval);
+        if(intervals != null) {
+            builder.array("intervals", (Object[]) intervals);
+        } else {
+            builder.field("interval", interval);
+        }
         if(preZone != null) {
             builder.field("pre_zone", preZone);
         }
@@ -349,6 +445,24 @@ public class DateFacetBuilder extends FacetBuilder {
         if(exactThreshold != -1) {
             builder.field("exact_threshold", exactThreshold);
         }
+        if(sample != 1.0f) {
+            builder.field("sample", sample);
+        }
+        if(size != 0) {
+            builder.field("size", size);
+        }
+        if(shardSize != 0) {
+            builder.field("shard_size", shardSize);
+        }
+        if(format != null) {
+            builder.field("format", format);
+        }
+        if(min != null) {
+            builder.field("min", min);
+        }
+        if(max != null) {
+            builder.field("max", max);
+        }
         builder.endObject();
 
         addFilterFacetAndGlobal(builder, params);
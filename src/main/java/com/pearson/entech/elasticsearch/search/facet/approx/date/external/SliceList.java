@@ -0,0 +1,52 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.external;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+/**
+ * The top slices of a time period, when a facet only returns the top slices.
+ * Everything else in the period is added up into an "other" slice, which has no label.
+ * 
+ * @param <S> the slice type
+ */
+public class SliceList<S extends Slice<?>> extends XContentEnabledList<S> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final S _other;
+
+    /**
+     * Create an empty list.
+     * 
+     * @param initialCapacity the starting capacity
+     * @param name the name of the new list, as XContent
+     * @param other the total of the slices left out
+     */
+    public SliceList(final int initialCapacity, final XContentBuilderString name, final S other) {
+        super(initialCapacity, name);
+        _other = other;
+    }
+
+    /**
+     * Get the total of the slices left out of this list.
+     * 
+     * @return the "other" slice
+     */
+    public S getOther() {
+        return _other;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        super.toXContent(builder, params);
+        builder.startObject(Constants.OTHER);
+        builder.field(Constants.COUNT, _other.getTotalCount());
+        if(_other instanceof HasDistinct)
+            builder.field(Constants.DISTINCT_COUNT, ((HasDistinct) _other).getDistinctCount());
+        builder.endObject();
+        return builder;
+    }
+
+}
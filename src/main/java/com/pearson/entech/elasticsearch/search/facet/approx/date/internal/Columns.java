@@ -0,0 +1,107 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import java.io.IOException;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Constants;
+
+/**
+ * Rendering for the columnar format, where a facet's periods are rendered as parallel arrays.
+ *
+ * Slices are rendered as a dictionary of labels, followed by a sparse matrix in compressed row form:
+ * the slices of period i are at positions offsets[i] to offsets[i + 1] of the matrix's own
+ * parallel arrays of label ids, counts and distinct counts.
+ */
+final class Columns {
+
+    private Columns() {}
+
+    /**
+     * Render an array of values.
+     *
+     * @param builder the builder
+     * @param name the field name
+     * @param values the values
+     * @throws IOException
+     */
+    static void array(final XContentBuilder builder, final XContentBuilderString name, final long[] values) throws IOException {
+        builder.startArray(name);
+        for(final long value : values) {
+            builder.value(value);
+        }
+        builder.endArray();
+    }
+
+    /**
+     * Render an array of values.
+     *
+     * @param builder the builder
+     * @param name the field name
+     * @param values the values
+     * @throws IOException
+     */
+    static void array(final XContentBuilder builder, final XContentBuilderString name, final int[] values) throws IOException {
+        builder.startArray(name);
+        for(final int value : values) {
+            builder.value(value);
+        }
+        builder.endArray();
+    }
+
+    /**
+     * Render the slices of a facet as a label dictionary and a sparse matrix.
+     *
+     * @param builder the builder
+     * @param starts the position of each period's first slice, followed by the total number of slices
+     * @param labels the label of each slice
+     * @param counts the count of each slice
+     * @param distincts the distinct count of each slice, or null for facets without distinct counts
+     * @throws IOException
+     */
+    static void slices(final XContentBuilder builder, final int[] starts, final BytesRef[] labels,
+            final long[] counts, final long[] distincts) throws IOException {
+        // Number the labels in order of appearance
+        final TObjectIntHashMap<BytesRef> ids = new TObjectIntHashMap<BytesRef>(16, 0.5f, -1);
+        final int[] labelIds = new int[labels.length];
+        builder.startArray(Constants.LABELS);
+        for(int i = 0; i < labels.length; i++) {
+            int id = ids.get(labels[i]);
+            if(id == -1) {
+                id = ids.size();
+                ids.put(labels[i], id);
+                builder.value(labels[i].utf8ToString());
+            }
+            labelIds[i] = id;
+        }
+        builder.endArray();
+
+        builder.startObject(Constants.SLICES);
+        array(builder, Constants.OFFSETS, starts);
+        array(builder, Constants.LABELS, labelIds);
+        array(builder, Constants.COUNTS, counts);
+        if(distincts != null)
+            array(builder, Constants.DISTINCT_COUNTS, distincts);
+        builder.endObject();
+    }
+
+    /**
+     * Render the totals of the slices left out of each period by trimming.
+     *
+     * @param builder the builder
+     * @param counts the count left out of each period
+     * @param distincts the distinct count left out of each period, or null for facets without distinct counts
+     * @throws IOException
+     */
+    static void other(final XContentBuilder builder, final long[] counts, final long[] distincts) throws IOException {
+        builder.startObject(Constants.OTHER);
+        array(builder, Constants.COUNTS, counts);
+        if(distincts != null)
+            array(builder, Constants.DISTINCT_COUNTS, distincts);
+        builder.endObject();
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import org.elasticsearch.common.trove.function.TIntFunction;
+
+/**
+ * Function for scaling up the int counts held in Trove maps, e.g. after sampling.
+ */
+final class CountScaler implements TIntFunction {
+
+    private final double _factor;
+
+    /**
+     * Create a new scaler.
+     * 
+     * @param factor the factor to multiply counts by
+     */
+    CountScaler(final double factor) {
+        _factor = factor;
+    }
+
+    @Override
+    public int execute(final int count) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(count * _factor));
+    }
+
+}
@@ -17,6 +17,8 @@ import java.util.List;
 import org.apache.lucene.codecs.bloom.MurmurHash2;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 
 import com.clearspring.analytics.stream.cardinality.AdaptiveCounting;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
@@ -62,6 +64,9 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
     /** HyperLogLog Plus constant for serialization. */
     protected final static byte HLPC = 5;
 
+    /** StreamableHyperLogLog constant for serialization, whose registers are written straight to the stream. */
+    protected final static byte SHLC = 6;
+
     /**
      * Cardinality after which exact counting gives way to estimation.
      */
@@ -135,6 +140,111 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
             tip();
     }
 
+    /**
+     * Deserialization constructor. Creates a new object from data written by writeTo(). Estimators
+     * are read straight from the stream, without building an empty one first or copying any bytes.
+     *
+     * @param in the stream to read from
+     * @param tippingPoint Cardinality at which exact counting gives way to estimation
+     * @param builder for _estimator to use if there are too many bytes for our liking
+     * @throws IOException
+     */
+    public CountThenEstimateBytes(final StreamInput in, final int tippingPoint,
+            final IBuilder<ICardinality> builder) throws IOException {
+        _tippingPoint = tippingPoint;
+        if(in.readBoolean()) {
+            final byte type = in.readByte();
+            if(type == SHLC) {
+                _estimator = StreamableHyperLogLog.readFrom(in);
+            } else {
+                final byte[] bytes = new byte[in.readVInt()];
+                in.readBytes(bytes, 0, bytes.length);
+                _estimator = readEstimator(type, bytes);
+            }
+            _tipped = true;
+            _compacted = true;
+        } else {
+            _builder = builder;
+            _counter = new BytesRefHash();
+            final int count = in.readVInt();
+            final BytesRef scratch = new BytesRef();
+            for(int i = 0; i < count; i++) {
+                final int length = in.readVInt();
+                scratch.grow(length);
+                in.readBytes(scratch.bytes, 0, length);
+                scratch.length = length;
+                _counter.add(scratch);
+                if(length > _longestBytesRefSize)
+                    _longestBytesRefSize = length;
+            }
+            if(_counter.size() > tippingPoint)
+                tip();
+        }
+    }
+
+    /**
+     * Write this object to a stream, for reading back with the StreamInput constructor.
+     * Unlike getBytes(), this leaves the exact counter intact.
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeBoolean(_tipped);
+        if(_tipped) {
+            if(_estimator instanceof StreamableHyperLogLog) {
+                out.writeByte(SHLC);
+                ((StreamableHyperLogLog) _estimator).writeTo(out);
+            } else {
+                out.writeByte(estimatorType(_estimator));
+                final byte[] bytes = _estimator.getBytes();
+                out.writeVInt(bytes.length);
+                out.writeBytes(bytes);
+            }
+        } else {
+            // Ids in a BytesRefHash which hasn't been compacted run from 0 to size - 1
+            final BytesRef scratch = new BytesRef();
+            final int size = _counter.size();
+            out.writeVInt(size);
+            for(int id = 0; id < size; id++) {
+                _counter.get(id, scratch);
+                out.writeVInt(scratch.length);
+                out.writeBytes(scratch.bytes, scratch.offset, scratch.length);
+            }
+        }
+    }
+
+    /**
+     * Estimate how many bytes writeTo() will write, without writing anything.
+     *
+     * @return the estimate, which is never less than the real size for an exact counter
+     */
+    public int estimateSize() {
+        if(_tipped)
+            return 10 + _estimator.sizeof();
+        return 5 + _counter.size() * (5 + _longestBytesRefSize);
+    }
+
+    /**
+     * Skip over an object written by writeTo(), without deserializing it.
+     *
+     * @param in the stream, positioned at the start of the object
+     * @throws IOException
+     */
+    static void skip(final StreamInput in) throws IOException {
+        if(in.readBoolean()) {
+            if(in.readByte() == SHLC)
+                StreamableHyperLogLog.skip(in);
+            else
+                ParallelReduce.skipBytes(in, in.readVInt());
+        } else {
+            final int count = in.readVInt();
+            for(int i = 0; i < count; i++) {
+                ParallelReduce.skipBytes(in, in.readVInt());
+            }
+        }
+    }
+
     @Override
     public long cardinality() {
         if(_tipped) {
@@ -253,27 +363,7 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
             final byte type = in.readByte();
             final byte[] bytes = new byte[in.readInt()];
             in.readFully(bytes);
-
-            switch(type)
-            {
-            case LC:
-                _estimator = new LinearCounting(bytes);
-                break;
-            case AC:
-                _estimator = new AdaptiveCounting(bytes);
-                break;
-            case HLC:
-                _estimator = HyperLogLog.Builder.build(bytes);
-                break;
-            case HLPC:
-                _estimator = HyperLogLogPlus.Builder.build(bytes);
-                break;
-            case LLC:
-                _estimator = new LinearCounting(bytes);
-                break;
-            default:
-                throw new IOException("Unrecognized estimator type: " + type);
-            }
+            _estimator = readEstimator(type, bytes);
 
         } else {
 
@@ -305,19 +395,7 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         out.writeBoolean(_tipped);
         if(_tipped) {
 
-            if(_estimator instanceof LinearCounting)
-                out.writeByte(LC);
-            else if(_estimator instanceof AdaptiveCounting)
-                out.writeByte(AC);
-            else if(_estimator instanceof HyperLogLog)
-                out.writeByte(HLC);
-            else if(_estimator instanceof HyperLogLogPlus)
-                out.writeByte(HLPC);
-            else if(_estimator instanceof LogLog)
-                out.writeByte(LLC);
-            else
-                throw new IOException("Estimator unsupported for serialization: " + _estimator.getClass().getName());
-
+            out.writeByte(estimatorType(_estimator));
             final byte[] bytes = _estimator.getBytes();
             out.writeInt(bytes.length);
             out.write(bytes);
@@ -341,6 +419,85 @@ public class CountThenEstimateBytes implements ICardinality, Externalizable
         }
     }
 
+    /**
+     * Find the serialization type code of an estimator.
+     * 
+     * @param estimator the estimator
+     * @return the type code
+     * @throws IOException if the estimator type is not supported
+     */
+    private static byte estimatorType(final ICardinality estimator) throws IOException {
+        if(estimator instanceof LinearCounting)
+            return LC;
+        else if(estimator instanceof AdaptiveCounting)
+            return AC;
+        else if(estimator instanceof HyperLogLog)
+            return HLC;
+        else if(estimator instanceof HyperLogLogPlus)
+            return HLPC;
+        else if(estimator instanceof LogLog)
+            return LLC;
+        else
+            throw new IOException("Estimator unsupported for serialization: " + estimator.getClass().getName());
+    }
+
+    /**
+     * Rebuild an estimator from its serialized form.
+     * 
+     * @param type the type code
+     * @param bytes the serialized estimator
+     * @return the estimator
+     * @throws IOException if the type code is not recognized
+     */
+    private static ICardinality readEstimator(final byte type, final byte[] bytes) throws IOException {
+        switch(type)
+        {
+        case LC:
+            return new LinearCounting(bytes);
+        case AC:
+            return new AdaptiveCounting(bytes);
+        case HLC:
+            return StreamableHyperLogLog.build(bytes);
+        case HLPC:
+            return HyperLogLogPlus.Builder.build(bytes);
+        case LLC:
+            return new LinearCounting(bytes);
+        default:
+            throw new IOException("Unrecognized estimator type: " + type);
+        }
+    }
+
+    /**
+     * Make an independent copy of this object without disturbing it (unlike serializing
+     * or merging, which empty the exact counter). The copy can then be merged or serialized
+     * while this instance remains usable.
+     * 
+     * @return the copy
+     * @throws IOException if the estimator could not be copied
+     */
+    public CountThenEstimateBytes copy() throws IOException {
+        final CountThenEstimateBytes copy;
+        if(_tipped) {
+            copy = new CountThenEstimateBytes(0, new LinearCounting.Builder(1));
+            copy._tippingPoint = _tippingPoint;
+            if(_estimator instanceof StreamableHyperLogLog)
+                copy._estimator = ((StreamableHyperLogLog) _estimator).copy();
+            else
+                copy._estimator = readEstimator(estimatorType(_estimator), _estimator.getBytes());
+        } else {
+            copy = new CountThenEstimateBytes(_tippingPoint, _builder);
+            // Ids in a BytesRefHash which hasn't been compacted run from 0 to size - 1
+            final BytesRef scratch = new BytesRef();
+            final int size = _counter.size();
+            for(int id = 0; id < size; id++) {
+                _counter.get(id, scratch);
+                copy._counter.add(scratch);
+            }
+            copy._longestBytesRefSize = _longestBytesRefSize;
+        }
+        return copy;
+    }
+
     @Override
     public ICardinality merge(final ICardinality... estimators) throws CardinalityMergeException {
         if(estimators == null)
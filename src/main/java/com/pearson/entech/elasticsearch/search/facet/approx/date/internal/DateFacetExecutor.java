@@ -1,66 +1,261 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.elasticsearch.common.util.concurrent.jsr166y.RecursiveAction;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
+import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.FacetExecutor;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.InternalFacet;
 
+import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.BuildableCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.CountingCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.DistinctCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.NullFieldData;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.RollupKeys;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.SlicedCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.SlicedDistinctCollector;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.TimestampFirstCollector;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.TimestampTableCache;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
 
 /**
  * Executor for all date facets.
  */
 public class DateFacetExecutor extends FacetExecutor {
 
+    private final LongArrayIndexFieldData _keyFieldData;
+    private final IndexFieldData<?> _valueFieldData;
+    private final IndexFieldData<?> _distinctFieldData;
+    private final IndexFieldData<?> _sliceFieldData;
+    private final TimeZoneRounding _tzRounding;
+    private final int _exactThreshold;
+    private final float _sampleRate;
+    private final long _min;
+    private final long _max;
+    private final TimestampTableCache _timestampTableCache;
+
+    /**
+     * Names of all the intervals to build facets for, or null for just the one interval.
+     */
+    private final String[] _intervals;
+
+    /**
+     * Position in _intervals of the interval whose rounding is _tzRounding, which is the only one collected.
+     */
+    private final int _collectedInterval;
+
+    /**
+     * Roundings for the other intervals, in the order they appear in _intervals.
+     */
+    private final TimeZoneRounding[] _rollupRoundings;
+
+    /**
+     * The number of slices per period to return once reduced, or 0 for all of them.
+     */
+    private final int _sliceSize;
+
+    /**
+     * The number of slices per period to return from this shard.
+     */
+    private final int _shardSliceSize;
+
+    /**
+     * Whether the facets are rendered in the columnar format.
+     */
+    private final boolean _columnar;
+
     private final TimestampFirstCollector<?> _collector;
 
+    /**
+     * Pool for collecting segments in parallel in post mode, or null if parallel collection is disabled.
+     */
+    private final ForkJoinPool _pool;
+
+    /**
+     * Pool for reducing the facets built here in parallel, or null if parallel reduce is disabled.
+     */
+    private final ForkJoinPool _reducePool;
+
+    /**
+     * Collectors used by the parallel post phase, one per worker, or null if it hasn't run.
+     */
+    private List<TimestampFirstCollector<?>> _workerCollectors;
+
     // TODO proper use of generics
 
     /**
      * Create a new executor.
-     * 
+     *
      * @param keyFieldData field data for the datetime field used for timestamps
      * @param valueFieldData field data for the optional value field, can be null
      * @param distinctFieldData field data for the optional distinct field, can be null
      * @param sliceFieldData field data for the optional slice field, can be null
-     * @param tzRounding a timezone rounding object
-     * @param exactThreshold exact count threshold when doing distincts
+     * @param tzRounding a timezone rounding object for the finest interval, which must also appear in the
+     *   options' interval roundings if there are any
+     * @param options everything else, with defaults for whatever the request didn't set
      */
     public DateFacetExecutor(final LongArrayIndexFieldData keyFieldData, final IndexFieldData<?> valueFieldData,
             final IndexFieldData<?> distinctFieldData, final IndexFieldData<?> sliceFieldData,
-            final TimeZoneRounding tzRounding, final int exactThreshold) {
+            final TimeZoneRounding tzRounding, final Options options) {
+        _keyFieldData = keyFieldData;
+        _valueFieldData = valueFieldData;
+        _distinctFieldData = distinctFieldData;
+        _sliceFieldData = sliceFieldData;
+        _tzRounding = tzRounding;
+        _exactThreshold = options._exactThreshold;
+        _pool = options._pool;
+        _reducePool = options._reducePool;
+        _sampleRate = options._sampleRate;
+        _min = options._min;
+        _max = options._max;
+        _timestampTableCache = options._timestampTableCache;
+        _intervals = options._intervals;
+        _sliceSize = options._sliceSize;
+        _shardSliceSize = options._shardSliceSize;
+        _columnar = options._columnar;
+        if(_intervals == null) {
+            _collectedInterval = 0;
+            _rollupRoundings = null;
+        } else {
+            // Only the finest interval is collected; the rest are rolled up from it
+            int collected = -1;
+            _rollupRoundings = new TimeZoneRounding[_intervals.length - 1];
+            for(int i = 0, j = 0; i < _intervals.length; i++) {
+                if(options._intervalRoundings[i] == tzRounding && collected < 0)
+                    collected = i;
+                else
+                    _rollupRoundings[j++] = options._intervalRoundings[i];
+            }
+            if(collected < 0)
+                throw new IllegalArgumentException("The collected rounding must be one of the interval roundings");
+            _collectedInterval = collected;
+        }
+        _collector = newCollector();
+    }
+
+    /**
+     * Create a new collector of the right type for the fields in use, with the sample rate, bounds and table cache set.
+     * Each collector has its own state, including its own sampler.
+     *
+     * @return the collector
+     */
+    private TimestampFirstCollector<?> newCollector() {
+        final TimestampFirstCollector<?> collector = newUnsampledCollector();
+        collector.setSampleRate(_sampleRate);
+        collector.setBounds(_min, _max);
+        collector.setTimestampTableCache(_timestampTableCache);
+        if(_rollupRoundings != null)
+            collector.setRollups(_rollupRoundings);
+        return collector;
+    }
 
-        if(distinctFieldData == null && sliceFieldData == null)
-            if(valueFieldData == null)
-                _collector = new CountingCollector<NullFieldData>(keyFieldData, tzRounding);
+    /**
+     * Create a new collector of the right type for the fields in use, without setting its sample rate or bounds.
+     *
+     * @return the collector
+     */
+    private TimestampFirstCollector<?> newUnsampledCollector() {
+        if(_distinctFieldData == null && _sliceFieldData == null)
+            if(_valueFieldData == null)
+                return new CountingCollector<NullFieldData>(_keyFieldData, _tzRounding);
             else
-                _collector = new CountingCollector(keyFieldData, valueFieldData, tzRounding);
-        else if(distinctFieldData == null)
-            if(valueFieldData == null)
-                _collector = new SlicedCollector(keyFieldData, sliceFieldData, tzRounding);
+                return new CountingCollector(_keyFieldData, _valueFieldData, _tzRounding);
+        else if(_distinctFieldData == null)
+            if(_valueFieldData == null)
+                return new SlicedCollector(_keyFieldData, _sliceFieldData, _tzRounding);
             else
-                _collector = new SlicedCollector(keyFieldData, valueFieldData, sliceFieldData, tzRounding);
-        else if(sliceFieldData == null)
-            if(valueFieldData == null)
-                _collector = new DistinctCollector(keyFieldData, distinctFieldData, tzRounding, exactThreshold);
+                return new SlicedCollector(_keyFieldData, _valueFieldData, _sliceFieldData, _tzRounding);
+        else if(_sliceFieldData == null)
+            if(_valueFieldData == null)
+                return new DistinctCollector(_keyFieldData, _distinctFieldData, _tzRounding, _exactThreshold);
             else
                 throw new FacetPhaseExecutionException("unknown date_facet", "Can't use distinct_field and value_field together");
-        else if(valueFieldData == null)
-            _collector = new SlicedDistinctCollector(keyFieldData, sliceFieldData, distinctFieldData, tzRounding, exactThreshold);
+        else if(_valueFieldData == null)
+            return new SlicedDistinctCollector(_keyFieldData, _sliceFieldData, _distinctFieldData, _tzRounding, _exactThreshold);
         else
             throw new FacetPhaseExecutionException("unknown date_facet", "Can't use distinct_field and value_field together");
     }
 
     @Override
     public InternalFacet buildFacet(final String facetName) {
-        return _collector.build(facetName);
+        final String collectedName = _intervals == null ? facetName : _intervals[_collectedInterval];
+        final DateFacet<?> facet;
+        final RollupKeys[] rollupKeys;
+        if(_workerCollectors == null) {
+            facet = (DateFacet<?>) _collector.build(collectedName);
+            rollupKeys = _collector.getRollupKeys();
+        } else {
+            // Merge the output of the parallel workers using the same logic as for merging shards
+            final List<Facet> facets = newArrayListWithCapacity(_workerCollectors.size());
+            for(final BuildableCollector collector : _workerCollectors) {
+                final DateFacet<?> workerFacet = (DateFacet<?>) collector.build(collectedName);
+                workerFacet.setReducePool(_reducePool);
+                facets.add(workerFacet);
+            }
+            rollupKeys = mergeRollupKeys(_workerCollectors);
+            _workerCollectors = null;
+            facet = (DateFacet<?>) ((InternalFacet) facets.get(0)).reduce(facets);
+        }
+
+        if(_intervals == null) {
+            facet.trimSlices(_sliceSize, _shardSliceSize);
+            facet.setColumnar(_columnar);
+            facet.setReducePool(_reducePool);
+            // Scale up the counts once, here, rather than separately in each collector
+            facet.applySampleRate(_sampleRate);
+            return facet;
+        }
+
+        // Roll up the coarser intervals before scaling, so rounding errors don't add up
+        final List<DateFacet<?>> facets = newArrayListWithCapacity(_intervals.length);
+        for(int i = 0, j = 0; i < _intervals.length; i++) {
+            if(i == _collectedInterval) {
+                facets.add(facet);
+            } else {
+                facets.add(facet.rollUp(_intervals[i], rollupKeys[j]));
+                j++;
+            }
+        }
+        for(final DateFacet<?> intervalFacet : facets) {
+            intervalFacet.trimSlices(_sliceSize, _shardSliceSize);
+            intervalFacet.setColumnar(_columnar);
+            intervalFacet.setReducePool(_reducePool);
+            intervalFacet.applySampleRate(_sampleRate);
+        }
+        return new InternalMultiIntervalFacet(facetName, facets);
+    }
+
+    /**
+     * Combine the rollup key mappings recorded by several collectors, each of which saw different segments.
+     *
+     * @param collectors the collectors
+     * @return the combined mappings
+     */
+    private static RollupKeys[] mergeRollupKeys(final List<TimestampFirstCollector<?>> collectors) {
+        final RollupKeys[] merged = collectors.get(0).getRollupKeys();
+        if(merged == null)
+            return null;
+        for(int i = 1; i < collectors.size(); i++) {
+            final RollupKeys[] keys = collectors.get(i).getRollupKeys();
+            for(int j = 0; j < merged.length; j++) {
+                merged[j].merge(keys[j]);
+            }
+        }
+        return merged;
     }
 
     @Override
@@ -68,4 +263,244 @@ public class DateFacetExecutor extends FacetExecutor {
         return _collector;
     }
 
+    @Override
+    public Post post() {
+        if(_pool == null)
+            return super.post();
+        return new ParallelPost();
+    }
+
+    /**
+     * Post phase which divides the segments between the threads of a pool,
+     * each of which collects its segments using its own collector.
+     */
+    private final class ParallelPost extends Post {
+
+        @Override
+        public void executePost(final List<ContextDocIdSet> docSets) throws IOException {
+            final int workers = Math.min(_pool.getParallelism(), docSets.size());
+            if(workers < 2) {
+                // Not worth the overhead
+                new Post.Collector(_collector).executePost(docSets);
+                return;
+            }
+
+            // Share out the segments, biggest first, always to the worker with the fewest docs so far
+            final List<ContextDocIdSet> bySize = newArrayList(docSets);
+            Collections.sort(bySize, LargestSegmentFirst.INSTANCE);
+            final List<SegmentCollection> tasks = newArrayListWithCapacity(workers);
+            for(int i = 0; i < workers; i++) {
+                tasks.add(new SegmentCollection(newCollector()));
+            }
+            for(final ContextDocIdSet docSet : bySize) {
+                SegmentCollection smallest = tasks.get(0);
+                for(int i = 1; i < workers; i++) {
+                    if(tasks.get(i).docCount < smallest.docCount)
+                        smallest = tasks.get(i);
+                }
+                smallest.add(docSet);
+            }
+
+            _pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+
+            _workerCollectors = newArrayListWithCapacity(workers);
+            for(final SegmentCollection task : tasks) {
+                _workerCollectors.add(task.collector);
+            }
+        }
+
+    }
+
+    /**
+     * A task which runs a collector over a list of segments.
+     */
+    private static final class SegmentCollection extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final TimestampFirstCollector<?> collector;
+        final List<ContextDocIdSet> docSets = newArrayList();
+        long docCount = 0;
+
+        SegmentCollection(final TimestampFirstCollector<?> collector) {
+            this.collector = collector;
+        }
+
+        void add(final ContextDocIdSet docSet) {
+            docSets.add(docSet);
+            docCount += docSet.context.reader().maxDoc();
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for(final ContextDocIdSet docSet : docSets) {
+                    collector.setNextReader(docSet.context);
+                    final DocIdSetIterator iter = docSet.docSet.iterator();
+                    if(iter == null)
+                        continue;
+                    int doc;
+                    while((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        collector.collect(doc);
+                    }
+                }
+                collector.postCollection();
+            } catch(final IOException e) {
+                throw new ElasticSearchException("Failed to collect date facet segments", e);
+            }
+        }
+
+    }
+
+    /**
+     * Comparator for sorting segments into descending order of size.
+     */
+    private static enum LargestSegmentFirst implements Comparator<ContextDocIdSet> {
+
+        INSTANCE;
+
+        @Override
+        public int compare(final ContextDocIdSet o1, final ContextDocIdSet o2) {
+            final int size1 = o1.context.reader().maxDoc();
+            final int size2 = o2.context.reader().maxDoc();
+            return size1 > size2 ? -1 : (size1 == size2 ? 0 : 1);
+        }
+
+    }
+
+    /**
+     * Everything about an executor apart from its fields and rounding. Each setter returns the options,
+     * so that calls can be chained; anything not set keeps its default.
+     */
+    public static class Options {
+
+        private int _exactThreshold = 1000;
+        private ForkJoinPool _pool;
+        private ForkJoinPool _reducePool;
+        private float _sampleRate = 1;
+        private long _min = Long.MIN_VALUE;
+        private long _max = Long.MAX_VALUE;
+        private TimestampTableCache _timestampTableCache;
+        private String[] _intervals;
+        private TimeZoneRounding[] _intervalRoundings;
+        private int _sliceSize;
+        private int _shardSliceSize;
+        private boolean _columnar;
+
+        /**
+         * Set the exact count threshold when doing distincts. Defaults to 1000.
+         *
+         * @param exactThreshold the threshold
+         * @return these options
+         */
+        public Options exactThreshold(final int exactThreshold) {
+            _exactThreshold = exactThreshold;
+            return this;
+        }
+
+        /**
+         * Set a pool for collecting segments in parallel in post mode. Defaults to null, to collect them sequentially.
+         *
+         * @param pool the pool, or null
+         * @return these options
+         */
+        public Options pool(final ForkJoinPool pool) {
+            _pool = pool;
+            return this;
+        }
+
+        /**
+         * Set a pool for reducing the built facets in parallel. Defaults to null, to reduce them sequentially.
+         *
+         * @param reducePool the pool, or null
+         * @return these options
+         */
+        public Options reducePool(final ForkJoinPool reducePool) {
+            _reducePool = reducePool;
+            return this;
+        }
+
+        /**
+         * Set the fraction of matching docs to collect. Defaults to 1.
+         *
+         * @param sampleRate the sample rate, greater than 0 and at most 1
+         * @return these options
+         */
+        public Options sampleRate(final float sampleRate) {
+            _sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Set the bounds outside which datetime values are ignored. Defaults to no bounds.
+         *
+         * @param min the lowest value collected; Long.MIN_VALUE for no lower bound
+         * @param max the highest value collected; Long.MAX_VALUE for no upper bound
+         * @return these options
+         */
+        public Options bounds(final long min, final long max) {
+            _min = min;
+            _max = max;
+            return this;
+        }
+
+        /**
+         * Set a cache of timestamp tables shared with other date facets using the same key field,
+         * rounding and bounds. Defaults to null, to not share them.
+         *
+         * @param timestampTableCache the cache, or null
+         * @return these options
+         */
+        public Options timestampTableCache(final TimestampTableCache timestampTableCache) {
+            _timestampTableCache = timestampTableCache;
+            return this;
+        }
+
+        /**
+         * Set the intervals to build facets for. Defaults to null, to build a single facet for the executor's rounding.
+         *
+         * @param intervals names of the intervals, or null
+         * @param intervalRoundings a timezone rounding object for each of the intervals; every period of each one
+         *   must be made up of whole periods of the executor's rounding
+         * @return these options
+         */
+        public Options intervals(final String[] intervals, final TimeZoneRounding[] intervalRoundings) {
+            _intervals = intervals;
+            _intervalRoundings = intervalRoundings;
+            return this;
+        }
+
+        /**
+         * Set the number of slices per period to return. Defaults to 0 for both, to return all of them.
+         *
+         * @param sliceSize the number of slices per period to return once reduced, or 0 for all of them
+         * @param shardSliceSize the number of slices per period to return from each shard, at least sliceSize
+         * @return these options
+         */
+        public Options sliceSizes(final int sliceSize, final int shardSliceSize) {
+            _sliceSize = sliceSize;
+            _shardSliceSize = shardSliceSize;
+            return this;
+        }
+
+        /**
+         * Set whether to render the facets as parallel arrays rather than an object per period. Defaults to false.
+         *
+         * @param columnar true for the columnar format
+         * @return these options
+         */
+        public Options columnar(final boolean columnar) {
+            _columnar = columnar;
+            return this;
+        }
+
+    }
+
 }
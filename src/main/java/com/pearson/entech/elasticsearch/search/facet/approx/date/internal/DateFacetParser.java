@@ -1,6 +1,12 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.MapBuilder;
@@ -11,12 +17,14 @@ import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.joda.time.Chronology;
 import org.elasticsearch.common.joda.time.DateTimeField;
 import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.DurationFieldType;
 import org.elasticsearch.common.joda.time.MutableDateTime;
 import org.elasticsearch.common.joda.time.chrono.ISOChronology;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.trove.impl.Constants;
 import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.plain.LongArrayIndexFieldData;
@@ -26,24 +34,69 @@ import org.elasticsearch.search.facet.FacetParser;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.internal.SearchContext;
 
+import com.pearson.entech.elasticsearch.search.facet.approx.date.collectors.TimestampTableCache;
+
 /**
  * This class is responsible for parsing a date facet request, and creating a
  * correctly-configured DateFacetExecutor for actually handling the query.
  */
 public class DateFacetParser extends AbstractComponent implements FacetParser {
 
+    /**
+     * Node setting to enable collecting segments in parallel within each shard (post mode only).
+     */
+    public static final String PARALLEL_ENABLED_SETTING = "approx.date_facet.parallel.enabled";
+
+    /**
+     * Node setting for the number of threads to use for parallel segment collection and parallel reduce.
+     * Defaults to the number of available processors.
+     */
+    public static final String PARALLEL_THREADS_SETTING = "approx.date_facet.parallel.threads";
+
+    /**
+     * Node setting to enable merging the periods of distinct date facets in parallel, when this node reduces shard results.
+     */
+    public static final String PARALLEL_REDUCE_ENABLED_SETTING = "approx.date_facet.parallel_reduce.enabled";
+
+    private static final long DAY_MILLIS = TimeValue.timeValueHours(24).millis();
+
     private final ImmutableMap<String, DateFieldParser> dateFieldParsers;
     private final TObjectIntHashMap<String> rounding = new TObjectIntHashMap<String>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
 
+    /**
+     * Pool for collecting segments in parallel, shared by all date facets on this node, or null if disabled.
+     * Owned by DateFacetPool, which shuts it down when the node closes.
+     */
+    private final ForkJoinPool _pool;
+
+    /**
+     * Pool for reducing distinct date facets in parallel, or null if disabled. Handed to every facet built
+     * on this node, as facets are reduced without any access to the node. Also owned by DateFacetPool.
+     */
+    private final ForkJoinPool _reducePool;
+
+    /**
+     * Timestamp table caches for each request, keyed by a description of the key field, rounding and bounds.
+     * Date facets in the same request with the same description share a cache, so the key field's
+     * timestamp tables are only built once per segment. The keys are weak, so caches go away with their requests.
+     */
+    private final Map<SearchContext, Map<String, TimestampTableCache>> _timestampTableCaches =
+            new WeakHashMap<SearchContext, Map<String, TimestampTableCache>>();
+
     /**
      * Create a new parser.
      * 
-     * @param settings any extra settings -- not currently used.
+     * @param settings node settings
+     * @param pool the node's pool for parallel collection and reduce -- see PARALLEL_ENABLED_SETTING,
+     *            PARALLEL_REDUCE_ENABLED_SETTING and PARALLEL_THREADS_SETTING
      */
     @Inject
-    public DateFacetParser(final Settings settings) {
+    public DateFacetParser(final Settings settings, final DateFacetPool pool) {
         super(settings);
 
+        _pool = pool.collectionPool();
+        _reducePool = pool.reducePool();
+
         dateFieldParsers = MapBuilder.<String, DateFieldParser> newMapBuilder()
                 .put("year", new DateFieldParser.YearOfCentury())
                 .put("1y", new DateFieldParser.YearOfCentury())
@@ -79,14 +132,16 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         };
     }
 
+    // Parallel collection is done in the post phase, where we have all the matching docs for each segment up front
+
     @Override
     public FacetExecutor.Mode defaultMainMode() {
-        return FacetExecutor.Mode.COLLECTOR;
+        return _pool == null ? FacetExecutor.Mode.COLLECTOR : FacetExecutor.Mode.POST;
     }
 
     @Override
     public FacetExecutor.Mode defaultGlobalMode() {
-        return FacetExecutor.Mode.COLLECTOR;
+        return _pool == null ? FacetExecutor.Mode.COLLECTOR : FacetExecutor.Mode.POST;
     }
 
     @Override
@@ -99,6 +154,7 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         //        String scriptLang = null;
         //        Map<String, Object> params = null;
         String interval = null;
+        List<String> intervals = null;
         DateTimeZone preZone = DateTimeZone.UTC;
         DateTimeZone postZone = DateTimeZone.UTC;
         boolean preZoneAdjustLargeInterval = false;
@@ -109,6 +165,12 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         XContentParser.Token token;
         String fieldName = null;
         int exactThreshold = 1000;
+        float sample = 1;
+        long min = Long.MIN_VALUE;
+        long max = Long.MAX_VALUE;
+        int size = 0;
+        int shardSize = 0;
+        String format = null;
 
         while((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
             if(token == XContentParser.Token.FIELD_NAME) {
@@ -117,6 +179,15 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
                 //                if("params".equals(fieldName)) {
                 //                    params = parser.map();
                 //                }
+            } else if(token == XContentParser.Token.START_ARRAY) {
+                if("intervals".equals(fieldName)) {
+                    intervals = newArrayList();
+                    while((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        intervals.add(parser.text());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
             } else if(token.isValue()) {
                 if("field".equals(fieldName)) {
                     keyField = parser.text();
@@ -152,6 +223,18 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
                     //                    scriptLang = parser.text();
                 } else if("exact_threshold".equals(fieldName) || "exactThreshold".equals(fieldName)) {
                     exactThreshold = parser.intValue();
+                } else if("sample".equals(fieldName)) {
+                    sample = parser.floatValue();
+                } else if("min".equals(fieldName)) {
+                    min = parser.longValue();
+                } else if("max".equals(fieldName)) {
+                    max = parser.longValue();
+                } else if("size".equals(fieldName)) {
+                    size = parser.intValue();
+                } else if("shard_size".equals(fieldName) || "shardSize".equals(fieldName)) {
+                    shardSize = parser.intValue();
+                } else if("format".equals(fieldName)) {
+                    format = parser.text();
                 }
             }
         }
@@ -159,25 +242,72 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         if(valueField != null && distinctField != null)
             throw new FacetPhaseExecutionException(facetName, "[value_field] and [distinct_field] may not be used together");
 
-        if(interval == null) {
+        if(sample <= 0 || sample > 1)
+            throw new FacetPhaseExecutionException(facetName, "[sample] must be greater than 0 and less than or equal to 1");
+
+        if(min > max)
+            throw new FacetPhaseExecutionException(facetName, "[min] must not be greater than [max]");
+
+        if(size < 0 || shardSize < 0)
+            throw new FacetPhaseExecutionException(facetName, "[size] and [shard_size] must not be negative");
+
+        if(size > 0 && sliceField == null)
+            throw new FacetPhaseExecutionException(facetName, "[size] can only be used with [slice_field]");
+
+        // Each shard must return at least as many slices as the reduced facet. Without a
+        // size there's no other slice to carry the rest, so shards mustn't trim either.
+        if(size == 0)
+            shardSize = 0;
+        else if(shardSize < size)
+            shardSize = size;
+
+        if(format != null && !"columnar".equals(format) && !"periods".equals(format))
+            throw new FacetPhaseExecutionException(facetName, "[format] must be either [periods] or [columnar], not [" + format + "]");
+
+        if(interval != null && intervals != null)
+            throw new FacetPhaseExecutionException(facetName, "[interval] and [intervals] may not be used together");
+
+        if(intervals != null && intervals.isEmpty())
+            throw new FacetPhaseExecutionException(facetName, "[intervals] must not be empty");
+
+        if(interval == null && intervals == null) {
             throw new FacetPhaseExecutionException(facetName, "[interval] is required to be set for histogram facet");
         }
 
-        TimeZoneRounding.Builder tzRoundingBuilder;
-        final DateFieldParser fieldParser = dateFieldParsers.get(interval);
-        if(fieldParser != null) {
-            tzRoundingBuilder = TimeZoneRounding.builder(fieldParser.parse(chronology));
-        } else {
-            // the interval is a time value?
-            tzRoundingBuilder = TimeZoneRounding.builder(TimeValue.parseTimeValue(interval, null));
+        final String[] intervalNames = intervals == null
+                ? new String[] { interval }
+                : intervals.toArray(new String[intervals.size()]);
+        final TimeZoneRounding[] intervalRoundings = new TimeZoneRounding[intervalNames.length];
+        int finest = 0;
+        for(int i = 0; i < intervalNames.length; i++) {
+            final TimeZoneRounding.Builder tzRoundingBuilder;
+            final DateFieldParser fieldParser = dateFieldParsers.get(intervalNames[i]);
+            if(fieldParser != null) {
+                tzRoundingBuilder = TimeZoneRounding.builder(fieldParser.parse(chronology));
+            } else {
+                // the interval is a time value?
+                tzRoundingBuilder = TimeZoneRounding.builder(TimeValue.parseTimeValue(intervalNames[i], null));
+            }
+
+            intervalRoundings[i] = tzRoundingBuilder
+                    .preZone(preZone).postZone(postZone)
+                    .preZoneAdjustLargeInterval(preZoneAdjustLargeInterval)
+                    .preOffset(preOffset).postOffset(postOffset)
+                    .factor(factor)
+                    .build();
+
+            if(intervalMillis(intervalNames[i], chronology) < intervalMillis(intervalNames[finest], chronology))
+                finest = i;
         }
 
-        final TimeZoneRounding tzRounding = tzRoundingBuilder
-                .preZone(preZone).postZone(postZone)
-                .preZoneAdjustLargeInterval(preZoneAdjustLargeInterval)
-                .preOffset(preOffset).postOffset(postOffset)
-                .factor(factor)
-                .build();
+        // Only the finest interval is collected, so all the others must be made up of whole periods of it
+        for(int i = 0; i < intervalNames.length; i++) {
+            if(!nests(intervalNames[finest], intervalNames[i], chronology))
+                throw new FacetPhaseExecutionException(facetName, "[intervals] must all be made up of whole ["
+                        + intervalNames[finest] + "] periods, but [" + intervalNames[i] + "] is not");
+        }
+
+        final TimeZoneRounding tzRounding = intervalRoundings[finest];
 
         final LongArrayIndexFieldData keyFieldData = getKeyFieldData(facetName, keyField, context);
 
@@ -188,8 +318,84 @@ public class DateFacetParser extends AbstractComponent implements FacetParser {
         if(exactThreshold < 0)
             exactThreshold = Integer.MAX_VALUE;
 
-        return new DateFacetExecutor(keyFieldData, valueFieldData, distinctFieldData, sliceFieldData,
-                tzRounding, exactThreshold);
+        final DateFacetExecutor.Options options = new DateFacetExecutor.Options()
+                .exactThreshold(exactThreshold)
+                .pool(_pool)
+                .reducePool(_reducePool)
+                .sampleRate(sample)
+                .bounds(min, max)
+                .timestampTableCache(getTimestampTableCache(context, keyField + '|' + intervalNames[finest] + '|' + preZone.getID()
+                        + '|' + postZone.getID() + '|' + preZoneAdjustLargeInterval + '|' + preOffset + '|' + postOffset
+                        + '|' + factor + '|' + min + '|' + max))
+                .intervals(intervals == null ? null : intervalNames, intervalRoundings)
+                .sliceSizes(size, shardSize)
+                .columnar("columnar".equals(format));
+        return new DateFacetExecutor(keyFieldData, valueFieldData, distinctFieldData, sliceFieldData, tzRounding, options);
+    }
+
+    /**
+     * Get the approximate length of an interval, for comparing intervals.
+     * 
+     * @param interval the interval, as given in the request
+     * @param chronology the chronology to use for named intervals
+     * @return the length in milliseconds
+     */
+    private long intervalMillis(final String interval, final Chronology chronology) {
+        final DateFieldParser fieldParser = dateFieldParsers.get(interval);
+        if(fieldParser != null)
+            return fieldParser.parse(chronology).getDurationField().getUnitMillis();
+        return TimeValue.parseTimeValue(interval, null).millis();
+    }
+
+    /**
+     * Check whether every period of a coarse interval is made up of whole periods of a fine interval,
+     * so that the coarse interval can be rolled up from the fine one.
+     * 
+     * @param fine the fine interval, as given in the request
+     * @param coarse the coarse interval, as given in the request
+     * @param chronology the chronology to use for named intervals
+     * @return true if the coarse interval can be rolled up from the fine one
+     */
+    private boolean nests(final String fine, final String coarse, final Chronology chronology) {
+        final DateFieldParser fineParser = dateFieldParsers.get(fine);
+        final DateFieldParser coarseParser = dateFieldParsers.get(coarse);
+        final long fineMillis = intervalMillis(fine, chronology);
+        final long coarseMillis = intervalMillis(coarse, chronology);
+        if(fineParser != null && coarseParser != null) {
+            // Weeks don't line up with months, quarters or years
+            final boolean fineIsWeek = fineParser.parse(chronology).getDurationField().getType() == DurationFieldType.weeks();
+            return !fineIsWeek || coarseMillis == fineMillis;
+        }
+        if(fineParser == null && coarseParser == null)
+            return coarseMillis % fineMillis == 0;
+        if(fineParser == null)
+            // Fixed-length periods line up with calendar periods if they divide a day
+            return DAY_MILLIS % fineMillis == 0;
+        // Calendar periods line up with fixed-length ones if they are at most a day long and divide them
+        return fineMillis <= DAY_MILLIS && coarseMillis % fineMillis == 0;
+    }
+
+    /**
+     * Get the timestamp table cache shared by all date facets in a request with the same key field, rounding and bounds.
+     * 
+     * @param context the search context of the request
+     * @param keySpec a description of the key field, rounding and bounds
+     * @return the cache
+     */
+    private TimestampTableCache getTimestampTableCache(final SearchContext context, final String keySpec) {
+        synchronized(_timestampTableCaches) {
+            Map<String, TimestampTableCache> caches = _timestampTableCaches.get(context);
+            if(caches == null) {
+                caches = newHashMap();
+                _timestampTableCaches.put(context, caches);
+            }
+            TimestampTableCache cache = caches.get(keySpec);
+            if(cache == null) {
+                cache = new TimestampTableCache();
+                caches.put(keySpec, cache);
+            }
+            return cache;
+        }
     }
 
     @SuppressWarnings("unchecked")
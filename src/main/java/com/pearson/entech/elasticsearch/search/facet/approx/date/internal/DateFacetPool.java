@@ -0,0 +1,68 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+
+/**
+ * Node service owning the pool used by date facets for parallel segment collection and
+ * parallel reduce. The pool's threads are shut down when the node closes.
+ */
+public class DateFacetPool extends AbstractLifecycleComponent<DateFacetPool> {
+
+    private final boolean _parallelCollection;
+    private final boolean _parallelReduce;
+
+    /**
+     * The pool, or null if neither parallel collection nor parallel reduce is enabled.
+     */
+    private final ForkJoinPool _pool;
+
+    /**
+     * Create a new service.
+     *
+     * @param settings node settings -- see the PARALLEL_* settings in DateFacetParser
+     */
+    @Inject
+    public DateFacetPool(final Settings settings) {
+        super(settings);
+        _parallelCollection = settings.getAsBoolean(DateFacetParser.PARALLEL_ENABLED_SETTING, false);
+        _parallelReduce = settings.getAsBoolean(DateFacetParser.PARALLEL_REDUCE_ENABLED_SETTING, false);
+        _pool = _parallelCollection || _parallelReduce ?
+                new ForkJoinPool(settings.getAsInt(DateFacetParser.PARALLEL_THREADS_SETTING, Runtime.getRuntime().availableProcessors())) :
+                null;
+    }
+
+    /**
+     * Get the pool for collecting segments in parallel.
+     *
+     * @return the pool, or null if parallel collection is disabled
+     */
+    public ForkJoinPool collectionPool() {
+        return _parallelCollection ? _pool : null;
+    }
+
+    /**
+     * Get the pool for reducing distinct facets in parallel.
+     *
+     * @return the pool, or null if parallel reduce is disabled
+     */
+    public ForkJoinPool reducePool() {
+        return _parallelReduce ? _pool : null;
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {}
+
+    @Override
+    protected void doStop() throws ElasticSearchException {}
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        if(_pool != null)
+            _pool.shutdown();
+    }
+
+}
@@ -10,12 +10,11 @@ import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.map.TLongObjectMap;
 
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLog;
-import com.clearspring.analytics.stream.cardinality.HyperLogLog.Builder;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.StreamableHyperLogLog.Builder;
 
 public class DistinctCountPayload {
 
-    private final Builder _stdBuilder = new HyperLogLog.Builder(0.0025);
+    private final Builder _stdBuilder = new StreamableHyperLogLog.Builder(0.0025);
 
     private long _count;
 
@@ -29,14 +28,19 @@ public class DistinctCountPayload {
     DistinctCountPayload(final StreamInput in) throws IOException {
         _count = in.readVLong();
         final int entryLimit = in.readVInt();
-        final int payloadSize = in.readVInt();
-        final byte[] payloadBytes = new byte[payloadSize];
-        in.readBytes(payloadBytes, 0, payloadSize);
-        try {
-            _cardinality = new CountThenEstimateBytes(payloadBytes, entryLimit, _stdBuilder);
-        } catch(final ClassNotFoundException e) {
-            throw new IOException(e);
-        }
+        _cardinality = new CountThenEstimateBytes(in, entryLimit, _stdBuilder);
+    }
+
+    /**
+     * Skip over a serialized payload without deserializing it.
+     * 
+     * @param in the stream, positioned at the start of a payload
+     * @throws IOException
+     */
+    static void skip(final StreamInput in) throws IOException {
+        in.readVLong();
+        in.readVInt();
+        CountThenEstimateBytes.skip(in);
     }
 
     DistinctCountPayload(final long count, final CountThenEstimateBytes cardinality) {
@@ -57,6 +61,18 @@ public class DistinctCountPayload {
         return _count;
     }
 
+    DistinctCountPayload copy() {
+        try {
+            return new DistinctCountPayload(_count, _cardinality.copy());
+        } catch(final IOException e) {
+            throw new ElasticSearchException("Unable to copy facet cardinality object", e);
+        }
+    }
+
+    void scaleCount(final double factor) {
+        _count = Math.round(_count * factor);
+    }
+
     public CountThenEstimateBytes getCardinality() {
         return _cardinality;
     }
@@ -79,7 +95,7 @@ public class DistinctCountPayload {
         return this;
     }
 
-    <K> DistinctCountPayload mergeInto(final ExtTHashMap<K, DistinctCountPayload> map, final K key) {
+    public <K> DistinctCountPayload mergeInto(final ExtTHashMap<K, DistinctCountPayload> map, final K key) {
         if(map.containsKey(key))
             try {
                 map.put(key, this.merge(map.get(key)));
@@ -100,12 +116,20 @@ public class DistinctCountPayload {
                 descr, _cardinality.cardinality(), _count);
     }
 
+    /**
+     * Estimate how many bytes writeTo() will write, without writing anything.
+     * 
+     * @return the estimate
+     */
+    int estimateSize() {
+        // A vlong count and a vint tipping point come before the counter
+        return 14 + _cardinality.estimateSize();
+    }
+
     public void writeTo(final StreamOutput output) throws IOException {
         output.writeVLong(_count);
         output.writeVInt(_cardinality.getTippingPoint());
-        final byte[] bytes = _cardinality.getBytes();
-        output.writeVInt(bytes.length);
-        output.writeBytes(bytes);
+        _cardinality.writeTo(output);
     }
 
 }
\ No newline at end of file
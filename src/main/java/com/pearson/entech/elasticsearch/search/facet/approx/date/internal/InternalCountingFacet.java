@@ -3,6 +3,7 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -11,10 +12,14 @@ import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.function.TLongFunction;
+import org.elasticsearch.common.trove.iterator.TLongIntIterator;
 import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.common.trove.procedure.TLongIntProcedure;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.facet.Facet;
 
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Constants;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.NullEntry;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
@@ -23,8 +28,19 @@ public class InternalCountingFacet extends DateFacet<TimePeriod<NullEntry>> {
 
     private TLongIntHashMap _counts;
 
-    private long _total;
-    private List<TimePeriod<NullEntry>> _periods;
+    private final PublishOnce<Summary> _summary = new PublishOnce<Summary>() {
+        @Override
+        protected Summary compute() {
+            return summarize();
+        }
+    };
+
+    private final PublishOnce<List<TimePeriod<NullEntry>>> _periods = new PublishOnce<List<TimePeriod<NullEntry>>>() {
+        @Override
+        protected List<TimePeriod<NullEntry>> compute() {
+            return materialize(_summary.get());
+        }
+    };
 
     private static final TLongIntHashMap EMPTY = new TLongIntHashMap();
     static final String TYPE = "counting_date_facet";
@@ -59,14 +75,30 @@ public class InternalCountingFacet extends DateFacet<TimePeriod<NullEntry>> {
 
     @Override
     public long getTotalCount() {
-        materialize();
-        return _total;
+        return _summary.get()._total;
     }
 
     @Override
     public List<TimePeriod<NullEntry>> getTimePeriods() {
-        materialize();
-        return _periods;
+        return _periods.get();
+    }
+
+    @Override
+    protected void periodsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        for(int i = 0; i < summary._keys.length; i++) {
+            builder.startObject();
+            builder.field(Constants.TIME, summary._keys[i]);
+            builder.field(Constants.COUNT, summary._periodCounts[i]);
+            builder.endObject();
+        }
+    }
+
+    @Override
+    protected void columnsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        Columns.array(builder, Constants.TIMES, summary._keys);
+        Columns.array(builder, Constants.COUNTS, summary._periodCounts);
     }
 
     @Override
@@ -82,30 +114,58 @@ public class InternalCountingFacet extends DateFacet<TimePeriod<NullEntry>> {
     @SuppressWarnings("unchecked")
     @Override
     protected TLongIntHashMap peekCounts() {
+        readPendingData();
         return _counts;
     }
 
     @Override
     protected void readData(final StreamInput in) throws IOException {
         _counts = CacheRecycler.popLongIntMap();
-        final int size = in.readVInt();
-        for(int i = 0; i < size; i++) {
-            final long key = in.readVLong();
+        mergeData(in);
+    }
+
+    @Override
+    protected void mergeData(final StreamInput in) throws IOException {
+        for(final long key : PeriodKeys.read(in)) {
             final int val = in.readVInt();
-            _counts.put(key, val);
+            _counts.adjustOrPutValue(key, val, val);
         }
     }
 
+    @Override
+    protected int estimateDataSize() {
+        // A delta-encoded key and a count for each period
+        return _counts == null ? 0 : _counts.size() * 6;
+    }
+
     @Override
     protected void writeData(final StreamOutput out) throws IOException {
-        if(_counts == null) {
-            out.writeVInt(0);
-            return;
+        final long[] keys = PeriodKeys.write(out, _counts == null ? null : _counts.keys());
+        // Counts follow the keys, in the same order
+        for(final long key : keys) {
+            out.writeVInt(_counts.get(key));
+        }
+    }
+
+    @Override
+    protected void scaleCounts(final double factor) {
+        readPendingData();
+        if(_counts != null)
+            _counts.transformValues(new CountScaler(factor));
+    }
+
+    @Override
+    public InternalCountingFacet rollUp(final String name, final TLongFunction keyMap) {
+        readPendingData();
+        final TLongIntHashMap counts = CacheRecycler.popLongIntMap();
+        if(_counts != null) {
+            for(final TLongIntIterator iter = _counts.iterator(); iter.hasNext();) {
+                iter.advance();
+                final int count = iter.value();
+                counts.adjustOrPutValue(keyMap.execute(iter.key()), count, count);
+            }
         }
-        final int size = _counts.size();
-        _serialize.init(out, size);
-        _counts.forEachEntry(_serialize);
-        _serialize.clear();
+        return new InternalCountingFacet(name, counts);
     }
 
     @Override
@@ -113,12 +173,17 @@ public class InternalCountingFacet extends DateFacet<TimePeriod<NullEntry>> {
         if(facets.size() > 0) {
             // Reduce into the first facet; we will release its _counts on materializing
             final InternalCountingFacet target = (InternalCountingFacet) facets.get(0);
+            target.readPendingData();
+            final PeriodMerger mergePeriods = new PeriodMerger();
             for(int i = 1; i < facets.size(); i++) {
                 final InternalCountingFacet source = (InternalCountingFacet) facets.get(i);
+                // Shard results are merged straight from their serialized form where possible
+                if(target.mergePendingData(source))
+                    continue;
                 // For each datetime period in the new facet...
-                _mergePeriods.target = target;
-                source._counts.forEachEntry(_mergePeriods);
-                _mergePeriods.target = null;
+                mergePeriods.target = target;
+                source._counts.forEachEntry(mergePeriods);
+                mergePeriods.target = null;
                 // Release contents of source facet; no longer needed
                 source.releaseCache();
             }
@@ -128,22 +193,30 @@ public class InternalCountingFacet extends DateFacet<TimePeriod<NullEntry>> {
         }
     }
 
-    private synchronized void materialize() {
-        if(_periods != null)
-            return;
-        if(_counts == null || _counts.size() == 0) {
-            _total = 0;
-            _periods = newArrayListWithCapacity(0);
-            return;
+    // Sort the periods and add up their counts, releasing the hash map; only ever called once
+    private Summary summarize() {
+        readPendingData();
+        if(_counts == null || _counts.size() == 0)
+            return new Summary(new long[0], new int[0], 0);
+        final long[] keys = _counts.keys();
+        Arrays.sort(keys);
+        final int[] periodCounts = new int[keys.length];
+        long total = 0;
+        for(int i = 0; i < keys.length; i++) {
+            periodCounts[i] = _counts.get(keys[i]);
+            total += periodCounts[i];
         }
-        _periods = newArrayListWithCapacity(_counts.size());
-        final long[] counter = { 0 };
-        _materializePeriod.init(_periods, counter);
-        _counts.forEachEntry(_materializePeriod);
-        _materializePeriod.clear();
-        Collections.sort(_periods, ChronologicalOrder.INSTANCE);
-        _total = counter[0];
         releaseCache();
+        return new Summary(keys, periodCounts, total);
+    }
+
+    // Only needed by Java clients; XContent is rendered straight from the summary
+    private static List<TimePeriod<NullEntry>> materialize(final Summary summary) {
+        final List<TimePeriod<NullEntry>> periods = newArrayListWithCapacity(summary._keys.length);
+        for(int i = 0; i < summary._keys.length; i++) {
+            periods.add(new TimePeriod<NullEntry>(summary._keys[i], summary._periodCounts[i], NullEntry.INSTANCE));
+        }
+        return Collections.unmodifiableList(periods);
     }
 
     @Override
@@ -151,74 +224,36 @@ public class InternalCountingFacet extends DateFacet<TimePeriod<NullEntry>> {
         CacheRecycler.pushLongIntMap(_counts);
     }
 
-    private final PeriodMerger _mergePeriods = new PeriodMerger();
+    /**
+     * The contents of a facet, ready for rendering. Never modified once published.
+     */
+    private static final class Summary {
 
-    private static final class PeriodMerger implements TLongIntProcedure {
+        // Period keys in chronological order, and their counts
+        private final long[] _keys;
+        private final int[] _periodCounts;
+        private final long _total;
 
-        InternalCountingFacet target;
-
-        // Called once per period
-        @Override
-        public boolean execute(final long time, final int count) {
-            // Increment the corresponding count in the target facet, or add if not there
-            target._counts.adjustOrPutValue(time, count, count);
-            return true;
+        Summary(final long[] keys, final int[] periodCounts, final long total) {
+            _keys = keys;
+            _periodCounts = periodCounts;
+            _total = total;
         }
 
     }
 
-    private final PeriodMaterializer _materializePeriod = new PeriodMaterializer();
-
-    private static final class PeriodMaterializer implements TLongIntProcedure {
-
-        private List<TimePeriod<NullEntry>> _target;
-        private long[] _counter;
+    private static final class PeriodMerger implements TLongIntProcedure {
 
-        public void init(final List<TimePeriod<NullEntry>> periods, final long[] counter) {
-            _target = periods;
-            _counter = counter;
-        }
+        InternalCountingFacet target;
 
         // Called once per period
         @Override
         public boolean execute(final long time, final int count) {
-            _target.add(new TimePeriod<NullEntry>(time, count, NullEntry.INSTANCE));
-            _counter[0] = _counter[0] + count;
-            return true;
-        }
-
-        public void clear() {
-            _target = null;
-        }
-
-    }
-
-    private final Serializer _serialize = new Serializer();
-
-    private static final class Serializer implements TLongIntProcedure {
-
-        private StreamOutput _output;
-
-        public void init(final StreamOutput output, final int size) throws IOException {
-            _output = output;
-            output.writeVInt(size);
-        }
-
-        @Override
-        public boolean execute(final long key, final int val) {
-            try {
-                _output.writeVLong(key);
-                _output.writeVInt(val);
-            } catch(final IOException e) {
-                throw new IllegalStateException(e);
-            }
+            // Increment the corresponding count in the target facet, or add if not there
+            target._counts.adjustOrPutValue(time, count, count);
             return true;
         }
 
-        public void clear() {
-            _output = null;
-        }
-
     }
 
 }
@@ -3,19 +3,27 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.common.trove.function.TLongFunction;
+import org.elasticsearch.common.trove.iterator.TLongObjectIterator;
 import org.elasticsearch.common.trove.procedure.TLongObjectProcedure;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.elasticsearch.common.util.concurrent.jsr166y.RecursiveAction;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.facet.Facet;
 
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Constants;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctDateFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.HasDistinct;
@@ -25,9 +33,19 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
 
     private ExtTLongObjectHashMap<DistinctCountPayload> _counts;
 
-    private long _total;
-    private List<DistinctTimePeriod<NullEntry>> _periods;
-    private long _distinctCount;
+    private final PublishOnce<Summary> _summary = new PublishOnce<Summary>() {
+        @Override
+        protected Summary compute() {
+            return summarize();
+        }
+    };
+
+    private final PublishOnce<List<DistinctTimePeriod<NullEntry>>> _periods = new PublishOnce<List<DistinctTimePeriod<NullEntry>>>() {
+        @Override
+        protected List<DistinctTimePeriod<NullEntry>> compute() {
+            return materialize(_summary.get());
+        }
+    };
 
     private final boolean _debug;
 
@@ -72,20 +90,37 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
 
     @Override
     public long getDistinctCount() {
-        materialize();
-        return _distinctCount;
+        return _summary.get()._distinctCount;
     }
 
     @Override
     public long getTotalCount() {
-        materialize();
-        return _total;
+        return _summary.get()._total;
     }
 
     @Override
     public List<DistinctTimePeriod<NullEntry>> getTimePeriods() {
-        materialize();
-        return _periods;
+        return _periods.get();
+    }
+
+    @Override
+    protected void periodsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        for(int i = 0; i < summary._keys.length; i++) {
+            builder.startObject();
+            builder.field(Constants.TIME, summary._keys[i]);
+            builder.field(Constants.COUNT, summary._periodCounts[i]);
+            builder.field(Constants.DISTINCT_COUNT, summary._periodDistincts[i]);
+            builder.endObject();
+        }
+    }
+
+    @Override
+    protected void columnsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        Columns.array(builder, Constants.TIMES, summary._keys);
+        Columns.array(builder, Constants.COUNTS, summary._periodCounts);
+        Columns.array(builder, Constants.DISTINCT_COUNTS, summary._periodDistincts);
     }
 
     @Override
@@ -101,41 +136,100 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
     @SuppressWarnings("unchecked")
     @Override
     protected ExtTLongObjectHashMap<DistinctCountPayload> peekCounts() {
+        readPendingData();
         return _counts;
     }
 
     @Override
     protected void readData(final StreamInput in) throws IOException {
         _counts = CacheRecycler.popLongObjectMap();
-        final int size = in.readVInt();
-        for(int i = 0; i < size; i++) {
-            final long key = in.readVLong();
-            _counts.put(key, new DistinctCountPayload(in));
+        mergeData(in);
+    }
+
+    @Override
+    protected void mergeData(final StreamInput in) throws IOException {
+        for(final long key : PeriodKeys.read(in)) {
+            // Only one deserialized payload is alive at a time
+            new DistinctCountPayload(in).mergeInto(_counts, key);
         }
     }
 
+    @Override
+    protected int estimateDataSize() {
+        int size = 0;
+        if(_counts != null) {
+            for(final DistinctCountPayload payload : _counts.valueCollection()) {
+                // A delta-encoded key, then the payload
+                size += 5 + payload.estimateSize();
+            }
+        }
+        return size;
+    }
+
     @Override
     protected void writeData(final StreamOutput out) throws IOException {
-        if(_counts == null) {
-            out.writeVInt(0);
+        final long[] keys = PeriodKeys.write(out, _counts == null ? null : _counts.keys());
+        // Payloads follow the keys, in the same order
+        for(final long key : keys) {
+            _counts.get(key).writeTo(out);
+        }
+    }
+
+    @Override
+    protected void scaleCounts(final double factor) {
+        readPendingData();
+        if(_counts == null)
             return;
+        for(final DistinctCountPayload payload : _counts.valueCollection()) {
+            payload.scaleCount(factor);
         }
-        final int size = _counts.size();
-        _serialize.init(out, size);
-        _counts.forEachEntry(_serialize);
-        _serialize.clear();
+    }
+
+    @Override
+    public InternalDistinctFacet rollUp(final String name, final TLongFunction keyMap) {
+        readPendingData();
+        final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+        if(_counts != null) {
+            for(final TLongObjectIterator<DistinctCountPayload> iter = _counts.iterator(); iter.hasNext();) {
+                iter.advance();
+                // Merging is destructive, so merge a copy and leave this facet intact
+                iter.value().copy().mergeInto(counts, keyMap.execute(iter.key()));
+            }
+        }
+        return new InternalDistinctFacet(name, counts, _debug);
     }
 
     @Override
     public Facet reduce(final List<Facet> facets) {
+        return reduce(facets, reducePool(facets));
+    }
+
+    /**
+     * Reduce some facets, in parallel if it's worth it and there's a pool to do it in.
+     * 
+     * @param facets the facets
+     * @param parallelPool the pool, or null to reduce sequentially
+     * @return the reduced facet
+     */
+    Facet reduce(final List<Facet> facets, final ForkJoinPool parallelPool) {
         if(facets.size() > 0) {
             // Reduce into the first facet; we will release its _counts on rendering into XContent
             final InternalDistinctFacet target = (InternalDistinctFacet) facets.get(0);
+            target.readPendingData();
+            final ForkJoinPool pool = ParallelReduce.pool(parallelPool, target._counts.size(), facets.size());
+            if(pool != null) {
+                target.mergeInParallel(facets, pool);
+                return target;
+            }
+            final PeriodMerger mergePeriods = new PeriodMerger();
             for(int i = 1; i < facets.size(); i++) {
                 final InternalDistinctFacet source = (InternalDistinctFacet) facets.get(i);
-                _mergePeriods.target = target;
-                source._counts.forEachEntry(_mergePeriods);
-                _mergePeriods.target = null; // Avoid risk of garbage leaks
+                // Shard results are merged straight from their serialized form where possible
+                if(target.mergePendingData(source))
+                    continue;
+                mergePeriods.target = target;
+                source._counts.forEachEntry(mergePeriods);
+                mergePeriods.target = null; // Avoid risk of garbage leaks
                 // Release contents of source facet; no longer needed
                 source.releaseCache();
             }
@@ -145,123 +239,177 @@ public class InternalDistinctFacet extends DistinctDateFacet<DistinctTimePeriod<
         }
     }
 
-    private synchronized void materialize() {
-        if(_periods != null)
-            return;
-        if(_counts == null || _counts.size() == 0) {
-            _total = 0;
-            _distinctCount = 0;
-            _periods = newArrayListWithCapacity(0);
-            return;
+    /**
+     * Merge all but the first of a list of facets into this one, which must be the first,
+     * splitting the periods between the threads of a pool.
+     * 
+     * @param facets the facets
+     * @param pool the pool
+     */
+    private void mergeInParallel(final List<Facet> facets, final ForkJoinPool pool) {
+        final int partitions = pool.getParallelism();
+        final List<PartitionMerger> tasks = newArrayListWithCapacity(partitions);
+        for(int i = 0; i < partitions; i++) {
+            tasks.add(new PartitionMerger(i, partitions, facets));
+        }
+        // Each task starts from the periods of this facet in its own partition
+        for(final TLongObjectIterator<DistinctCountPayload> iter = _counts.iterator(); iter.hasNext();) {
+            iter.advance();
+            tasks.get(ParallelReduce.partition(iter.key(), partitions)).counts.put(iter.key(), iter.value());
+        }
+        ParallelReduce.invokeAll(pool, tasks);
+        _counts.clear();
+        for(final PartitionMerger task : tasks) {
+            _counts.putAll(task.counts);
+        }
+        for(int i = 1; i < facets.size(); i++) {
+            final InternalDistinctFacet source = (InternalDistinctFacet) facets.get(i);
+            if(!discardPendingData(source))
+                source.releaseCache();
         }
-        _periods = newArrayListWithCapacity(_counts.size());
-        _materializePeriod.init(_periods);
-        _counts.forEachEntry(_materializePeriod);
-        Collections.sort(_periods, ChronologicalOrder.INSTANCE);
-        _total = _materializePeriod.getOverallTotal();
-        _distinctCount = _materializePeriod.getOverallDistinct();
-        _materializePeriod.clear();
-        releaseCache();
     }
 
-    @Override
-    protected void releaseCache() {
-        CacheRecycler.pushLongObjectMap(_counts);
-    }
+    /**
+     * A task which merges the periods in one partition from all the source facets of a reduce.
+     */
+    private static final class PartitionMerger extends RecursiveAction {
 
-    private final PeriodMerger _mergePeriods = new PeriodMerger();
+        private static final long serialVersionUID = 1L;
 
-    private static class PeriodMerger implements TLongObjectProcedure<DistinctCountPayload> {
+        private final int _partition;
+        private final int _partitions;
+        private final List<Facet> _facets;
+        final ExtTLongObjectHashMap<DistinctCountPayload> counts = new ExtTLongObjectHashMap<DistinctCountPayload>();
 
-        InternalDistinctFacet target;
+        PartitionMerger(final int partition, final int partitions, final List<Facet> facets) {
+            _partition = partition;
+            _partitions = partitions;
+            _facets = facets;
+        }
 
-        // Called once per period
         @Override
-        public boolean execute(final long time, final DistinctCountPayload payload) {
-            // These objects already know how to merge themselves
-            payload.mergeInto(target._counts, time);
-            return true;
+        protected void compute() {
+            try {
+                for(int i = 1; i < _facets.size(); i++) {
+                    final InternalDistinctFacet source = (InternalDistinctFacet) _facets.get(i);
+                    final StreamInput in = pendingDataStream(source);
+                    if(in == null) {
+                        mergePartition(source._counts);
+                    } else {
+                        try {
+                            mergePartition(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+            } catch(final IOException e) {
+                throw new ElasticSearchException("Unable to merge facet data", e);
+            }
         }
 
-    }
-
-    private final PeriodMaterializer _materializePeriod = new PeriodMaterializer();
-
-    private static final class PeriodMaterializer implements TLongObjectProcedure<DistinctCountPayload> {
-
-        private List<DistinctTimePeriod<NullEntry>> _target;
-        private DistinctCountPayload _accumulator;
-
-        public void init(final List<DistinctTimePeriod<NullEntry>> target) {
-            _target = target;
-            _accumulator = null;
+        // Other tasks read the same source map at the same time, but nobody writes to it
+        private void mergePartition(final ExtTLongObjectHashMap<DistinctCountPayload> source) {
+            for(final TLongObjectIterator<DistinctCountPayload> iter = source.iterator(); iter.hasNext();) {
+                iter.advance();
+                if(ParallelReduce.partition(iter.key(), _partitions) == _partition)
+                    iter.value().mergeInto(counts, iter.key());
+            }
         }
 
-        public long getOverallTotal() {
-            return _accumulator == null ?
-                    0 : _accumulator.getCount();
+        // Same format as mergeData(), but payloads in other partitions are skipped without being deserialized
+        private void mergePartition(final StreamInput in) throws IOException {
+            for(final long key : PeriodKeys.read(in)) {
+                if(ParallelReduce.partition(key, _partitions) == _partition)
+                    new DistinctCountPayload(in).mergeInto(counts, key);
+                else
+                    DistinctCountPayload.skip(in);
+            }
         }
 
-        public long getOverallDistinct() {
-            return _accumulator == null ?
-                    0 : _accumulator.getCardinality().cardinality();
-        }
+    }
 
-        // Called once per period
-        @Override
-        public boolean execute(final long time, final DistinctCountPayload payload) {
-            final long count = payload.getCount();
-            final long cardinality = payload.getCardinality().cardinality();
-            _target.add(new DistinctTimePeriod<NullEntry>(
-                    time, count, cardinality, NullEntry.INSTANCE));
-
-            // Save the first payload we receive, and merge the others into it
-            if(_accumulator == null)
-                _accumulator = payload;
+    // Sort the periods and estimate their cardinalities, merging the counters into an overall total;
+    // only ever called once, as the counters are merged destructively
+    private Summary summarize() {
+        readPendingData();
+        if(_counts == null || _counts.size() == 0)
+            return new Summary(new long[0], new long[0], new long[0], 0, 0);
+        final long[] keys = _counts.keys();
+        Arrays.sort(keys);
+        final long[] periodCounts = new long[keys.length];
+        final long[] periodDistincts = new long[keys.length];
+        DistinctCountPayload accumulator = null;
+        for(int i = 0; i < keys.length; i++) {
+            final DistinctCountPayload payload = _counts.get(keys[i]);
+            periodCounts[i] = payload.getCount();
+            periodDistincts[i] = payload.getCardinality().cardinality();
+            // Save the first payload, and merge the others into it once they've been counted
+            if(accumulator == null)
+                accumulator = payload;
             else
                 try {
-                    _accumulator.merge(payload);
+                    accumulator.merge(payload);
                 } catch(final CardinalityMergeException e) {
                     throw new IllegalStateException(e);
                 }
-
-            return true;
         }
+        final long total = accumulator.getCount();
+        final long distinctCount = accumulator.getCardinality().cardinality();
+        releaseCache();
+        return new Summary(keys, periodCounts, periodDistincts, total, distinctCount);
+    }
 
-        public void clear() {
-            _target = null;
-            _accumulator = null;
+    // Only needed by Java clients; XContent is rendered straight from the summary
+    private static List<DistinctTimePeriod<NullEntry>> materialize(final Summary summary) {
+        final List<DistinctTimePeriod<NullEntry>> periods = newArrayListWithCapacity(summary._keys.length);
+        for(int i = 0; i < summary._keys.length; i++) {
+            periods.add(new DistinctTimePeriod<NullEntry>(
+                    summary._keys[i], summary._periodCounts[i], summary._periodDistincts[i], NullEntry.INSTANCE));
         }
+        return Collections.unmodifiableList(periods);
+    }
 
+    @Override
+    protected void releaseCache() {
+        CacheRecycler.pushLongObjectMap(_counts);
     }
 
-    private final Serializer _serialize = new Serializer();
+    /**
+     * The contents of a facet, ready for rendering. Never modified once published.
+     */
+    private static final class Summary {
+
+        // Period keys in chronological order, and their counts and distinct counts
+        private final long[] _keys;
+        private final long[] _periodCounts;
+        private final long[] _periodDistincts;
+        private final long _total;
+        private final long _distinctCount;
+
+        Summary(final long[] keys, final long[] periodCounts, final long[] periodDistincts,
+                final long total, final long distinctCount) {
+            _keys = keys;
+            _periodCounts = periodCounts;
+            _periodDistincts = periodDistincts;
+            _total = total;
+            _distinctCount = distinctCount;
+        }
 
-    private static final class Serializer implements TLongObjectProcedure<DistinctCountPayload> {
+    }
 
-        private StreamOutput _output;
+    private static class PeriodMerger implements TLongObjectProcedure<DistinctCountPayload> {
 
-        public void init(final StreamOutput output, final int size) throws IOException {
-            _output = output;
-            output.writeVInt(size);
-        }
+        InternalDistinctFacet target;
 
         // Called once per period
         @Override
-        public boolean execute(final long key, final DistinctCountPayload payload) {
-            try {
-                _output.writeVLong(key);
-                payload.writeTo(_output);
-            } catch(final IOException e) {
-                throw new IllegalStateException(e);
-            }
+        public boolean execute(final long time, final DistinctCountPayload payload) {
+            // These objects already know how to merge themselves
+            payload.mergeInto(target._counts, time);
             return true;
         }
 
-        public void clear() {
-            _output = null;
-        }
-
     }
 
 }
@@ -0,0 +1,152 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacet;
+
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Constants;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
+
+/**
+ * A date facet computed at several intervals at once. Holds one ordinary date facet
+ * per interval, each named after its interval, in the order they were requested.
+ */
+public class InternalMultiIntervalFacet extends InternalFacet {
+
+    private List<DateFacet<?>> _facets;
+
+    static final String TYPE = "multi_interval_date_facet";
+    private static final BytesReference STREAM_TYPE = new HashedBytesArray(TYPE.getBytes());
+
+    public static void registerStreams() {
+        Streams.registerStream(STREAM, STREAM_TYPE);
+    }
+
+    static Stream STREAM = new Stream() {
+        @Override
+        public Facet readFacet(final StreamInput in) throws IOException {
+            return readMultiIntervalFacet(in);
+        }
+    };
+
+    public static InternalMultiIntervalFacet readMultiIntervalFacet(final StreamInput in) throws IOException {
+        final InternalMultiIntervalFacet facet = new InternalMultiIntervalFacet();
+        facet.readFrom(in);
+        return facet;
+    }
+
+    // Only for deserialization
+    protected InternalMultiIntervalFacet() {
+        super("not set");
+    }
+
+    /**
+     * Create a new facet.
+     * 
+     * @param name the facet name
+     * @param facets one facet per interval, named after the interval
+     */
+    public InternalMultiIntervalFacet(final String name, final List<DateFacet<?>> facets) {
+        super(name);
+        _facets = facets;
+    }
+
+    /**
+     * Get the facets for each interval, in the order they were requested.
+     * 
+     * @return the facets
+     */
+    public List<DateFacet<?>> getIntervals() {
+        return _facets;
+    }
+
+    /**
+     * Get the facet for one interval.
+     * 
+     * @param interval the interval, as given in the request
+     * @return the facet, or null if that interval wasn't requested
+     */
+    public DateFacet<?> getInterval(final String interval) {
+        for(final DateFacet<?> facet : _facets) {
+            if(facet.getName().equals(interval))
+                return facet;
+        }
+        return null;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public BytesReference streamType() {
+        return STREAM_TYPE;
+    }
+
+    @Override
+    public Facet reduce(final List<Facet> facets) {
+        if(facets.size() == 0)
+            return new InternalMultiIntervalFacet(getName(), new ArrayList<DateFacet<?>>());
+        final InternalMultiIntervalFacet target = (InternalMultiIntervalFacet) facets.get(0);
+        if(facets.size() == 1)
+            return target;
+
+        // Every shard computes the same intervals in the same order, so reduce them position by position
+        final List<DateFacet<?>> reduced = newArrayListWithCapacity(target._facets.size());
+        for(int i = 0; i < target._facets.size(); i++) {
+            final List<Facet> intervalFacets = newArrayListWithCapacity(facets.size());
+            for(final Facet facet : facets) {
+                intervalFacets.add(((InternalMultiIntervalFacet) facet)._facets.get(i));
+            }
+            reduced.add((DateFacet<?>) target._facets.get(i).reduce(intervalFacets));
+        }
+        target._facets = reduced;
+        return target;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject(getName());
+        builder.field(Constants._TYPE, getType());
+        builder.startObject(Constants.INTERVALS);
+        for(final DateFacet<?> facet : _facets) {
+            facet.toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        final int size = in.readVInt();
+        _facets = newArrayListWithCapacity(size);
+        for(int i = 0; i < size; i++) {
+            final BytesReference type = in.readBytesReference();
+            _facets.add((DateFacet<?>) Streams.stream(type).readFacet(in));
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(_facets.size());
+        for(final DateFacet<?> facet : _facets) {
+            out.writeBytesReference(facet.streamType());
+            facet.writeTo(out);
+        }
+    }
+
+}
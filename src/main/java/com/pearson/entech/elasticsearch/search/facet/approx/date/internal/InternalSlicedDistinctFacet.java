@@ -3,10 +3,13 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
@@ -14,9 +17,14 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.common.trove.function.TLongFunction;
+import org.elasticsearch.common.trove.iterator.TLongObjectIterator;
 import org.elasticsearch.common.trove.procedure.TLongObjectProcedure;
 import org.elasticsearch.common.trove.procedure.TObjectObjectProcedure;
 import org.elasticsearch.common.trove.procedure.TObjectProcedure;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.elasticsearch.common.util.concurrent.jsr166y.RecursiveAction;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.facet.Facet;
 
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
@@ -25,6 +33,7 @@ import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFa
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctSlice;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.HasDistinct;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.SliceList;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.XContentEnabledList;
 
 public class InternalSlicedDistinctFacet
@@ -33,9 +42,35 @@ public class InternalSlicedDistinctFacet
 
     private ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> _counts;
 
-    private long _total;
-    private List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> _periods;
-    private long _distinctCount;
+    /**
+     * Slice labels received so far, so that equal labels from different shards share one instance.
+     */
+    private ExtTHashMap<BytesRef, BytesRef> _labelPool;
+
+    /**
+     * The number of slices per period to return once reduced, or 0 for all of them.
+     */
+    private int _sliceSize;
+
+    /**
+     * The slices left out of each period by trimming, merged together, or null if nothing has been left out.
+     */
+    private ExtTLongObjectHashMap<DistinctCountPayload> _other;
+
+    private final PublishOnce<Summary> _summary = new PublishOnce<Summary>() {
+        @Override
+        protected Summary compute() {
+            return summarize();
+        }
+    };
+
+    private final PublishOnce<List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>>> _periods =
+            new PublishOnce<List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>>>() {
+                @Override
+                protected List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> compute() {
+                    return materialize(_summary.get());
+                }
+            };
 
     private static final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> EMPTY = CacheRecycler.popLongObjectMap();
     static final String TYPE = "sliced_distinct_date_facet";
@@ -71,20 +106,55 @@ public class InternalSlicedDistinctFacet
 
     @Override
     public long getDistinctCount() {
-        materialize();
-        return _distinctCount;
+        return _summary.get()._distinctCount;
     }
 
     @Override
     public long getTotalCount() {
-        materialize();
-        return _total;
+        return _summary.get()._total;
     }
 
     @Override
     public List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> getTimePeriods() {
-        materialize();
-        return _periods;
+        return _periods.get();
+    }
+
+    @Override
+    protected void periodsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        for(int i = 0; i < summary._keys.length; i++) {
+            builder.startObject();
+            builder.field(Constants.TIME, summary._keys[i]);
+            builder.field(Constants.COUNT, summary._periodCounts[i]);
+            builder.field(Constants.DISTINCT_COUNT, summary._periodDistincts[i]);
+            builder.startArray(Constants.SLICES);
+            for(int j = summary._sliceStarts[i]; j < summary._sliceStarts[i + 1]; j++) {
+                builder.startObject();
+                builder.field(Constants.TERM, summary._sliceLabels[j]);
+                builder.field(Constants.COUNT, summary._sliceCounts[j]);
+                builder.field(Constants.DISTINCT_COUNT, summary._sliceDistincts[j]);
+                builder.endObject();
+            }
+            builder.endArray();
+            if(summary._otherCounts != null) {
+                builder.startObject(Constants.OTHER);
+                builder.field(Constants.COUNT, summary._otherCounts[i]);
+                builder.field(Constants.DISTINCT_COUNT, summary._otherDistincts[i]);
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+    }
+
+    @Override
+    protected void columnsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        Columns.array(builder, Constants.TIMES, summary._keys);
+        Columns.array(builder, Constants.COUNTS, summary._periodCounts);
+        Columns.array(builder, Constants.DISTINCT_COUNTS, summary._periodDistincts);
+        Columns.slices(builder, summary._sliceStarts, summary._sliceLabels, summary._sliceCounts, summary._sliceDistincts);
+        if(summary._otherCounts != null)
+            Columns.other(builder, summary._otherCounts, summary._otherDistincts);
     }
 
     @Override
@@ -100,80 +170,522 @@ public class InternalSlicedDistinctFacet
     @SuppressWarnings("unchecked")
     @Override
     protected ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> peekCounts() {
+        readPendingData();
         return _counts;
     }
 
     @Override
     protected void readData(final StreamInput in) throws IOException {
         _counts = CacheRecycler.popLongObjectMap();
-        final int size = in.readVInt();
-        for(int i = 0; i < size; i++) {
-            final long key = in.readVLong();
+        mergeData(in);
+    }
+
+    @Override
+    protected void mergeData(final StreamInput in) throws IOException {
+        final long[] keys = PeriodKeys.read(in);
+        if(_labelPool == null)
+            _labelPool = CacheRecycler.popHashMap();
+        final BytesRef[] labels = SliceLabels.read(in, _labelPool);
+        for(final long key : keys) {
             final int sliceCount = in.readVInt();
-            final ExtTHashMap<BytesRef, DistinctCountPayload> slice = CacheRecycler.popHashMap();
+            ExtTHashMap<BytesRef, DistinctCountPayload> slice = _counts.get(key);
+            if(slice == null) {
+                slice = CacheRecycler.popHashMap();
+                _counts.put(key, slice);
+            }
             for(int j = 0; j < sliceCount; j++) {
-                final BytesRef sliceLabel = in.readBytesRef();
-                final DistinctCountPayload payload = new DistinctCountPayload(in);
-                slice.put(sliceLabel, payload);
+                final BytesRef sliceLabel = labels[in.readVInt()];
+                // Only one deserialized payload is alive at a time
+                new DistinctCountPayload(in).mergeInto(slice, sliceLabel);
+            }
+        }
+        final int sliceSize = in.readVInt();
+        if(sliceSize > 0) {
+            _sliceSize = sliceSize;
+            for(final long key : PeriodKeys.read(in)) {
+                addOther(key, new DistinctCountPayload(in));
             }
-            _counts.put(key, slice);
         }
     }
 
+    @Override
+    protected int estimateDataSize() {
+        int size = 0;
+        if(_counts != null) {
+            for(final ExtTHashMap<BytesRef, DistinctCountPayload> period : _counts.valueCollection()) {
+                // A delta-encoded key and a slice count, then a label id and a payload for each slice.
+                // Labels are written once for the whole facet, so they're left out.
+                size += 6;
+                for(final DistinctCountPayload payload : period.values()) {
+                    size += 3 + payload.estimateSize();
+                }
+            }
+        }
+        if(_other != null) {
+            for(final DistinctCountPayload payload : _other.valueCollection()) {
+                size += 5 + payload.estimateSize();
+            }
+        }
+        return size;
+    }
+
     @Override
     protected void writeData(final StreamOutput out) throws IOException {
-        if(_counts == null) {
-            out.writeVInt(0);
+        final long[] keys = PeriodKeys.write(out, _counts == null ? null : _counts.keys());
+        final SliceLabels labels = new SliceLabels();
+        for(final long key : keys) {
+            labels.addAll(_counts.get(key).keySet());
+        }
+        labels.writeTo(out);
+        // Slices for each period follow the keys, in the same order
+        final SliceSerializer serializeSlices = new SliceSerializer();
+        for(final long key : keys) {
+            final ExtTHashMap<BytesRef, DistinctCountPayload> period = _counts.get(key);
+            serializeSlices.init(out, labels, period.size());
+            period.forEachEntry(serializeSlices);
+        }
+        serializeSlices.clear();
+        out.writeVInt(_sliceSize);
+        if(_sliceSize > 0) {
+            // Then the slices left out by trimming, for the periods which have any
+            for(final long key : PeriodKeys.write(out, _other == null ? null : _other.keys())) {
+                _other.get(key).writeTo(out);
+            }
+        }
+    }
+
+    @Override
+    protected void scaleCounts(final double factor) {
+        readPendingData();
+        if(_counts == null)
+            return;
+        for(final ExtTHashMap<BytesRef, DistinctCountPayload> slices : _counts.valueCollection()) {
+            for(final DistinctCountPayload payload : slices.values()) {
+                payload.scaleCount(factor);
+            }
+        }
+        if(_other != null) {
+            for(final DistinctCountPayload payload : _other.valueCollection()) {
+                payload.scaleCount(factor);
+            }
+        }
+    }
+
+    @Override
+    public void trimSlices(final int size, final int shardSize) {
+        readPendingData();
+        _sliceSize = size;
+        // The other slice is only kept when there's a size, so anything trimmed without one would be lost
+        trim(size > 0 ? shardSize : 0);
+    }
+
+    /**
+     * Remove all but the top slices of each period, by distinct count, merging the rest into the period's other slice.
+     * 
+     * @param size the number of slices to keep, or 0 to keep them all
+     */
+    private void trim(final int size) {
+        if(size <= 0 || _counts == null)
             return;
+        for(final TLongObjectIterator<ExtTHashMap<BytesRef, DistinctCountPayload>> iter = _counts.iterator(); iter.hasNext();) {
+            iter.advance();
+            final ExtTHashMap<BytesRef, DistinctCountPayload> period = iter.value();
+            if(period.size() <= size)
+                continue;
+            final BytesRef[] labels = new BytesRef[period.size()];
+            final long[] cardinalities = new long[labels.length];
+            int i = 0;
+            for(final Map.Entry<BytesRef, DistinctCountPayload> slice : period.entrySet()) {
+                labels[i] = slice.getKey();
+                cardinalities[i] = slice.getValue().getCardinality().cardinality();
+                i++;
+            }
+            final Integer[] order = TopSlices.order(labels, cardinalities);
+            for(int j = size; j < order.length; j++) {
+                addOther(iter.key(), period.remove(labels[order[j]]));
+            }
+        }
+    }
+
+    private void addOther(final long key, final DistinctCountPayload payload) {
+        if(_other == null)
+            _other = CacheRecycler.popLongObjectMap();
+        payload.mergeInto(_other, key);
+    }
+
+    @Override
+    public InternalSlicedDistinctFacet rollUp(final String name, final TLongFunction keyMap) {
+        readPendingData();
+        final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts = CacheRecycler.popLongObjectMap();
+        if(_counts != null) {
+            for(final TLongObjectIterator<ExtTHashMap<BytesRef, DistinctCountPayload>> iter = _counts.iterator(); iter.hasNext();) {
+                iter.advance();
+                final long key = keyMap.execute(iter.key());
+                ExtTHashMap<BytesRef, DistinctCountPayload> target = counts.get(key);
+                if(target == null) {
+                    target = CacheRecycler.popHashMap();
+                    counts.put(key, target);
+                }
+                // Merging is destructive, so merge copies and leave this facet intact
+                for(final Map.Entry<BytesRef, DistinctCountPayload> slice : iter.value().entrySet()) {
+                    slice.getValue().copy().mergeInto(target, slice.getKey());
+                }
+            }
+        }
+        final InternalSlicedDistinctFacet rolledUp = new InternalSlicedDistinctFacet(name, counts);
+        rolledUp._sliceSize = _sliceSize;
+        if(_other != null) {
+            for(final TLongObjectIterator<DistinctCountPayload> iter = _other.iterator(); iter.hasNext();) {
+                iter.advance();
+                rolledUp.addOther(keyMap.execute(iter.key()), iter.value().copy());
+            }
         }
-        final int size = _counts.size();
-        _serializePeriods.init(out, size);
-        _counts.forEachEntry(_serializePeriods);
-        _serializePeriods.clear();
+        return rolledUp;
     }
 
     @Override
     public Facet reduce(final List<Facet> facets) {
+        return reduce(facets, reducePool(facets));
+    }
+
+    /**
+     * Reduce some facets, in parallel if it's worth it and there's a pool to do it in.
+     * 
+     * @param facets the facets
+     * @param parallelPool the pool, or null to reduce sequentially
+     * @return the reduced facet
+     */
+    Facet reduce(final List<Facet> facets, final ForkJoinPool parallelPool) {
         if(facets.size() > 0) {
             // Reduce into the first facet; we will release its _counts on rendering into XContent
             final InternalSlicedDistinctFacet target = (InternalSlicedDistinctFacet) facets.get(0);
+            target.readPendingData();
+            final ForkJoinPool pool = ParallelReduce.pool(parallelPool, target._counts.size(), facets.size());
+            if(pool != null) {
+                target.mergeInParallel(facets, pool);
+                return target;
+            }
+            // Unlike counts, slices here stay keyed by label: merging a slice's distinct counter hashes
+            // up to exact_threshold terms, or walks thousands of estimator registers, so one more hash
+            // for its label makes no measurable difference
+            final TimePeriodMerger mergePeriods = new TimePeriodMerger();
             for(int i = 1; i < facets.size(); i++) {
                 final InternalSlicedDistinctFacet source = (InternalSlicedDistinctFacet) facets.get(i);
-                _mergePeriods.target = target;
-                source._counts.forEachEntry(_mergePeriods);
-                _mergePeriods.target = null; // Avoid risk of garbage leaks
+                // Shard results are merged straight from their serialized form where possible
+                if(target.mergePendingData(source))
+                    continue;
+                mergePeriods.target = target;
+                source._counts.forEachEntry(mergePeriods);
+                mergePeriods.target = null; // Avoid risk of garbage leaks
+                target.mergeOther(source);
                 // Release contents of source facet; no longer needed
                 source.releaseCache();
             }
+            // Shards each returned their own top slices, so trim the merged result to the final size
+            target.trim(target._sliceSize);
             return target;
         } else {
             return new InternalSlicedDistinctFacet(getName(), EMPTY);
         }
     }
 
-    private synchronized void materialize() {
-        if(_periods != null)
-            return;
-        if(_counts == null || _counts.size() == 0) {
-            _total = 0;
-            _distinctCount = 0;
-            _periods = newArrayListWithCapacity(0);
+    /**
+     * Merge the slices another facet has left out of its periods into this facet.
+     * 
+     * @param source the other facet, which must not be read from again
+     */
+    private void mergeOther(final InternalSlicedDistinctFacet source) {
+        _sliceSize = Math.max(_sliceSize, source._sliceSize);
+        if(source._other == null)
             return;
+        for(final TLongObjectIterator<DistinctCountPayload> iter = source._other.iterator(); iter.hasNext();) {
+            iter.advance();
+            addOther(iter.key(), iter.value());
+        }
+    }
+
+    /**
+     * Merge all but the first of a list of facets into this one, which must be the first,
+     * splitting the periods between the threads of a pool.
+     * 
+     * @param facets the facets
+     * @param pool the pool
+     */
+    private void mergeInParallel(final List<Facet> facets, final ForkJoinPool pool) {
+        final int partitions = pool.getParallelism();
+        final List<PartitionMerger> tasks = newArrayListWithCapacity(partitions);
+        for(int i = 0; i < partitions; i++) {
+            tasks.add(new PartitionMerger(i, partitions, facets));
+        }
+        // Each task starts from the periods of this facet in its own partition
+        for(final TLongObjectIterator<ExtTHashMap<BytesRef, DistinctCountPayload>> iter = _counts.iterator(); iter.hasNext();) {
+            iter.advance();
+            tasks.get(ParallelReduce.partition(iter.key(), partitions)).counts.put(iter.key(), iter.value());
+        }
+        ParallelReduce.invokeAll(pool, tasks);
+        _counts.clear();
+        for(final PartitionMerger task : tasks) {
+            _counts.putAll(task.counts);
+            // The slices left out by the sources are merged here, as they are small
+            _sliceSize = Math.max(_sliceSize, task.sliceSize);
+            for(final TLongObjectIterator<DistinctCountPayload> iter = task.other.iterator(); iter.hasNext();) {
+                iter.advance();
+                addOther(iter.key(), iter.value());
+            }
+        }
+        for(int i = 1; i < facets.size(); i++) {
+            final InternalSlicedDistinctFacet source = (InternalSlicedDistinctFacet) facets.get(i);
+            if(!discardPendingData(source)) {
+                mergeOther(source);
+                source.releaseCache();
+            }
+        }
+        trim(_sliceSize);
+    }
+
+    /**
+     * A task which merges the periods in one partition from all the source facets of a reduce.
+     */
+    private static final class PartitionMerger extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int _partition;
+        private final int _partitions;
+        private final List<Facet> _facets;
+        final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts =
+                new ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>>();
+        final ExtTLongObjectHashMap<DistinctCountPayload> other = new ExtTLongObjectHashMap<DistinctCountPayload>();
+        int sliceSize;
+        // Each task pools its own labels, as the pools aren't thread-safe
+        private final ExtTHashMap<BytesRef, BytesRef> _labelPool = new ExtTHashMap<BytesRef, BytesRef>();
+
+        PartitionMerger(final int partition, final int partitions, final List<Facet> facets) {
+            _partition = partition;
+            _partitions = partitions;
+            _facets = facets;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for(int i = 1; i < _facets.size(); i++) {
+                    final InternalSlicedDistinctFacet source = (InternalSlicedDistinctFacet) _facets.get(i);
+                    final StreamInput in = pendingDataStream(source);
+                    if(in == null) {
+                        mergePartition(source._counts);
+                    } else {
+                        try {
+                            mergePartition(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+            } catch(final IOException e) {
+                throw new ElasticSearchException("Unable to merge facet data", e);
+            }
+        }
+
+        private ExtTHashMap<BytesRef, DistinctCountPayload> period(final long key) {
+            ExtTHashMap<BytesRef, DistinctCountPayload> period = counts.get(key);
+            if(period == null) {
+                period = CacheRecycler.popHashMap();
+                counts.put(key, period);
+            }
+            return period;
         }
-        _periods = newArrayListWithCapacity(_counts.size());
-        final long[] counter = { 0 };
-        _materializePeriods.init(_periods);
-        _counts.forEachEntry(_materializePeriods);
-        _materializePeriods.clear();
-        Collections.sort(_periods, ChronologicalOrder.INSTANCE);
-        _total = counter[0];
+
+        // Other tasks read the same source map at the same time, but nobody writes to it
+        private void mergePartition(final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> source) {
+            for(final TLongObjectIterator<ExtTHashMap<BytesRef, DistinctCountPayload>> iter = source.iterator(); iter.hasNext();) {
+                iter.advance();
+                if(ParallelReduce.partition(iter.key(), _partitions) != _partition)
+                    continue;
+                final ExtTHashMap<BytesRef, DistinctCountPayload> period = period(iter.key());
+                for(final Map.Entry<BytesRef, DistinctCountPayload> slice : iter.value().entrySet()) {
+                    slice.getValue().mergeInto(period, slice.getKey());
+                }
+            }
+        }
+
+        // Same format as mergeData(), but periods in other partitions are skipped without being deserialized
+        private void mergePartition(final StreamInput in) throws IOException {
+            final long[] keys = PeriodKeys.read(in);
+            final BytesRef[] labels = SliceLabels.read(in, _labelPool);
+            for(final long key : keys) {
+                final int sliceCount = in.readVInt();
+                if(ParallelReduce.partition(key, _partitions) == _partition) {
+                    final ExtTHashMap<BytesRef, DistinctCountPayload> period = period(key);
+                    for(int j = 0; j < sliceCount; j++) {
+                        final BytesRef sliceLabel = labels[in.readVInt()];
+                        new DistinctCountPayload(in).mergeInto(period, sliceLabel);
+                    }
+                } else {
+                    for(int j = 0; j < sliceCount; j++) {
+                        in.readVInt();
+                        DistinctCountPayload.skip(in);
+                    }
+                }
+            }
+            final int size = in.readVInt();
+            if(size > 0) {
+                sliceSize = size;
+                for(final long key : PeriodKeys.read(in)) {
+                    if(ParallelReduce.partition(key, _partitions) == _partition)
+                        new DistinctCountPayload(in).mergeInto(other, key);
+                    else
+                        DistinctCountPayload.skip(in);
+                }
+            }
+        }
+
+    }
+
+    // Sort the periods, and their slices if trimmed, into flat arrays, estimating cardinalities as we go
+    // and merging the counters into period-wise and overall totals; only ever called once, as the
+    // counters are merged destructively
+    private Summary summarize() {
+        readPendingData();
+        if(_counts == null || _counts.size() == 0)
+            return new Summary(new long[0], new long[0], new long[0], new int[1], new BytesRef[0], new long[0], new long[0],
+                    null, null, 0, 0);
+        trim(_sliceSize);
+        final long[] keys = _counts.keys();
+        Arrays.sort(keys);
+        int slices = 0;
+        for(final long key : keys) {
+            slices += _counts.get(key).size();
+        }
+        final long[] periodCounts = new long[keys.length];
+        final long[] periodDistincts = new long[keys.length];
+        final int[] sliceStarts = new int[keys.length + 1];
+        final BytesRef[] sliceLabels = new BytesRef[slices];
+        final long[] sliceCounts = new long[slices];
+        final long[] sliceDistincts = new long[slices];
+        final long[] otherCounts = _sliceSize > 0 ? new long[keys.length] : null;
+        final long[] otherDistincts = _sliceSize > 0 ? new long[keys.length] : null;
+        DistinctCountPayload accumulator = null;
+        int next = 0;
+        for(int i = 0; i < keys.length; i++) {
+            sliceStarts[i] = next;
+            DistinctCountPayload periodAccumulator = null;
+            for(final Map.Entry<BytesRef, DistinctCountPayload> slice : _counts.get(keys[i]).entrySet()) {
+                final DistinctCountPayload payload = slice.getValue();
+                sliceLabels[next] = slice.getKey();
+                sliceCounts[next] = payload.getCount();
+                sliceDistincts[next] = payload.getCardinality().cardinality();
+                periodAccumulator = accumulate(periodAccumulator, payload);
+                next++;
+            }
+            if(otherCounts != null) {
+                TopSlices.sort(sliceLabels, sliceDistincts, sliceCounts, sliceStarts[i], next);
+                // Period totals include any slices left out
+                final DistinctCountPayload other = _other == null ? null : _other.get(keys[i]);
+                if(other != null) {
+                    otherCounts[i] = other.getCount();
+                    otherDistincts[i] = other.getCardinality().cardinality();
+                    periodAccumulator = accumulate(periodAccumulator, other);
+                }
+            }
+            if(periodAccumulator != null) {
+                periodCounts[i] = periodAccumulator.getCount();
+                periodDistincts[i] = periodAccumulator.getCardinality().cardinality();
+                accumulator = accumulate(accumulator, periodAccumulator);
+            }
+        }
+        sliceStarts[keys.length] = next;
+        final long total = accumulator == null ? 0 : accumulator.getCount();
+        final long distinctCount = accumulator == null ? 0 : accumulator.getCardinality().cardinality();
         releaseCache();
+        return new Summary(keys, periodCounts, periodDistincts, sliceStarts, sliceLabels, sliceCounts, sliceDistincts,
+                otherCounts, otherDistincts, total, distinctCount);
+    }
+
+    // Save the first payload, and merge the others into it once they've been counted
+    private static DistinctCountPayload accumulate(final DistinctCountPayload accumulator, final DistinctCountPayload payload) {
+        if(accumulator == null)
+            return payload;
+        try {
+            return accumulator.merge(payload);
+        } catch(final CardinalityMergeException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Only needed by Java clients; XContent is rendered straight from the summary
+    private static List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> materialize(final Summary summary) {
+        final List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> periods = newArrayListWithCapacity(summary._keys.length);
+        for(int i = 0; i < summary._keys.length; i++) {
+            final int start = summary._sliceStarts[i];
+            final int end = summary._sliceStarts[i + 1];
+            final XContentEnabledList<DistinctSlice<String>> slices;
+            if(summary._otherCounts != null)
+                slices = new SliceList<DistinctSlice<String>>(end - start, Constants.SLICES,
+                        new DistinctSlice<String>(null, summary._otherCounts[i], summary._otherDistincts[i]));
+            else
+                slices = new XContentEnabledList<DistinctSlice<String>>(end - start, Constants.SLICES);
+            for(int j = start; j < end; j++) {
+                slices.add(new DistinctSlice<String>(summary._sliceLabels[j].utf8ToString(), summary._sliceCounts[j], summary._sliceDistincts[j]));
+            }
+            periods.add(new DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>(
+                    summary._keys[i], summary._periodCounts[i], summary._periodDistincts[i], slices));
+        }
+        return Collections.unmodifiableList(periods);
     }
 
     @Override
     protected void releaseCache() {
         _counts.forEachValue(_releaseCachedMaps);
         CacheRecycler.pushLongObjectMap(_counts);
+        if(_other != null) {
+            CacheRecycler.pushLongObjectMap(_other);
+            _other = null;
+        }
+        if(_labelPool != null) {
+            CacheRecycler.pushHashMap(_labelPool);
+            _labelPool = null;
+        }
+    }
+
+    /**
+     * The contents of a facet, ready for rendering. Never modified once published.
+     */
+    private static final class Summary {
+
+        // Period keys in chronological order, and their counts and distinct counts. The slices of
+        // period i are held at positions _sliceStarts[i] to _sliceStarts[i + 1] of the slice arrays.
+        private final long[] _keys;
+        private final long[] _periodCounts;
+        private final long[] _periodDistincts;
+        private final int[] _sliceStarts;
+        private final BytesRef[] _sliceLabels;
+        private final long[] _sliceCounts;
+        private final long[] _sliceDistincts;
+
+        // Counts and distinct counts of the slices left out of each period, or null if the facet isn't trimmed
+        private final long[] _otherCounts;
+        private final long[] _otherDistincts;
+
+        private final long _total;
+        private final long _distinctCount;
+
+        Summary(final long[] keys, final long[] periodCounts, final long[] periodDistincts,
+                final int[] sliceStarts, final BytesRef[] sliceLabels, final long[] sliceCounts, final long[] sliceDistincts,
+                final long[] otherCounts, final long[] otherDistincts, final long total, final long distinctCount) {
+            _keys = keys;
+            _periodCounts = periodCounts;
+            _periodDistincts = periodDistincts;
+            _sliceStarts = sliceStarts;
+            _sliceLabels = sliceLabels;
+            _sliceCounts = sliceCounts;
+            _sliceDistincts = sliceDistincts;
+            _otherCounts = otherCounts;
+            _otherDistincts = otherDistincts;
+            _total = total;
+            _distinctCount = distinctCount;
+        }
+
     }
 
     private final CacheReleaser _releaseCachedMaps = new CacheReleaser();
@@ -186,8 +698,6 @@ public class InternalSlicedDistinctFacet
         }
     }
 
-    private final TimePeriodMerger _mergePeriods = new TimePeriodMerger();
-
     private static final class TimePeriodMerger implements TLongObjectProcedure<ExtTHashMap<BytesRef, DistinctCountPayload>> {
 
         InternalSlicedDistinctFacet target;
@@ -227,153 +737,32 @@ public class InternalSlicedDistinctFacet
 
     }
 
-    private final PeriodMaterializer _materializePeriods = new PeriodMaterializer();
-
-    private static final class PeriodMaterializer implements TLongObjectProcedure<ExtTHashMap<BytesRef, DistinctCountPayload>> {
-
-        private List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> _target;
-        private DistinctCountPayload _accumulator;
-
-        public void init(final List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> _periods) {
-            _target = _periods;
-            _accumulator = null;
-        }
-
-        // Called once per time period
-        @Override
-        public boolean execute(final long time, final ExtTHashMap<BytesRef, DistinctCountPayload> period) {
-            // First create output buffer for the slices from this period
-            final XContentEnabledList<DistinctSlice<String>> buffer =
-                    new XContentEnabledList<DistinctSlice<String>>(period.size(), Constants.SLICES);
-            // Then materialize the slices into it, creating period-wise subtotals as we go along
-            _materializeSlices.init(buffer);
-            period.forEachEntry(_materializeSlices);
-            // Save materialization results, and period-wise subtotals
-            final DistinctCountPayload periodAccumulator = _materializeSlices.getAccumulator();
-            final long count = periodAccumulator.getCount();
-            final long cardinality = periodAccumulator.getCardinality().cardinality();
-            _target.add(
-                    new DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>(
-                            time, count, cardinality, buffer));
-
-            // Save the first payload accumulator we receive, and merge the others into it
-            if(_accumulator == null)
-                _accumulator = periodAccumulator;
-            else
-                try {
-                    _accumulator.merge(periodAccumulator);
-                } catch(final CardinalityMergeException e) {
-                    throw new IllegalStateException(e);
-                }
-            return true;
-        }
-
-        public void clear() {
-            _target = null;
-            _accumulator = null;
-            _materializeSlices.clear();
-        }
-
-        private final SliceMaterializer _materializeSlices = new SliceMaterializer();
-
-        private static class SliceMaterializer implements TObjectObjectProcedure<BytesRef, DistinctCountPayload> {
-
-            private List<DistinctSlice<String>> _target;
-            private DistinctCountPayload _accumulator;
-
-            public void init(final List<DistinctSlice<String>> target) {
-                _target = target;
-                _accumulator = null;
-            }
-
-            public DistinctCountPayload getAccumulator() {
-                return _accumulator;
-            }
-
-            // Called once for each slice in a period
-            @Override
-            public boolean execute(final BytesRef key, final DistinctCountPayload payload) {
-                _target.add(new DistinctSlice<String>(key.utf8ToString(),
-                        payload.getCount(), payload.getCardinality().cardinality()));
-
-                // Save the first payload we receive, and merge the others into it
-                if(_accumulator == null)
-                    _accumulator = payload;
-                else
-                    try {
-                        _accumulator.merge(payload);
-                    } catch(final CardinalityMergeException e) {
-                        throw new IllegalStateException(e);
-                    }
-
-                return true;
-            }
-
-            public void clear() {
-                _target = null;
-                _accumulator = null;
-            }
-
-        }
-
-    }
-
-    private final PeriodSerializer _serializePeriods = new PeriodSerializer();
-
-    private static final class PeriodSerializer implements TLongObjectProcedure<ExtTHashMap<BytesRef, DistinctCountPayload>> {
+    private static final class SliceSerializer implements TObjectObjectProcedure<BytesRef, DistinctCountPayload> {
 
         private StreamOutput _output;
+        private SliceLabels _labels;
 
-        public void init(final StreamOutput output, final int size) throws IOException {
+        public void init(final StreamOutput output, final SliceLabels labels, final int size) throws IOException {
             _output = output;
+            _labels = labels;
             output.writeVInt(size);
         }
 
-        // Called once per time period
+        // Called once for each slice in a period
         @Override
-        public boolean execute(final long key, final ExtTHashMap<BytesRef, DistinctCountPayload> period) {
+        public boolean execute(final BytesRef sliceLabel, final DistinctCountPayload payload) {
             try {
-                _output.writeVLong(key);
-                _serializeSlices.init(_output, period.size());
+                _output.writeVInt(_labels.id(sliceLabel));
+                payload.writeTo(_output);
             } catch(final IOException e) {
                 throw new IllegalStateException(e);
             }
-            period.forEachEntry(_serializeSlices);
             return true;
         }
 
         public void clear() {
             _output = null;
-            _serializeSlices.clear();
-        }
-
-        private final SliceSerializer _serializeSlices = new SliceSerializer();
-
-        private static final class SliceSerializer implements TObjectObjectProcedure<BytesRef, DistinctCountPayload> {
-
-            private StreamOutput _output;
-
-            public void init(final StreamOutput output, final int size) throws IOException {
-                _output = output;
-                output.writeVInt(size);
-            }
-
-            // Called once for each slice in a period
-            @Override
-            public boolean execute(final BytesRef sliceLabel, final DistinctCountPayload payload) {
-                try {
-                    _output.writeBytesRef(sliceLabel);
-                    payload.writeTo(_output);
-                } catch(final IOException e) {
-                    throw new IllegalStateException(e);
-                }
-                return true;
-            }
-
-            public void clear() {
-                _output = null;
-            }
-
+            _labels = null;
         }
 
     }
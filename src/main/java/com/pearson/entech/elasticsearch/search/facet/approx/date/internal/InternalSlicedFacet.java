@@ -3,25 +3,36 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.common.trove.function.TLongFunction;
+import org.elasticsearch.common.trove.iterator.TIntIntIterator;
+import org.elasticsearch.common.trove.iterator.TLongIntIterator;
+import org.elasticsearch.common.trove.iterator.TLongObjectIterator;
+import org.elasticsearch.common.trove.iterator.TObjectIntIterator;
+import org.elasticsearch.common.trove.map.hash.TIntIntHashMap;
+import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
-import org.elasticsearch.common.trove.procedure.TLongObjectProcedure;
 import org.elasticsearch.common.trove.procedure.TObjectIntProcedure;
 import org.elasticsearch.common.trove.procedure.TObjectProcedure;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.facet.Facet;
 
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Constants;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Slice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.SliceList;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.XContentEnabledList;
 
@@ -29,8 +40,35 @@ public class InternalSlicedFacet extends DateFacet<TimePeriod<XContentEnabledLis
 
     private ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> _counts;
 
-    private long _total;
-    private List<TimePeriod<XContentEnabledList<Slice<String>>>> _periods;
+    /**
+     * Slice labels received so far, so that equal labels from different shards share one instance.
+     */
+    private ExtTHashMap<BytesRef, BytesRef> _labelPool;
+
+    /**
+     * The number of slices per period to return once reduced, or 0 for all of them.
+     */
+    private int _sliceSize;
+
+    /**
+     * Counts of the slices left out of each period by trimming, or null if nothing has been left out.
+     */
+    private TLongIntHashMap _other;
+
+    private final PublishOnce<Summary> _summary = new PublishOnce<Summary>() {
+        @Override
+        protected Summary compute() {
+            return summarize();
+        }
+    };
+
+    private final PublishOnce<List<TimePeriod<XContentEnabledList<Slice<String>>>>> _periods =
+            new PublishOnce<List<TimePeriod<XContentEnabledList<Slice<String>>>>>() {
+                @Override
+                protected List<TimePeriod<XContentEnabledList<Slice<String>>>> compute() {
+                    return materialize(_summary.get());
+                }
+            };
 
     private static final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> EMPTY = new ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>>();
     static final String TYPE = "sliced_date_facet";
@@ -65,14 +103,46 @@ public class InternalSlicedFacet extends DateFacet<TimePeriod<XContentEnabledLis
 
     @Override
     public long getTotalCount() {
-        materialize();
-        return _total;
+        return _summary.get()._total;
     }
 
     @Override
     public List<TimePeriod<XContentEnabledList<Slice<String>>>> getTimePeriods() {
-        materialize();
-        return _periods;
+        return _periods.get();
+    }
+
+    @Override
+    protected void periodsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        for(int i = 0; i < summary._keys.length; i++) {
+            builder.startObject();
+            builder.field(Constants.TIME, summary._keys[i]);
+            builder.field(Constants.COUNT, summary._periodCounts[i]);
+            builder.startArray(Constants.SLICES);
+            for(int j = summary._sliceStarts[i]; j < summary._sliceStarts[i + 1]; j++) {
+                builder.startObject();
+                builder.field(Constants.TERM, summary._sliceLabels[j]);
+                builder.field(Constants.COUNT, summary._sliceCounts[j]);
+                builder.endObject();
+            }
+            builder.endArray();
+            if(summary._otherCounts != null) {
+                builder.startObject(Constants.OTHER);
+                builder.field(Constants.COUNT, summary._otherCounts[i]);
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+    }
+
+    @Override
+    protected void columnsToXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final Summary summary = _summary.get();
+        Columns.array(builder, Constants.TIMES, summary._keys);
+        Columns.array(builder, Constants.COUNTS, summary._periodCounts);
+        Columns.slices(builder, summary._sliceStarts, summary._sliceLabels, summary._sliceCounts, null);
+        if(summary._otherCounts != null)
+            Columns.other(builder, summary._otherCounts, null);
     }
 
     @Override
@@ -88,251 +158,479 @@ public class InternalSlicedFacet extends DateFacet<TimePeriod<XContentEnabledLis
     @SuppressWarnings("unchecked")
     @Override
     protected ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> peekCounts() {
+        readPendingData();
         return _counts;
     }
 
     @Override
     protected void readData(final StreamInput in) throws IOException {
         _counts = CacheRecycler.popLongObjectMap();
-        final int size = in.readVInt();
-        for(int i = 0; i < size; i++) {
-            final long key = in.readVLong();
+        mergeData(in);
+    }
+
+    @Override
+    protected void mergeData(final StreamInput in) throws IOException {
+        final long[] keys = PeriodKeys.read(in);
+        if(_labelPool == null)
+            _labelPool = CacheRecycler.popHashMap();
+        final BytesRef[] labels = SliceLabels.read(in, _labelPool);
+        for(final long key : keys) {
             final int sliceCount = in.readVInt();
-            final TObjectIntHashMap<BytesRef> slice = CacheRecycler.popObjectIntMap();
+            TObjectIntHashMap<BytesRef> slice = _counts.get(key);
+            if(slice == null) {
+                slice = CacheRecycler.popObjectIntMap();
+                _counts.put(key, slice);
+            }
             for(int j = 0; j < sliceCount; j++) {
-                final BytesRef sliceLabel = in.readBytesRef();
-                slice.put(sliceLabel, in.readVInt());
+                final BytesRef sliceLabel = labels[in.readVInt()];
+                final int count = in.readVInt();
+                slice.adjustOrPutValue(sliceLabel, count, count);
+            }
+        }
+        final int sliceSize = in.readVInt();
+        if(sliceSize > 0) {
+            _sliceSize = sliceSize;
+            for(final long key : PeriodKeys.read(in)) {
+                addOther(key, in.readVInt());
             }
-            _counts.put(key, slice);
         }
     }
 
     @Override
-    protected void writeData(final StreamOutput out) throws IOException {
-        if(_counts == null) {
-            out.writeVInt(0);
-            return;
+    protected int estimateDataSize() {
+        int size = 0;
+        if(_counts != null) {
+            for(final TObjectIntHashMap<BytesRef> period : _counts.valueCollection()) {
+                // A delta-encoded key and a slice count, then a label id and a count for each slice.
+                // Labels are written once for the whole facet, so they're left out.
+                size += 6 + period.size() * 6;
+            }
         }
-        final int size = _counts.size();
-        _serializePeriods.init(out, size);
-        _counts.forEachEntry(_serializePeriods);
-        _serializePeriods.clear();
+        if(_other != null)
+            size += _other.size() * 6;
+        return size;
     }
 
     @Override
-    public Facet reduce(final List<Facet> facets) {
-        if(facets.size() > 0) {
-            // Reduce into the first facet; we will release its _counts on rendering into XContent
-            final InternalSlicedFacet target = (InternalSlicedFacet) facets.get(0);
-            for(int i = 1; i < facets.size(); i++) {
-                final InternalSlicedFacet source = (InternalSlicedFacet) facets.get(i);
-                _mergePeriods.target = target;
-                source._counts.forEachEntry(_mergePeriods);
-                _mergePeriods.target = null; // Avoid risk of garbage leaks
-                // Release contents of source facet; no longer needed
-                source.releaseCache();
+    protected void writeData(final StreamOutput out) throws IOException {
+        final long[] keys = PeriodKeys.write(out, _counts == null ? null : _counts.keys());
+        final SliceLabels labels = new SliceLabels();
+        for(final long key : keys) {
+            labels.addAll(_counts.get(key).keySet());
+        }
+        labels.writeTo(out);
+        // Slices for each period follow the keys, in the same order
+        final SliceSerializer serializeSlices = new SliceSerializer();
+        for(final long key : keys) {
+            final TObjectIntHashMap<BytesRef> period = _counts.get(key);
+            serializeSlices.init(out, labels, period.size());
+            period.forEachEntry(serializeSlices);
+        }
+        serializeSlices.clear();
+        out.writeVInt(_sliceSize);
+        if(_sliceSize > 0) {
+            // Then the slices left out by trimming, for the periods which have any
+            for(final long key : PeriodKeys.write(out, _other == null ? null : _other.keys())) {
+                out.writeVInt(_other.get(key));
             }
-            return target;
-        } else {
-            return new InternalSlicedFacet(getName(), EMPTY);
         }
     }
 
-    private synchronized void materialize() {
-        if(_periods != null)
-            return;
-        if(_counts == null || _counts.size() == 0) {
-            _total = 0;
-            _periods = newArrayListWithCapacity(0);
+    @Override
+    protected void scaleCounts(final double factor) {
+        readPendingData();
+        if(_counts == null)
             return;
+        final CountScaler scaler = new CountScaler(factor);
+        for(final TObjectIntHashMap<BytesRef> slices : _counts.valueCollection()) {
+            slices.transformValues(scaler);
         }
-        _periods = newArrayListWithCapacity(_counts.size());
-        final long[] counter = { 0 };
-        _materializePeriods.init(_periods, counter);
-        _counts.forEachEntry(_materializePeriods);
-        _materializePeriods.clear();
-        Collections.sort(_periods, ChronologicalOrder.INSTANCE);
-        _total = counter[0];
-        releaseCache();
+        if(_other != null)
+            _other.transformValues(scaler);
     }
 
     @Override
-    protected void releaseCache() {
-        _counts.forEachValue(new TObjectProcedure<TObjectIntHashMap<BytesRef>>() {
-            @Override
-            public boolean execute(final TObjectIntHashMap<BytesRef> subMap) {
-                CacheRecycler.pushObjectIntMap(subMap);
-                return true;
-            }
-        });
-        CacheRecycler.pushLongObjectMap(_counts);
+    public void trimSlices(final int size, final int shardSize) {
+        readPendingData();
+        _sliceSize = size;
+        // The other slice is only kept when there's a size, so anything trimmed without one would be lost
+        trim(size > 0 ? shardSize : 0);
     }
 
-    private final PeriodMerger _mergePeriods = new PeriodMerger();
-
-    private static final class PeriodMerger implements TLongObjectProcedure<TObjectIntHashMap<BytesRef>> {
-
-        InternalSlicedFacet target;
-
-        // Called once per period
-        @Override
-        public boolean execute(final long time, final TObjectIntHashMap<BytesRef> slices) {
-            // Does this time period exist in the target facet?
-            TObjectIntHashMap<BytesRef> targetPeriod = target._counts.get(time);
-            // If not, then pull one from the object cache to use
-            if(targetPeriod == null) {
-                targetPeriod = CacheRecycler.popObjectIntMap();
-                target._counts.put(time, targetPeriod);
+    /**
+     * Remove all but the top slices of each period, by count, adding the rest to the period's other count.
+     * 
+     * @param size the number of slices to keep, or 0 to keep them all
+     */
+    private void trim(final int size) {
+        if(size <= 0 || _counts == null)
+            return;
+        for(final TLongObjectIterator<TObjectIntHashMap<BytesRef>> iter = _counts.iterator(); iter.hasNext();) {
+            iter.advance();
+            final TObjectIntHashMap<BytesRef> period = iter.value();
+            if(period.size() <= size)
+                continue;
+            final BytesRef[] labels = new BytesRef[period.size()];
+            final long[] counts = new long[labels.length];
+            int i = 0;
+            for(final TObjectIntIterator<BytesRef> slices = period.iterator(); slices.hasNext(); i++) {
+                slices.advance();
+                labels[i] = slices.key();
+                counts[i] = slices.value();
             }
-
-            // Add or update all slices in this period
-            _mergeSlices.target = targetPeriod;
-            slices.forEachEntry(_mergeSlices);
-            _mergeSlices.target = null; // Reduce risk of garbage leaks
-            return true;
+            final Integer[] order = TopSlices.order(labels, counts);
+            int dropped = 0;
+            for(int j = size; j < order.length; j++) {
+                period.remove(labels[order[j]]);
+                dropped += counts[order[j]];
+            }
+            addOther(iter.key(), dropped);
         }
+    }
 
-        private final SliceMerger _mergeSlices = new SliceMerger();
-
-        private static final class SliceMerger implements TObjectIntProcedure<BytesRef> {
-
-            TObjectIntHashMap<BytesRef> target;
+    private void addOther(final long key, final int count) {
+        if(count == 0)
+            return;
+        if(_other == null)
+            _other = CacheRecycler.popLongIntMap();
+        _other.adjustOrPutValue(key, count, count);
+    }
 
-            // Called once for each slice in a period
-            @Override
-            public boolean execute(final BytesRef sliceLabel, final int count) {
-                // Add or update count for this slice label
-                target.adjustOrPutValue(sliceLabel, count, count);
-                return true;
+    @Override
+    public InternalSlicedFacet rollUp(final String name, final TLongFunction keyMap) {
+        readPendingData();
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+        if(_counts != null) {
+            for(final TLongObjectIterator<TObjectIntHashMap<BytesRef>> iter = _counts.iterator(); iter.hasNext();) {
+                iter.advance();
+                final long key = keyMap.execute(iter.key());
+                TObjectIntHashMap<BytesRef> target = counts.get(key);
+                if(target == null) {
+                    target = CacheRecycler.popObjectIntMap();
+                    counts.put(key, target);
+                }
+                // Labels are never modified, so they can be shared with the new facet
+                for(final TObjectIntIterator<BytesRef> slices = iter.value().iterator(); slices.hasNext();) {
+                    slices.advance();
+                    final int count = slices.value();
+                    target.adjustOrPutValue(slices.key(), count, count);
+                }
             }
-
         }
-
+        final InternalSlicedFacet rolledUp = new InternalSlicedFacet(name, counts);
+        rolledUp._sliceSize = _sliceSize;
+        if(_other != null) {
+            for(final TLongIntIterator iter = _other.iterator(); iter.hasNext();) {
+                iter.advance();
+                rolledUp.addOther(keyMap.execute(iter.key()), iter.value());
+            }
+        }
+        return rolledUp;
     }
 
-    private final PeriodMaterializer _materializePeriods = new PeriodMaterializer();
-
-    private static final class PeriodMaterializer implements TLongObjectProcedure<TObjectIntHashMap<BytesRef>> {
-
-        private List<TimePeriod<XContentEnabledList<Slice<String>>>> _target;
-        private long[] _totalCounter;
-        private long[] _periodCounter;
-
-        public void init(final List<TimePeriod<XContentEnabledList<Slice<String>>>> periods, final long[] totalCounter) {
-            _target = periods;
-            _totalCounter = totalCounter;
-            _periodCounter = new long[1];
+    @Override
+    public Facet reduce(final List<Facet> facets) {
+        if(facets.size() == 0)
+            return new InternalSlicedFacet(getName(), EMPTY);
+        // Reduce into the first facet; we will release its _counts on rendering into XContent
+        final InternalSlicedFacet target = (InternalSlicedFacet) facets.get(0);
+        if(facets.size() == 1) {
+            target.readPendingData();
+            target.trim(target._sliceSize);
+            return target;
+        }
+        // Slices are added up by label id, so each label is hashed once per shard, rather than once
+        // per period it turns up in, and only the slices which survive trimming get BytesRef keys again
+        final SliceLabels labels = new SliceLabels();
+        final ExtTLongObjectHashMap<TIntIntHashMap> counts = CacheRecycler.popLongObjectMap();
+        final TLongIntHashMap other = CacheRecycler.popLongIntMap();
+        int sliceSize = 0;
+        for(final Facet facet : facets) {
+            final InternalSlicedFacet source = (InternalSlicedFacet) facet;
+            // Shard results are merged straight from their serialized form where possible
+            try {
+                final StreamInput in = pendingDataStream(source);
+                if(in == null) {
+                    sliceSize = Math.max(sliceSize, source.mergeById(labels, counts, other));
+                } else {
+                    try {
+                        sliceSize = Math.max(sliceSize, mergeById(in, labels, counts, other));
+                    } finally {
+                        in.close();
+                    }
+                }
+            } catch(final IOException e) {
+                throw new ElasticSearchException("Unable to merge facet data", e);
+            }
+            // Release contents of source facet; no longer needed
+            if(!discardPendingData(source))
+                source.releaseCache();
         }
+        target.setCountsById(labels, counts, other, sliceSize);
+        return target;
+    }
 
-        // Called once per time period
-        @Override
-        public boolean execute(final long time, final TObjectIntHashMap<BytesRef> period) {
-            // First create _output buffer for the slices from this period
-            final XContentEnabledList<Slice<String>> buffer =
-                    new XContentEnabledList<Slice<String>>(period.size(), Constants.SLICES);
-            // Reset period counter
-            _periodCounter[0] = 0;
-            // Then materialize the slices into it
-            _materializeSlices.init(buffer, _periodCounter);
-            period.forEachEntry(_materializeSlices);
-            // Add period counter to total counter
-            _totalCounter[0] += _periodCounter[0];
-            // Finally save results
-            _target.add(
-                    new TimePeriod<XContentEnabledList<Slice<String>>>(
-                            time, _periodCounter[0], buffer));
-            return true;
+    /**
+     * Add up the slices of this facet by label id.
+     * 
+     * @param labels the labels of the slices added up so far
+     * @param counts the slice counts added up so far, by period and label id
+     * @param other the counts of slices left out by trimming added up so far, by period
+     * @return this facet's slice size
+     */
+    private int mergeById(final SliceLabels labels, final ExtTLongObjectHashMap<TIntIntHashMap> counts,
+            final TLongIntHashMap other) {
+        if(_counts != null) {
+            for(final TLongObjectIterator<TObjectIntHashMap<BytesRef>> iter = _counts.iterator(); iter.hasNext();) {
+                iter.advance();
+                final TIntIntHashMap period = periodById(counts, iter.key());
+                for(final TObjectIntIterator<BytesRef> slices = iter.value().iterator(); slices.hasNext();) {
+                    slices.advance();
+                    final int count = slices.value();
+                    period.adjustOrPutValue(labels.add(slices.key()), count, count);
+                }
+            }
+        }
+        if(_other != null) {
+            for(final TLongIntIterator iter = _other.iterator(); iter.hasNext();) {
+                iter.advance();
+                other.adjustOrPutValue(iter.key(), iter.value(), iter.value());
+            }
         }
+        return _sliceSize;
+    }
 
-        public void clear() {
-            _target = null;
-            _materializeSlices.clear();
+    /**
+     * Add up the slices of a facet's serialized data by label id.
+     * 
+     * @param in a stream over the data
+     * @param labels the labels of the slices added up so far
+     * @param counts the slice counts added up so far, by period and label id
+     * @param other the counts of slices left out by trimming added up so far, by period
+     * @return the facet's slice size
+     * @throws IOException
+     */
+    private static int mergeById(final StreamInput in, final SliceLabels labels,
+            final ExtTLongObjectHashMap<TIntIntHashMap> counts, final TLongIntHashMap other) throws IOException {
+        final long[] keys = PeriodKeys.read(in);
+        final int[] ids = labels.readIds(in);
+        for(final long key : keys) {
+            final TIntIntHashMap period = periodById(counts, key);
+            final int sliceCount = in.readVInt();
+            for(int j = 0; j < sliceCount; j++) {
+                final int id = ids[in.readVInt()];
+                final int count = in.readVInt();
+                period.adjustOrPutValue(id, count, count);
+            }
         }
+        final int sliceSize = in.readVInt();
+        if(sliceSize > 0) {
+            for(final long key : PeriodKeys.read(in)) {
+                final int count = in.readVInt();
+                other.adjustOrPutValue(key, count, count);
+            }
+        }
+        return sliceSize;
+    }
 
-        private final SliceMaterializer _materializeSlices = new SliceMaterializer();
+    private static TIntIntHashMap periodById(final ExtTLongObjectHashMap<TIntIntHashMap> counts, final long key) {
+        TIntIntHashMap period = counts.get(key);
+        if(period == null) {
+            period = CacheRecycler.popIntIntMap();
+            counts.put(key, period);
+        }
+        return period;
+    }
 
-        private static final class SliceMaterializer implements TObjectIntProcedure<BytesRef> {
+    /**
+     * Replace this facet's data with slices added up by label id, keeping only the top slices of each period.
+     * The maps passed in are released.
+     * 
+     * @param labels the labels of the slices
+     * @param counts the slice counts, by period and label id
+     * @param other the counts of slices left out by trimming, by period
+     * @param sliceSize the number of slices per period to keep, or 0 to keep them all
+     */
+    private void setCountsById(final SliceLabels labels, final ExtTLongObjectHashMap<TIntIntHashMap> counts,
+            final TLongIntHashMap other, final int sliceSize) {
+        _counts = CacheRecycler.popLongObjectMap();
+        _sliceSize = sliceSize;
+        if(other.isEmpty())
+            CacheRecycler.pushLongIntMap(other);
+        else
+            _other = other;
+        for(final TLongObjectIterator<TIntIntHashMap> iter = counts.iterator(); iter.hasNext();) {
+            iter.advance();
+            final TIntIntHashMap period = iter.value();
+            final BytesRef[] periodLabels = new BytesRef[period.size()];
+            final long[] periodCounts = new long[periodLabels.length];
+            int i = 0;
+            for(final TIntIntIterator slices = period.iterator(); slices.hasNext(); i++) {
+                slices.advance();
+                periodLabels[i] = labels.label(slices.key());
+                periodCounts[i] = slices.value();
+            }
+            CacheRecycler.pushIntIntMap(period);
+            final TObjectIntHashMap<BytesRef> slices = CacheRecycler.popObjectIntMap();
+            if(sliceSize > 0 && periodLabels.length > sliceSize) {
+                final Integer[] order = TopSlices.order(periodLabels, periodCounts);
+                int dropped = 0;
+                for(int j = 0; j < order.length; j++) {
+                    if(j < sliceSize)
+                        slices.put(periodLabels[order[j]], (int) periodCounts[order[j]]);
+                    else
+                        dropped += periodCounts[order[j]];
+                }
+                addOther(iter.key(), dropped);
+            } else {
+                for(int j = 0; j < periodLabels.length; j++) {
+                    slices.put(periodLabels[j], (int) periodCounts[j]);
+                }
+            }
+            _counts.put(iter.key(), slices);
+        }
+        CacheRecycler.pushLongObjectMap(counts);
+    }
 
-            private List<Slice<String>> _target;
-            private long[] _counter;
+    // Sort the periods, and their slices if trimmed, into flat arrays, releasing the hash maps; only ever called once
+    private Summary summarize() {
+        readPendingData();
+        if(_counts == null || _counts.size() == 0)
+            return new Summary(new long[0], new long[0], new int[1], new BytesRef[0], new long[0], null, 0);
+        trim(_sliceSize);
+        final long[] keys = _counts.keys();
+        Arrays.sort(keys);
+        int slices = 0;
+        for(final long key : keys) {
+            slices += _counts.get(key).size();
+        }
+        final long[] periodCounts = new long[keys.length];
+        final int[] sliceStarts = new int[keys.length + 1];
+        final BytesRef[] sliceLabels = new BytesRef[slices];
+        final long[] sliceCounts = new long[slices];
+        final long[] otherCounts = _sliceSize > 0 ? new long[keys.length] : null;
+        long total = 0;
+        int next = 0;
+        for(int i = 0; i < keys.length; i++) {
+            sliceStarts[i] = next;
+            long periodCount = 0;
+            for(final TObjectIntIterator<BytesRef> iter = _counts.get(keys[i]).iterator(); iter.hasNext();) {
+                iter.advance();
+                sliceLabels[next] = iter.key();
+                sliceCounts[next] = iter.value();
+                periodCount += iter.value();
+                next++;
+            }
+            if(otherCounts != null) {
+                TopSlices.sort(sliceLabels, sliceCounts, null, sliceStarts[i], next);
+                // Period counts include any slices left out
+                otherCounts[i] = _other == null ? 0 : _other.get(keys[i]);
+                periodCount += otherCounts[i];
+            }
+            periodCounts[i] = periodCount;
+            total += periodCount;
+        }
+        sliceStarts[keys.length] = next;
+        releaseCache();
+        return new Summary(keys, periodCounts, sliceStarts, sliceLabels, sliceCounts, otherCounts, total);
+    }
 
-            public void init(final List<Slice<String>> target, final long[] counter) {
-                _target = target;
-                _counter = counter;
+    // Only needed by Java clients; XContent is rendered straight from the summary
+    private static List<TimePeriod<XContentEnabledList<Slice<String>>>> materialize(final Summary summary) {
+        final List<TimePeriod<XContentEnabledList<Slice<String>>>> periods = newArrayListWithCapacity(summary._keys.length);
+        for(int i = 0; i < summary._keys.length; i++) {
+            final int start = summary._sliceStarts[i];
+            final int end = summary._sliceStarts[i + 1];
+            final XContentEnabledList<Slice<String>> slices;
+            if(summary._otherCounts != null)
+                slices = new SliceList<Slice<String>>(end - start, Constants.SLICES, new Slice<String>(null, summary._otherCounts[i]));
+            else
+                slices = new XContentEnabledList<Slice<String>>(end - start, Constants.SLICES);
+            for(int j = start; j < end; j++) {
+                slices.add(new Slice<String>(summary._sliceLabels[j].utf8ToString(), summary._sliceCounts[j]));
             }
+            periods.add(new TimePeriod<XContentEnabledList<Slice<String>>>(summary._keys[i], summary._periodCounts[i], slices));
+        }
+        return Collections.unmodifiableList(periods);
+    }
 
-            // Called once for each slice in a period
+    @Override
+    protected void releaseCache() {
+        _counts.forEachValue(new TObjectProcedure<TObjectIntHashMap<BytesRef>>() {
             @Override
-            public boolean execute(final BytesRef key, final int count) {
-                _target.add(new Slice<String>(key.utf8ToString(), count));
-                _counter[0] += count;
+            public boolean execute(final TObjectIntHashMap<BytesRef> subMap) {
+                CacheRecycler.pushObjectIntMap(subMap);
                 return true;
             }
+        });
+        CacheRecycler.pushLongObjectMap(_counts);
+        if(_other != null) {
+            CacheRecycler.pushLongIntMap(_other);
+            _other = null;
+        }
+        if(_labelPool != null) {
+            CacheRecycler.pushHashMap(_labelPool);
+            _labelPool = null;
+        }
+    }
 
-            public void clear() {
-                _target = null;
-            }
-
+    /**
+     * The contents of a facet, ready for rendering. Never modified once published.
+     */
+    private static final class Summary {
+
+        // Period keys in chronological order, and their counts. The slices of period i are
+        // held at positions _sliceStarts[i] to _sliceStarts[i + 1] of the slice arrays.
+        private final long[] _keys;
+        private final long[] _periodCounts;
+        private final int[] _sliceStarts;
+        private final BytesRef[] _sliceLabels;
+        private final long[] _sliceCounts;
+
+        // Count of the slices left out of each period, or null if the facet isn't trimmed
+        private final long[] _otherCounts;
+
+        private final long _total;
+
+        Summary(final long[] keys, final long[] periodCounts, final int[] sliceStarts, final BytesRef[] sliceLabels,
+                final long[] sliceCounts, final long[] otherCounts, final long total) {
+            _keys = keys;
+            _periodCounts = periodCounts;
+            _sliceStarts = sliceStarts;
+            _sliceLabels = sliceLabels;
+            _sliceCounts = sliceCounts;
+            _otherCounts = otherCounts;
+            _total = total;
         }
 
     }
 
-    private final PeriodSerializer _serializePeriods = new PeriodSerializer();
-
-    private static final class PeriodSerializer implements TLongObjectProcedure<TObjectIntHashMap<BytesRef>> {
+    private static final class SliceSerializer implements TObjectIntProcedure<BytesRef> {
 
         private StreamOutput _output;
+        private SliceLabels _labels;
 
-        public void init(final StreamOutput output, final int size) throws IOException {
+        public void init(final StreamOutput output, final SliceLabels labels, final int size) throws IOException {
             _output = output;
+            _labels = labels;
             output.writeVInt(size);
         }
 
-        // Called once per time period
+        // Called once for each slice in a period
         @Override
-        public boolean execute(final long key, final TObjectIntHashMap<BytesRef> period) {
+        public boolean execute(final BytesRef sliceLabel, final int count) {
             try {
-                _output.writeVLong(key);
-                _serializeSlices.init(_output, period.size());
+                _output.writeVInt(_labels.id(sliceLabel));
+                _output.writeVInt(count);
             } catch(final IOException e) {
                 throw new IllegalStateException(e);
             }
-            period.forEachEntry(_serializeSlices);
             return true;
         }
 
         public void clear() {
             _output = null;
-            _serializeSlices.clear();
-        }
-
-        private final SliceSerializer _serializeSlices = new SliceSerializer();
-
-        private static final class SliceSerializer implements TObjectIntProcedure<BytesRef> {
-
-            private StreamOutput _output;
-
-            public void init(final StreamOutput output, final int size) throws IOException {
-                _output = output;
-                output.writeVInt(size);
-            }
-
-            // Called once for each slice in a period
-            @Override
-            public boolean execute(final BytesRef sliceLabel, final int count) {
-                try {
-                    _output.writeBytesRef(sliceLabel);
-                    _output.writeVInt(count);
-                } catch(final IOException e) {
-                    throw new IllegalStateException(e);
-                }
-                return true;
-            }
-
-            public void clear() {
-                _output = null;
-            }
-
+            _labels = null;
         }
 
     }
@@ -0,0 +1,85 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.elasticsearch.common.util.concurrent.jsr166y.RecursiveAction;
+
+/**
+ * Support for reducing distinct date facets in parallel. The period keys are split into partitions,
+ * and each partition is merged by its own task, so no two tasks ever touch the same period.
+ */
+public final class ParallelReduce {
+
+    /**
+     * Below this many periods, reducing in parallel isn't worth the overhead.
+     */
+    static final int MIN_PERIODS = 64;
+
+    private ParallelReduce() {}
+
+    /**
+     * Decide whether a reduce is worth doing in parallel.
+     *
+     * @param pool the pool available for the reduce, or null
+     * @param periods the number of periods in the facet being reduced into
+     * @param facets the number of facets being reduced
+     * @return the pool, or null to reduce sequentially
+     */
+    static ForkJoinPool pool(final ForkJoinPool pool, final int periods, final int facets) {
+        if(pool == null || pool.getParallelism() < 2 || facets < 2 || periods < MIN_PERIODS)
+            return null;
+        return pool;
+    }
+
+    /**
+     * Get the partition a period belongs to. Period keys are rounded timestamps, whose low bits
+     * are mostly zero, so they are mixed before being divided up.
+     *
+     * @param key the period key
+     * @param partitions the number of partitions
+     * @return the partition, from 0 (inclusive) to partitions (exclusive)
+     */
+    static int partition(final long key, final int partitions) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) ((mixed >>> 33) % partitions);
+    }
+
+    /**
+     * Run some tasks in a pool and wait for them all to finish.
+     *
+     * @param pool the pool
+     * @param tasks the tasks
+     */
+    static void invokeAll(final ForkJoinPool pool, final List<? extends RecursiveAction> tasks) {
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Skip over some bytes of a stream, for tasks reading past data belonging to other partitions.
+     *
+     * @param in the stream
+     * @param length the number of bytes to skip
+     * @throws IOException
+     */
+    static void skipBytes(final StreamInput in, final int length) throws IOException {
+        long remaining = length;
+        while(remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if(skipped <= 0)
+                throw new EOFException();
+            remaining -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/**
+ * Compact serialization for the period keys of a date facet. Keys are rounded timestamps, so once
+ * sorted, the gaps between them are all multiples of some unit -- usually the interval. We write the
+ * first key, the unit (the GCD of the gaps), and then each gap as a number of units, so a minute-level
+ * facet costs about a byte per period rather than six.
+ *
+ * Facets write their per-period data afterwards, in the same order as the keys.
+ */
+final class PeriodKeys {
+
+    private static final long[] EMPTY = new long[0];
+
+    private PeriodKeys() {}
+
+    /**
+     * Sort some keys in place, and write them.
+     *
+     * @param out the stream to write to
+     * @param keys the keys, which must be distinct; null is treated as empty
+     * @return the keys, sorted
+     * @throws IOException
+     */
+    static long[] write(final StreamOutput out, final long[] keys) throws IOException {
+        if(keys == null || keys.length == 0) {
+            out.writeVInt(0);
+            return EMPTY;
+        }
+        Arrays.sort(keys);
+        out.writeVInt(keys.length);
+        // Timestamps before 1970 are negative, so zig-zag encode the first key
+        out.writeVLong((keys[0] << 1) ^ (keys[0] >> 63));
+        if(keys.length == 1)
+            return keys;
+
+        long unit = keys[1] - keys[0];
+        for(int i = 2; i < keys.length && unit > 1; i++) {
+            unit = gcd(unit, keys[i] - keys[i - 1]);
+        }
+        out.writeVLong(unit);
+        // The keys are sorted and distinct, so the gaps are all positive
+        for(int i = 1; i < keys.length; i++) {
+            out.writeVLong((keys[i] - keys[i - 1]) / unit);
+        }
+        return keys;
+    }
+
+    /**
+     * Read keys written by write().
+     *
+     * @param in the stream to read from
+     * @return the keys, in ascending order
+     * @throws IOException
+     */
+    static long[] read(final StreamInput in) throws IOException {
+        final int size = in.readVInt();
+        if(size == 0)
+            return EMPTY;
+        final long[] keys = new long[size];
+        final long zigZag = in.readVLong();
+        keys[0] = (zigZag >>> 1) ^ -(zigZag & 1);
+        if(size == 1)
+            return keys;
+
+        final long unit = in.readVLong();
+        for(int i = 1; i < size; i++) {
+            keys[i] = keys[i - 1] + in.readVLong() * unit;
+        }
+        return keys;
+    }
+
+    private static long gcd(long a, long b) {
+        while(b != 0) {
+            final long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
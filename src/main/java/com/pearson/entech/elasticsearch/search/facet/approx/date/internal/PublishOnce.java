@@ -0,0 +1,76 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.ElasticSearchException;
+
+/**
+ * A value which is computed once, on first use, and then shared by every thread which asks for it.
+ * The first thread to ask installs a task by compare-and-set and runs it. Threads arriving while it
+ * runs wait for its result rather than computing the value again, and threads arriving afterwards
+ * just read the published value, without taking any locks.
+ *
+ * Nothing ties the computation to a particular thread, so the value can be computed ahead of time,
+ * e.g. in a pool, by calling get() from there.
+ *
+ * @param <T> the type of the value, which should not be modified once published
+ */
+abstract class PublishOnce<T> {
+
+    private final AtomicReference<FutureTask<T>> _task = new AtomicReference<FutureTask<T>>();
+
+    /**
+     * Compute the value. This is called at most once.
+     *
+     * @return the value
+     */
+    protected abstract T compute();
+
+    /**
+     * Get the value, computing it if no other thread has done so yet.
+     *
+     * @return the value
+     */
+    final T get() {
+        FutureTask<T> task = _task.get();
+        if(task == null) {
+            final FutureTask<T> ours = new FutureTask<T>(new Callable<T>() {
+                @Override
+                public T call() {
+                    return compute();
+                }
+            });
+            if(_task.compareAndSet(null, ours)) {
+                ours.run();
+                task = ours;
+            } else {
+                task = _task.get();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return task.get();
+                } catch(final InterruptedException e) {
+                    // The value is needed either way, so keep waiting and restore the interrupt afterwards
+                    interrupted = true;
+                }
+            }
+        } catch(final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw new ElasticSearchException("Unable to compute facet results", cause);
+        } finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+}
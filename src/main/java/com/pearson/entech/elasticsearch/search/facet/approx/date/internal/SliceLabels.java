@@ -0,0 +1,125 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Dictionary of the slice labels in a sliced date facet. The same few labels usually turn up in
+ * every period, so each one is serialized once, and the slices refer to it by a vint id.
+ *
+ * On the receiving side, the labels of each facet are resolved once against a pool shared by the
+ * whole reduce, so every slice with the same label shares a single BytesRef instance. Reduces which
+ * only need to add up counts resolve them against a dictionary instead, and key slices by id.
+ */
+final class SliceLabels {
+
+    private final TObjectIntHashMap<BytesRef> _ids = new TObjectIntHashMap<BytesRef>(16, 0.5f, -1);
+    private final List<BytesRef> _labels = newArrayList();
+
+    /**
+     * Add some labels to the dictionary, giving each new one the next id.
+     *
+     * @param labels the labels
+     */
+    void addAll(final Set<BytesRef> labels) {
+        for(final BytesRef label : labels) {
+            add(label);
+        }
+    }
+
+    /**
+     * Add a label to the dictionary if it's new.
+     *
+     * @param label the label, which must not be modified afterwards
+     * @return its id
+     */
+    int add(final BytesRef label) {
+        final int id = _ids.putIfAbsent(label, _labels.size());
+        if(id != -1)
+            return id;
+        _labels.add(label);
+        return _labels.size() - 1;
+    }
+
+    /**
+     * Get a label by id.
+     *
+     * @param id the id
+     * @return the label
+     */
+    BytesRef label(final int id) {
+        return _labels.get(id);
+    }
+
+    /**
+     * Get the id of a label which has been added to the dictionary.
+     *
+     * @param label the label
+     * @return its id
+     */
+    int id(final BytesRef label) {
+        return _ids.get(label);
+    }
+
+    /**
+     * Write the dictionary, in id order.
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(_labels.size());
+        for(final BytesRef label : _labels) {
+            out.writeBytesRef(label);
+        }
+    }
+
+    /**
+     * Read a dictionary written by writeTo(), adding its labels to this one.
+     *
+     * @param in the stream to read from
+     * @return the id in this dictionary of each label read, indexed by its id in the stream
+     * @throws IOException
+     */
+    int[] readIds(final StreamInput in) throws IOException {
+        final int[] ids = new int[in.readVInt()];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = add(in.readBytesRef());
+        }
+        return ids;
+    }
+
+    /**
+     * Read a dictionary written by writeTo().
+     *
+     * @param in the stream to read from
+     * @param pool labels already seen in this reduce, which are used in place of equal labels from the stream;
+     *          new labels are added to it
+     * @return the labels, indexed by id
+     * @throws IOException
+     */
+    static BytesRef[] read(final StreamInput in, final Map<BytesRef, BytesRef> pool) throws IOException {
+        final BytesRef[] labels = new BytesRef[in.readVInt()];
+        for(int i = 0; i < labels.length; i++) {
+            final BytesRef label = in.readBytesRef();
+            final BytesRef pooled = pool.get(label);
+            if(pooled == null) {
+                pool.put(label, label);
+                labels[i] = label;
+            } else {
+                labels[i] = pooled;
+            }
+        }
+        return labels;
+    }
+
+}
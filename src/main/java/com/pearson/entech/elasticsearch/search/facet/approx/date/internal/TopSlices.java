@@ -0,0 +1,63 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Support for returning only the top slices of each period. Ties are broken by label,
+ * so that every shard, and the node reducing them, picks the same slices.
+ */
+final class TopSlices {
+
+    private TopSlices() {}
+
+    /**
+     * Sort the slices of a period into descending order of rank.
+     *
+     * @param labels the slice labels
+     * @param ranks the rank of each slice, e.g. its count
+     * @return the positions of the slices in the arrays, best first
+     */
+    static Integer[] order(final BytesRef[] labels, final long[] ranks) {
+        final Integer[] order = new Integer[labels.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                final long rank1 = ranks[o1];
+                final long rank2 = ranks[o2];
+                if(rank1 != rank2)
+                    return rank1 > rank2 ? -1 : 1;
+                return labels[o1].compareTo(labels[o2]);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Sort a run of slices held in parallel arrays into descending order of rank, in place.
+     *
+     * @param labels the slice labels
+     * @param ranks the rank of each slice
+     * @param values another value of each slice to keep in step with the ranks, or null
+     * @param from the index of the first slice in the run
+     * @param to the index after the last slice in the run
+     */
+    static void sort(final BytesRef[] labels, final long[] ranks, final long[] values, final int from, final int to) {
+        final BytesRef[] runLabels = Arrays.copyOfRange(labels, from, to);
+        final long[] runRanks = Arrays.copyOfRange(ranks, from, to);
+        final long[] runValues = values == null ? null : Arrays.copyOfRange(values, from, to);
+        final Integer[] order = order(runLabels, runRanks);
+        for(int i = 0; i < order.length; i++) {
+            labels[from + i] = runLabels[order[i]];
+            ranks[from + i] = runRanks[order[i]];
+            if(values != null)
+                values[from + i] = runValues[order[i]];
+        }
+    }
+
+}
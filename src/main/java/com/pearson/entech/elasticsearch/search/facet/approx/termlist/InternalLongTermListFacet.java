@@ -0,0 +1,244 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.termlist;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.iterator.TLongIterator;
+import org.elasticsearch.common.trove.set.hash.TLongHashSet;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.facet.Facet;
+
+/**
+ * A term list for an integer or long field, which holds and sends its values as longs,
+ * and only turns them into strings when they're asked for.
+ */
+public class InternalLongTermListFacet extends InternalTermListFacet {
+
+    private static final BytesReference STREAM_TYPE = new HashedBytesArray(Strings.toUTF8Bytes("lTermList"));
+
+    private TLongHashSet _longs;
+
+    // In sorted mode, the values are returned in numeric order, and at most _size of them (0 for no limit).
+    // Values are held in _longs until they're first needed in order, and in _sortedLongs after that.
+    private boolean _sorted;
+    private int _size;
+    private long[] _sortedLongs;
+
+    private List<String> _strings;
+
+    private String _next;
+
+    InternalLongTermListFacet() {
+        _longs = new TLongHashSet();
+    }
+
+    public static void registerStream() {
+        Streams.registerStream(STREAM, STREAM_TYPE);
+    }
+
+    InternalLongTermListFacet(final String facetName, final TLongHashSet longs) {
+        super(facetName);
+        _longs = longs;
+    }
+
+    InternalLongTermListFacet(final String facetName, final TLongHashSet longs, final int size) {
+        this(facetName, longs);
+        _sorted = true;
+        _size = size;
+    }
+
+    private InternalLongTermListFacet(final String facetName, final long[] sortedLongs, final int size) {
+        super(facetName);
+        _sortedLongs = sortedLongs;
+        _sorted = true;
+        _size = size;
+    }
+
+    static Stream STREAM = new Stream() {
+        @Override
+        public Facet readFacet(final StreamInput in) throws IOException {
+            return readTermListFacet(in);
+        }
+    };
+
+    @Override
+    public BytesReference streamType() {
+        return STREAM_TYPE;
+    }
+
+    @Override
+    public List<? extends String> getEntries() {
+        materialize();
+        return _strings;
+    }
+
+    @Override
+    public String getNext() {
+        materialize();
+        return _next;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        materialize();
+        return _strings.iterator();
+    }
+
+    static final class Fields {
+        static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+        static final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
+        static final XContentBuilderString NEXT = new XContentBuilderString("next");
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject(getName());
+        builder.field(Fields._TYPE, TYPE);
+        builder.field(Fields.ENTRIES, getEntries());
+        if(_sorted && _size > 0)
+            builder.field(Fields.NEXT, getNext());
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public Facet reduce(final List<Facet> facets) {
+        if(_sorted)
+            return reduceSorted(facets);
+        if(facets.size() > 0) {
+            final TLongHashSet longs = ((InternalLongTermListFacet) facets.get(0))._longs;
+            for(int i = 1; i < facets.size(); i++) {
+                longs.addAll(((InternalLongTermListFacet) facets.get(i))._longs);
+            }
+            return facets.get(0);
+        } else {
+            return new InternalLongTermListFacet(getName(), new TLongHashSet());
+        }
+    }
+
+    /**
+     * Merge the sorted value lists of several facets, keeping each value once, and stopping
+     * once we have enough values. Each shard sends no more than _size values, so this just
+     * sorts them all together.
+     *
+     * @param facets the facets to merge
+     * @return the merged facet
+     */
+    private Facet reduceSorted(final List<Facet> facets) {
+        int total = 0;
+        for(final Facet facet : facets) {
+            total += ((InternalLongTermListFacet) facet).sortedLongs().length;
+        }
+        final long[] all = new long[total];
+        int pos = 0;
+        for(final Facet facet : facets) {
+            final long[] longs = ((InternalLongTermListFacet) facet).sortedLongs();
+            System.arraycopy(longs, 0, all, pos, longs.length);
+            pos += longs.length;
+        }
+        Arrays.sort(all);
+        final int limit = _size > 0 ? Math.min(_size, total) : total;
+        int count = 0;
+        for(int i = 0; i < total && count < limit; i++) {
+            if(count == 0 || all[i] != all[count - 1])
+                all[count++] = all[i];
+        }
+        return new InternalLongTermListFacet(getName(), Arrays.copyOf(all, count), _size);
+    }
+
+    /**
+     * Get the values in numeric order, sorting them on first use.
+     *
+     * @return the sorted values, no more than _size of them
+     */
+    private long[] sortedLongs() {
+        if(_sortedLongs != null)
+            return _sortedLongs;
+        final long[] longs = _longs.toArray();
+        Arrays.sort(longs);
+        _longs = null;
+        return _sortedLongs = _size > 0 && longs.length > _size ? Arrays.copyOf(longs, _size) : longs;
+    }
+
+    public static InternalLongTermListFacet readTermListFacet(final StreamInput in) throws IOException {
+        final InternalLongTermListFacet facet = new InternalLongTermListFacet();
+
+        facet.readFrom(in);
+        return facet;
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBoolean(_sorted);
+        if(_sorted) {
+            // Sorted values are distinct, so each one after the first is sent as a positive delta.
+            // A delta too big for a long can't be sent as a vlong, so 0 flags a full value instead.
+            out.writeVInt(_size);
+            final long[] longs = sortedLongs();
+            out.writeVInt(longs.length);
+            for(int i = 0; i < longs.length; i++) {
+                final long delta = i == 0 ? 0 : longs[i] - longs[i - 1];
+                if(delta > 0) {
+                    out.writeVLong(delta);
+                } else {
+                    out.writeVLong(0);
+                    out.writeLong(longs[i]);
+                }
+            }
+        } else {
+            out.writeVInt(_longs.size());
+            final TLongIterator iter = _longs.iterator();
+            while(iter.hasNext()) {
+                out.writeLong(iter.next());
+            }
+            _longs = null;
+        }
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        _sorted = in.readBoolean();
+        if(_sorted) {
+            _size = in.readVInt();
+            _sortedLongs = new long[in.readVInt()];
+            for(int i = 0; i < _sortedLongs.length; i++) {
+                final long delta = in.readVLong();
+                _sortedLongs[i] = delta == 0 ? in.readLong() : _sortedLongs[i - 1] + delta;
+            }
+        } else {
+            final int count = in.readVInt();
+            _longs = new TLongHashSet(count);
+            for(int i = 0; i < count; i++) {
+                _longs.add(in.readLong());
+            }
+        }
+    }
+
+    private synchronized void materialize() {
+        if(_strings != null)
+            return;
+
+        final long[] longs = _sorted ? sortedLongs() : _longs.toArray();
+        final String[] strings = new String[longs.length];
+        for(int i = 0; i < longs.length; i++) {
+            strings[i] = Long.toString(longs[i]);
+        }
+        _strings = Arrays.asList(strings);
+        // A full page may be followed by more values
+        if(_sorted && _size > 0 && longs.length == _size)
+            _next = strings[strings.length - 1];
+        _sortedLongs = null;
+        _longs = null;
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.termlist;
 
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.pearson.entech.elasticsearch.plugin.approx.BytesRefUtils.deserialize;
 import static com.pearson.entech.elasticsearch.plugin.approx.BytesRefUtils.merge;
 import static com.pearson.entech.elasticsearch.plugin.approx.BytesRefUtils.process;
@@ -9,7 +10,9 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.PriorityQueue;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
@@ -34,8 +37,16 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
 
     private BytesRefHash _bytesRefs;
 
+    // In sorted mode, the terms are returned in byte order, and at most _size of them (0 for no limit).
+    // Terms are held in _bytesRefs until they're first needed in order, and in _sortedTerms after that.
+    private boolean _sorted;
+    private int _size;
+    private BytesRef[] _sortedTerms;
+
     private List<String> _strings;
 
+    private String _next;
+
     InternalStringTermListFacet() {
         _bytesRefs = new BytesRefHash();
     }
@@ -56,6 +67,20 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
 
     }
 
+    InternalStringTermListFacet(final String facetName, final BytesRefHash terms, final Constants.FIELD_DATA_TYPE dataType,
+            final int size) {
+        this(facetName, terms, dataType);
+        _sorted = true;
+        _size = size;
+    }
+
+    private InternalStringTermListFacet(final String facetName, final BytesRef[] sortedTerms, final int size) {
+        super(facetName);
+        _sortedTerms = sortedTerms;
+        _sorted = true;
+        _size = size;
+    }
+
     static Stream STREAM = new Stream() {
         @Override
         public Facet readFacet(final StreamInput in) throws IOException {
@@ -74,6 +99,12 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
         return _strings;
     }
 
+    @Override
+    public String getNext() {
+        materialize();
+        return _next;
+    }
+
     @Override
     public Iterator<String> iterator() {
         materialize();
@@ -84,6 +115,7 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
         static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
         /** The Constant ENTRIES. */
         static final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
+        static final XContentBuilderString NEXT = new XContentBuilderString("next");
     }
 
     @Override
@@ -91,12 +123,16 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
         builder.startObject(getName());
         builder.field(Fields._TYPE, STREAM_TYPE);
         builder.field(Fields.ENTRIES, getEntries());
+        if(_sorted && _size > 0)
+            builder.field(Fields.NEXT, getNext());
         builder.endObject();
         return builder;
     }
 
     @Override
     public Facet reduce(final List<Facet> facets) {
+        if(_sorted)
+            return reduceSorted(facets);
         if(facets.size() > 0) {
             final int count = facets.size();
             final BytesRefHash[] hashes = new BytesRefHash[count];
@@ -110,6 +146,95 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
         }
     }
 
+    /**
+     * Merge the sorted term lists of several facets, keeping each term once, and stopping
+     * once we have enough terms. This only needs to hold one position per facet, on top of
+     * the output itself.
+     *
+     * @param facets the facets to merge
+     * @return the merged facet
+     */
+    private Facet reduceSorted(final List<Facet> facets) {
+        final TermQueue queue = new TermQueue(facets.size());
+        int total = 0;
+        for(final Facet facet : facets) {
+            final BytesRef[] terms = ((InternalStringTermListFacet) facet).sortedTerms();
+            total += terms.length;
+            if(terms.length > 0)
+                queue.add(new TermCursor(terms));
+        }
+        final int limit = _size > 0 ? Math.min(_size, total) : total;
+        final List<BytesRef> merged = newArrayListWithCapacity(limit);
+        while(queue.size() > 0 && merged.size() < limit) {
+            final TermCursor top = queue.top();
+            final BytesRef term = top.current();
+            if(merged.isEmpty() || !term.bytesEquals(merged.get(merged.size() - 1)))
+                merged.add(term);
+            if(top.advance())
+                queue.updateTop();
+            else
+                queue.pop();
+        }
+        return new InternalStringTermListFacet(getName(), merged.toArray(new BytesRef[merged.size()]), _size);
+    }
+
+    /**
+     * Get the terms in byte order, sorting them on first use.
+     *
+     * @return the sorted terms, no more than _size of them
+     */
+    private BytesRef[] sortedTerms() {
+        if(_sortedTerms != null)
+            return _sortedTerms;
+        final int[] ids = _bytesRefs.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
+        final int count = _size > 0 ? Math.min(_size, _bytesRefs.size()) : _bytesRefs.size();
+        final BytesRef[] terms = new BytesRef[count];
+        for(int i = 0; i < count; i++) {
+            terms[i] = BytesRef.deepCopyOf(_bytesRefs.get(ids[i], new BytesRef()));
+        }
+        _bytesRefs.clear();
+        _bytesRefs = null;
+        return _sortedTerms = terms;
+    }
+
+    /**
+     * A position in one facet's sorted list of terms.
+     */
+    private static final class TermCursor {
+
+        private final BytesRef[] _terms;
+        private int _pos;
+
+        TermCursor(final BytesRef[] terms) {
+            _terms = terms;
+        }
+
+        BytesRef current() {
+            return _terms[_pos];
+        }
+
+        boolean advance() {
+            return ++_pos < _terms.length;
+        }
+
+    }
+
+    /**
+     * A heap of cursors, ordered by their current terms.
+     */
+    private static final class TermQueue extends PriorityQueue<TermCursor> {
+
+        TermQueue(final int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(final TermCursor a, final TermCursor b) {
+            return a.current().compareTo(b.current()) < 0;
+        }
+
+    }
+
     public static InternalStringTermListFacet readTermListFacet(final StreamInput in) throws IOException {
         final InternalStringTermListFacet facet = new InternalStringTermListFacet();
 
@@ -120,20 +245,57 @@ public class InternalStringTermListFacet extends InternalTermListFacet {
     @Override
     public void writeTo(final StreamOutput out) throws IOException {
         super.writeTo(out);
-        serialize(_bytesRefs, out);
-        _bytesRefs = null;
+        out.writeBoolean(_sorted);
+        if(_sorted) {
+            out.writeVInt(_size);
+            final BytesRef[] terms = sortedTerms();
+            out.writeVInt(terms.length);
+            for(final BytesRef term : terms) {
+                out.writeBytesRef(term);
+            }
+        } else {
+            serialize(_bytesRefs, out);
+            _bytesRefs = null;
+        }
     }
 
     @Override
     public void readFrom(final StreamInput in) throws IOException {
         super.readFrom(in);
-        _bytesRefs = deserialize(in);
+        _sorted = in.readBoolean();
+        if(_sorted) {
+            _size = in.readVInt();
+            _sortedTerms = new BytesRef[in.readVInt()];
+            for(int i = 0; i < _sortedTerms.length; i++) {
+                _sortedTerms[i] = in.readBytesRef();
+            }
+        } else {
+            _bytesRefs = deserialize(in);
+        }
     }
 
     private synchronized void materialize() {
         if(_strings != null)
             return;
 
+        if(_sorted) {
+            final BytesRef[] terms = sortedTerms();
+            final AsStrings proc = new AsStrings(terms.length, _dataType);
+            for(final BytesRef term : terms) {
+                try {
+                    proc.consume(term);
+                } catch(final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            _strings = proc.getList();
+            // A full page may be followed by more terms
+            if(_size > 0 && terms.length == _size)
+                _next = _strings.get(_strings.size() - 1);
+            _sortedTerms = null;
+            return;
+        }
+
         // we need the tuple (datatype, ref.length) to handle the data
         final AsStrings proc = new AsStrings(_bytesRefs.size(), _dataType);
         process(_bytesRefs, proc);
@@ -9,6 +9,7 @@ public abstract class InternalTermListFacet extends InternalFacet implements Ter
 
   public static void registerStreams() {
         InternalStringTermListFacet.registerStream();
+        InternalLongTermListFacet.registerStream();
     }
 
     protected InternalTermListFacet() {
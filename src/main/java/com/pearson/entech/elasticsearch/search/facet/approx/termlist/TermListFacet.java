@@ -19,4 +19,10 @@ public interface TermListFacet extends Facet, Iterable<String> {
      */
     List<? extends String> getEntries();
 
+    /**
+     * The cursor to pass as [after] to get the next page of terms, when sorted with a size,
+     * or null if this page wasn't full, so there are no more terms.
+     */
+    String getNext();
+
 }
\ No newline at end of file
@@ -10,6 +10,13 @@ public class TermListFacetBuilder extends FacetBuilder {
     private String _fieldName;
     private int _maxPerShard = Constants.DEFAULT_MAX_PER_SHARD;
     private float _sample = Constants.DEFAULT_SAMPLE;
+    private String _prefix;
+    private String _regex;
+    private String[] _include;
+    private String[] _exclude;
+    private boolean _sort;
+    private int _size;
+    private String _after;
 
     public TermListFacetBuilder(final String name) {
         super(name);
@@ -30,6 +37,41 @@ public class TermListFacetBuilder extends FacetBuilder {
         return this;
     }
 
+    public TermListFacetBuilder prefix(final String prefix) {
+        _prefix = prefix;
+        return this;
+    }
+
+    public TermListFacetBuilder regex(final String regex) {
+        _regex = regex;
+        return this;
+    }
+
+    public TermListFacetBuilder include(final String... include) {
+        _include = include;
+        return this;
+    }
+
+    public TermListFacetBuilder exclude(final String... exclude) {
+        _exclude = exclude;
+        return this;
+    }
+
+    public TermListFacetBuilder sort(final boolean sort) {
+        _sort = sort;
+        return this;
+    }
+
+    public TermListFacetBuilder size(final int size) {
+        _size = size;
+        return this;
+    }
+
+    public TermListFacetBuilder after(final String after) {
+        _after = after;
+        return this;
+    }
+
     @Override
     public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
         builder.startObject(name);
@@ -38,6 +80,20 @@ public class TermListFacetBuilder extends FacetBuilder {
         builder.field("maxPerShard", _maxPerShard);
 
         builder.field("sample", _sample);
+        if(_prefix != null)
+            builder.field("prefix", _prefix);
+        if(_regex != null)
+            builder.field("regex", _regex);
+        if(_include != null)
+            builder.array("include", _include);
+        if(_exclude != null)
+            builder.array("exclude", _exclude);
+        if(_sort)
+            builder.field("sort", true);
+        if(_size > 0)
+            builder.field("size", _size);
+        if(_after != null)
+            builder.field("after", _after);
         builder.endObject();
         addFilterFacetAndGlobal(builder, params);
         builder.endObject();
@@ -12,17 +12,27 @@ import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.elasticsearch.common.lucene.docset.AllDocIdSet;
 import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
+import org.elasticsearch.common.trove.iterator.TLongIterator;
+import org.elasticsearch.common.trove.set.hash.TLongHashSet;
 import org.elasticsearch.index.fielddata.BytesValues;
 import org.elasticsearch.index.fielddata.BytesValues.Iter;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.LongValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
 import org.elasticsearch.search.facet.FacetExecutor;
 import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.InternalFacet;
 import org.elasticsearch.search.internal.SearchContext;
 
+import com.pearson.entech.elasticsearch.plugin.approx.GeometricSampler;
 import com.pearson.entech.elasticsearch.search.facet.approx.termlist.Constants.FIELD_DATA_TYPE;
 
 public class TermListFacetExecutor extends FacetExecutor {
@@ -37,17 +47,54 @@ public class TermListFacetExecutor extends FacetExecutor {
 
     private final IndexFieldData<?> _indexFieldData;
 
+    // Restricts the terms returned, or null to return every term; the run automaton is used to
+    // check individual values in collector mode, and the compiled one to enumerate terms in post mode
+    private final CompiledAutomaton _filter;
+    private final ByteRunAutomaton _filterRunner;
+
+    // Whether to return terms in byte order, and if so how many of them (0 for no limit)
+    private final boolean _sort;
+    private final int _size;
+
+    // In sorted mode, only terms after this one are returned, or all terms if it's null
+    private final BytesRef _after;
+
     BytesRefHash _entries = new BytesRefHash();
 
+    // Integer and long fields are listed as longs, in _longs rather than _entries,
+    // and _afterLong is the decoded form of _after
+    private final boolean _numeric;
+    private final long _afterLong;
+
+    final TLongHashSet _longs = new TLongHashSet();
+
+    // Takes over from _entries or _longs in collector mode once they're full, or null until then.
+    // Longs are offered to it prefix-coded, which keeps them in numeric order.
+    private TermReservoir _reservoir;
+
     public TermListFacetExecutor(final SearchContext context, final IndexFieldData<?> indexFieldData,
             final String facetName, final int maxPerShard, final float sample) {
+        this(context, indexFieldData, facetName, maxPerShard, sample, null, false, 0, null);
+    }
+
+    public TermListFacetExecutor(final SearchContext context, final IndexFieldData<?> indexFieldData,
+            final String facetName, final int maxPerShard, final float sample, final Automaton filter,
+            final boolean sort, final int size, final BytesRef after) {
+        _sort = sort;
+        _size = size;
+        _after = after;
+        // Terms.intersect() can only start from a given term with a general automaton,
+        // so don't let it be simplified into a prefix or single term if we're paging
+        _filter = filter == null ? null : new CompiledAutomaton(filter, null, after == null);
+        _filterRunner = filter == null ? null : new ByteRunAutomaton(filter);
         _maxPerShard = maxPerShard;
         _sampleRate = sample;
         _exhaustive = _sampleRate > 0.995;
         _facetName = facetName;
         _indexFieldData = indexFieldData;
         _type = getType();
-
+        _numeric = _type == FIELD_DATA_TYPE.INT || _type == FIELD_DATA_TYPE.LONG;
+        _afterLong = _numeric && after != null ? toLong(after) : 0;
     }
 
     
@@ -68,10 +115,47 @@ public class TermListFacetExecutor extends FacetExecutor {
         return type;
     }
 
+    private boolean accepts(final BytesRef value) {
+        if(_after != null && value.compareTo(_after) <= 0)
+            return false;
+        return _filterRunner == null || _filterRunner.run(value.bytes, value.offset, value.length);
+    }
+
+    private boolean accepts(final long value) {
+        return _after == null || value > _afterLong;
+    }
+
+    /**
+     * Decode a full-precision term of an integer or long field.
+     *
+     * @param term the prefix-coded term
+     * @return the value
+     */
+    private long toLong(final BytesRef term) {
+        return _type == FIELD_DATA_TYPE.LONG ? NumericUtils.prefixCodedToLong(term) : NumericUtils.prefixCodedToInt(term);
+    }
+
     @Override
     public InternalFacet buildFacet(final String facetName) {
 
         _type = getType();
+        if(_numeric) {
+            if(_reservoir != null) {
+                for(final BytesRef term : _reservoir.terms()) {
+                    _longs.add(NumericUtils.prefixCodedToLong(term));
+                }
+                _reservoir = null;
+            }
+            if(_sort)
+                return new InternalLongTermListFacet(facetName, _longs, _size);
+            return new InternalLongTermListFacet(facetName, _longs);
+        }
+        if(_reservoir != null) {
+            _reservoir.addTo(_entries);
+            _reservoir = null;
+        }
+        if(_sort)
+            return new InternalStringTermListFacet(facetName, _entries, _type, _size);
         return new InternalStringTermListFacet(facetName, _entries, _type);
     }
 
@@ -103,13 +187,31 @@ public class TermListFacetExecutor extends FacetExecutor {
 
     final class CollectorExecutor extends FacetExecutor.Collector {
 
+        // Picks the docs to visit when sampling, or null to visit them all
+        private final GeometricSampler _sampler = _exhaustive ? null : new GeometricSampler(_sampleRate, _random);
+
         private BytesValues _values;
 
+        // Used instead of _values for integer and long fields
+        private LongValues _longValues;
+        private final BytesRef _spare = new BytesRef();
+
+        // If the field has ordinals, we just note which ordinals we see in each segment,
+        // and only look up their bytes at the end of the segment; otherwise these are null
+        private BytesValues.WithOrdinals _ordinalValues;
+        private Ordinals.Docs _ordinals;
+
+        // Reused from segment to segment, and grown as needed
+        private FixedBitSet _seenOrds;
+
         @Override
         public void setNextReader(final AtomicReaderContext context) throws IOException {
-            final int currentCount = _entries.size();
-            if(currentCount > _maxPerShard)
+            segmentFinished();
+            if(_numeric) {
+                _longValues = ((IndexNumericFieldData<?>) _indexFieldData).load(context).getLongValues();
                 return;
+            }
+            final int currentCount = _entries.size();
 
             // Heuristic: only load the values with hashes if we're in exhaustive
             // mode and we aren't coming close to hitting our per-shard limit.
@@ -119,34 +221,146 @@ public class TermListFacetExecutor extends FacetExecutor {
             _values = (_exhaustive && currentCount * 1.1 < _maxPerShard) ?
                     _indexFieldData.load(context).getHashedBytesValues() :
                     _indexFieldData.load(context).getBytesValues();
+
+            if(_values instanceof BytesValues.WithOrdinals) {
+                _ordinalValues = (BytesValues.WithOrdinals) _values;
+                _ordinals = _ordinalValues.ordinals();
+                final int maxOrd = _ordinals.getMaxOrd();
+                if(_seenOrds == null || _seenOrds.length() < maxOrd)
+                    _seenOrds = new FixedBitSet(maxOrd);
+                else
+                    _seenOrds.clear(0, _seenOrds.length());
+            }
         }
 
         @Override
         public void collect(final int docId) throws IOException {
-            if(_entries.size() > _maxPerShard)
+            if(_sampler != null && !_sampler.accept())
                 return;
-            if(!_exhaustive && _random.nextFloat() > _sampleRate)
+
+            if(_longValues != null) {
+                final LongValues.Iter iter = _longValues.getIter(docId);
+                while(iter.hasNext()) {
+                    final long value = iter.next();
+                    if(accepts(value))
+                        addLong(value);
+                }
+                return;
+            }
+
+            if(_ordinals != null) {
+                // Ordinal 0 means no value
+                final Ordinals.Docs.Iter iter = _ordinals.getIter(docId);
+                int ord;
+                while((ord = iter.next()) != 0) {
+                    _seenOrds.set(ord);
+                }
                 return;
+            }
 
             final Iter iter = _values.getIter(docId);
-            while(iter.hasNext() && _entries.size() < _maxPerShard) {
-                _entries.add(iter.next(), iter.hash());
+            while(iter.hasNext()) {
+                final BytesRef value = iter.next();
+                if(accepts(value))
+                    addEntry(value, iter.hash());
             }
         }
 
         @Override
         public void postCollection() {
+            segmentFinished();
+        }
+
+        /**
+         * Add the values of the ordinals seen in the segment just collected, if any, to the entries.
+         * This is where bytes are hashed, and filtered, in the ordinal path: once per distinct value
+         * per segment, rather than once per value per doc.
+         */
+        private void segmentFinished() {
+            if(_ordinals == null)
+                return;
+            final int length = _seenOrds.length();
+            for(int ord = length > 0 ? _seenOrds.nextSetBit(0) : -1; ord != -1;
+                    ord = ord + 1 < length ? _seenOrds.nextSetBit(ord + 1) : -1) {
+                final BytesRef value = _ordinalValues.getValueByOrd(ord);
+                if(accepts(value))
+                    addEntry(value, value.hashCode());
+            }
+            _ordinalValues = null;
+            _ordinals = null;
+        }
+
+        /**
+         * Add a value to the entries, until there are max_per_shard of them. After that, every
+         * new value goes to a reservoir instead, so the entries end up as a uniform sample of all
+         * the shard's values, or the lowest ones in sorted mode, rather than the first ones found.
+         *
+         * @param value the value
+         * @param hash the value's hash code
+         */
+        private void addEntry(final BytesRef value, final int hash) {
+            if(_reservoir != null) {
+                _reservoir.offer(value);
+                return;
+            }
+            if(_entries.size() < _maxPerShard) {
+                _entries.add(value, hash);
+                return;
+            }
+            if(_maxPerShard == 0 || _entries.find(value, hash) >= 0)
+                return;
+            _reservoir = new TermReservoir(_maxPerShard, _sort);
+            final BytesRef spare = new BytesRef();
+            for(int i = 0; i < _entries.size(); i++) {
+                _reservoir.offer(_entries.get(i, spare));
+            }
+            // clear() releases the hash's arrays, so reinit() them before buildFacet() refills it from the reservoir
+            _entries.clear();
+            _entries.reinit();
+            _reservoir.offer(value);
+        }
+
+        /**
+         * Add a value to the longs, and past max_per_shard of them, to the reservoir, as addEntry() does.
+         *
+         * @param value the value
+         */
+        private void addLong(final long value) {
+            if(_reservoir != null) {
+                _reservoir.offer(prefixCoded(value));
+                return;
+            }
+            if(_longs.size() < _maxPerShard) {
+                _longs.add(value);
+                return;
+            }
+            if(_maxPerShard == 0 || _longs.contains(value))
+                return;
+            _reservoir = new TermReservoir(_maxPerShard, _sort);
+            final TLongIterator iter = _longs.iterator();
+            while(iter.hasNext()) {
+                _reservoir.offer(prefixCoded(iter.next()));
+            }
+            _longs.clear();
+            _reservoir.offer(prefixCoded(value));
+        }
+
+        private BytesRef prefixCoded(final long value) {
+            NumericUtils.longToPrefixCoded(value, 0, _spare);
+            return _spare;
         }
 
     }
 
-    // First attempt -- not yet working -- doesn't decode numeric fields properly
     final class PostExecutor extends FacetExecutor.Post {
 
         private final String _fieldName;
         private final boolean _numericField;
         FIELD_DATA_TYPE _type;
 
+        // Reused from term to term in the numeric path
+        private DocsEnum _docsEnum;
+
         public PostExecutor(final String fieldName, final boolean numericField, final FIELD_DATA_TYPE type) {
             if(_sampleRate != 1.0){
                 throw new FacetPhaseExecutionException(_facetName, "[sample] is not supported in post mode");
@@ -162,40 +376,157 @@ public class TermListFacetExecutor extends FacetExecutor {
             DocsEnum docsEnum = null;
             for(final ContextDocIdSet docSet : docSets) {
                 final AtomicReader reader = docSet.context.reader();
-                // TODO Do we need to filter out deleted docs? reader.getLiveDocs()
-                final Bits visibleDocs = docSet.docSet.bits();
-
                 final Terms terms = reader.terms(_fieldName);
-                termsEnum = terms.iterator(termsEnum);
-                BytesRef ref;
-                while((ref = termsEnum.next()) != null) {
-                    docsEnum = termsEnum.docs(visibleDocs, docsEnum);
-                    if(docsEnum.nextDoc() != DocsEnum.NO_MORE_DOCS) {
-                        // We have a hit in at least one doc
-
-                        //check if we have a numeric field and then check ref.len to match with the type
-                        //otherwise it is string, treat as usual
-                        if(_numericField) {
-                            if(_type == FIELD_DATA_TYPE.LONG && ref.length == NumericUtils.BUF_SIZE_LONG)
-                            {
-                                _entries.add(ref);
-                            }
-                            else if(_type == FIELD_DATA_TYPE.INT && ref.length == NumericUtils.BUF_SIZE_INT)
-                            {
-                                _entries.add(ref);
-                            }
-                        }
-                        else {
-                            _entries.add(ref);
+                if(terms == null)
+                    continue;
+
+                // If the docs are the whole segment, every term in it is a hit,
+                // so there's no need to look at postings at all
+                final boolean allDocs = !reader.hasDeletions() && coversAllDocs(docSet);
+                final Bits visibleDocs = allDocs ? null : docSet.docSet.bits();
+
+                // A filter lets the terms dictionary skip straight past ranges of terms that can't match
+                termsEnum = termsEnum(terms, termsEnum);
+                if(_numeric) {
+                    if(!listLongs(termsEnum, allDocs, visibleDocs))
+                        return;
+                    continue;
+                }
+                int found = 0;
+                for(BytesRef ref = firstTerm(termsEnum); ref != null; ref = termsEnum.next()) {
+                    // Skip terms which aren't values of this field's type, and don't
+                    // check postings for terms we've already found in an earlier segment
+                    if(!isValue(ref))
+                        continue;
+                    if(_entries.find(ref) < 0) {
+                        if(!allDocs) {
+                            docsEnum = termsEnum.docs(visibleDocs, docsEnum, DocsEnum.FLAG_NONE);
+                            if(docsEnum.nextDoc() == DocsEnum.NO_MORE_DOCS)
+                                continue;
                         }
-
-                        if(_entries.size() == _maxPerShard)
+                        // We have a hit in at least one doc
+                        _entries.add(ref);
+                        // In sorted mode with a size, each segment adds no more than size terms anyway,
+                        // and stopping early could leave out terms belonging to this page
+                        if(_entries.size() == _maxPerShard && !(_sort && _size > 0))
                             return;
                     }
+                    // Terms come in order, so once we have enough entries up to here,
+                    // the rest of this segment's terms can't make the cut
+                    if(_sort && _size > 0 && ++found == _size)
+                        break;
                 }
             }
         }
 
+        /**
+         * List the values of an integer or long field from a segment's terms, decoding each
+         * full-precision term once. Trie fields also index each value at lower precisions for range
+         * queries, but those terms all sort after the full-precision ones, so the first one ends the
+         * segment's values, and none of them are read.
+         *
+         * @param termsEnum the segment's terms, from termsEnum()
+         * @param allDocs true if every doc in the segment is a hit
+         * @param visibleDocs the hits, if not every doc is one
+         * @return false once max_per_shard values are found
+         * @throws IOException
+         */
+        private boolean listLongs(final TermsEnum termsEnum, final boolean allDocs, final Bits visibleDocs) throws IOException {
+            int found = 0;
+            for(BytesRef ref = firstTerm(termsEnum); ref != null; ref = termsEnum.next()) {
+                if(shift(ref) > 0)
+                    return true;
+                final long value = toLong(ref);
+                if(!_longs.contains(value)) {
+                    if(!allDocs) {
+                        _docsEnum = termsEnum.docs(visibleDocs, _docsEnum, DocsEnum.FLAG_NONE);
+                        if(_docsEnum.nextDoc() == DocsEnum.NO_MORE_DOCS)
+                            continue;
+                    }
+                    _longs.add(value);
+                    if(_longs.size() == _maxPerShard && !(_sort && _size > 0))
+                        return false;
+                }
+                if(_sort && _size > 0 && ++found == _size)
+                    return true;
+            }
+            return true;
+        }
+
+        private int shift(final BytesRef ref) {
+            return _type == FIELD_DATA_TYPE.LONG ?
+                    NumericUtils.getPrefixCodedLongShift(ref) : NumericUtils.getPrefixCodedIntShift(ref);
+        }
+
+        /**
+         * Get an enum over a segment's terms which match the filter, if any, starting after the cursor, if any.
+         *
+         * @param terms the segment's terms
+         * @param reuse a previous enum to reuse if possible, or null
+         * @return the enum
+         * @throws IOException
+         */
+        private TermsEnum termsEnum(final Terms terms, final TermsEnum reuse) throws IOException {
+            if(_filter == null)
+                return terms.iterator(reuse);
+            if(_after == null)
+                return _filter.getTermsEnum(terms);
+            return terms.intersect(_filter, _after);
+        }
+
+        /**
+         * Move an enum from termsEnum() to its first term.
+         *
+         * @param termsEnum the enum
+         * @return the first term, or null if there are none
+         * @throws IOException
+         */
+        private BytesRef firstTerm(final TermsEnum termsEnum) throws IOException {
+            // Filtered enums already start after the cursor
+            if(_after == null || _filter != null)
+                return termsEnum.next();
+            switch(termsEnum.seekCeil(_after)) {
+            case FOUND:
+                return termsEnum.next();
+            case NOT_FOUND:
+                return termsEnum.term();
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Numeric fields are indexed with extra lower-precision terms for range queries;
+         * only full-precision terms, of the right length for the field's type, are values.
+         *
+         * @param ref the term
+         * @return true if the term is a value of the field
+         */
+        private boolean isValue(final BytesRef ref) {
+            if(!_numericField)
+                return true;
+            if(_type == FIELD_DATA_TYPE.LONG)
+                return ref.length == NumericUtils.BUF_SIZE_LONG;
+            if(_type == FIELD_DATA_TYPE.INT)
+                return ref.length == NumericUtils.BUF_SIZE_INT;
+            return false;
+        }
+
+        /**
+         * Check whether a segment's doc set holds every doc in the segment. Global facets are given
+         * the whole segment, and match_all queries collect every doc into a bitset.
+         *
+         * @param docSet the doc set
+         * @return true if the doc set holds every doc
+         */
+        private boolean coversAllDocs(final ContextDocIdSet docSet) {
+            if(docSet.docSet instanceof AllDocIdSet)
+                return true;
+            if(docSet.docSet instanceof FixedBitSet)
+                return ((FixedBitSet) docSet.docSet).cardinality() == docSet.context.reader().maxDoc();
+            return false;
+        }
+
     }
 
 }
@@ -1,12 +1,25 @@
 package com.pearson.entech.elasticsearch.search.facet.approx.termlist;
 
+import static com.google.common.collect.Lists.newArrayList;
+
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.BasicAutomata;
+import org.apache.lucene.util.automaton.BasicOperations;
+import org.apache.lucene.util.automaton.RegExp;
 
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.search.facet.FacetExecutor;
 import org.elasticsearch.search.facet.FacetExecutor.Mode;
@@ -46,6 +59,13 @@ public class TermListFacetParser extends AbstractComponent implements FacetParse
         String fieldName = null;
         int maxPerShard = Constants.DEFAULT_MAX_PER_SHARD;
         float sample = Constants.DEFAULT_SAMPLE;
+        boolean sort = false;
+        int size = 0;
+        String after = null;
+        String prefix = null;
+        String regex = null;
+        final List<BytesRef> include = newArrayList();
+        final List<BytesRef> exclude = newArrayList();
         while((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
             if(token == XContentParser.Token.FIELD_NAME) {
                 fieldName = parser.currentName();
@@ -58,14 +78,50 @@ public class TermListFacetParser extends AbstractComponent implements FacetParse
                     maxPerShard = parser.intValue();
                 } else if("sample".equals(fieldName)) {
                     sample = parser.floatValue();
+                } else if("sort".equals(fieldName)) {
+                    sort = parser.booleanValue();
+                } else if("size".equals(fieldName)) {
+                    size = parser.intValue();
+                } else if("after".equals(fieldName)) {
+                    after = parser.text();
+                } else if("prefix".equals(fieldName)) {
+                    prefix = parser.text();
+                } else if("regex".equals(fieldName)) {
+                    regex = parser.text();
+                } else if("include".equals(fieldName)) {
+                    include.add(new BytesRef(parser.text()));
+                } else if("exclude".equals(fieldName)) {
+                    exclude.add(new BytesRef(parser.text()));
                 }
 
+            } else if(token == XContentParser.Token.START_ARRAY) {
+                if("include".equals(fieldName)) {
+                    while((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        include.add(new BytesRef(parser.text()));
+                    }
+                } else if("exclude".equals(fieldName)) {
+                    while((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        exclude.add(new BytesRef(parser.text()));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
             }
         }
 
         if(sample <= 0 || sample > 1)
             throw new FacetPhaseExecutionException(facetName, "[sample] must be greater than 0 and less than or equal to 1");
 
+        if(size < 0)
+            throw new FacetPhaseExecutionException(facetName, "[size] must not be negative");
+        if(size > 0 && !sort)
+            throw new FacetPhaseExecutionException(facetName, "[size] is only supported with [sort]");
+        if(after != null && !sort)
+            throw new FacetPhaseExecutionException(facetName, "[after] is only supported with [sort]");
+        // A shard capped below the page size would return short pages, which look like the last page
+        if(size > maxPerShard)
+            throw new FacetPhaseExecutionException(facetName, "[size] must not be greater than [max_per_shard]");
+
         if(keyField == null) {
             throw new FacetPhaseExecutionException(facetName, "key field is required to be set for term list facet, either using [field] or using [key_field]");
         }
@@ -77,6 +133,77 @@ public class TermListFacetParser extends AbstractComponent implements FacetParse
 
         final IndexFieldData<?> indexFieldData = context.fieldData().getForField(mapper);
 
-        return new TermListFacetExecutor(context, indexFieldData, facetName, maxPerShard, sample);
+        final BytesRef afterTerm = after == null ? null : afterTerm(facetName, indexFieldData, after);
+
+        Automaton filter = null;
+        if(prefix != null || regex != null || !include.isEmpty() || !exclude.isEmpty()) {
+            if(indexFieldData instanceof IndexNumericFieldData)
+                throw new FacetPhaseExecutionException(facetName,
+                        "[prefix], [regex], [include] and [exclude] are only supported on string fields");
+            try {
+                filter = buildFilter(prefix, regex, include, exclude);
+            } catch(final IllegalArgumentException e) {
+                throw new FacetPhaseExecutionException(facetName, "invalid [regex]: " + regex, e);
+            }
+        }
+
+        return new TermListFacetExecutor(context, indexFieldData, facetName, maxPerShard, sample, filter, sort, size, afterTerm);
+    }
+
+    /**
+     * Turn an [after] cursor into the term it would be indexed as, so it can be compared
+     * with terms in the index: integers and longs are prefix-coded at full precision.
+     *
+     * @param facetName the facet name, for errors
+     * @param indexFieldData the field data of the key field
+     * @param after the cursor
+     * @return the term
+     */
+    private static BytesRef afterTerm(final String facetName, final IndexFieldData<?> indexFieldData, final String after) {
+        if(!(indexFieldData instanceof IndexNumericFieldData))
+            return new BytesRef(after);
+        final IndexNumericFieldData.NumericType type = ((IndexNumericFieldData<?>) indexFieldData).getNumericType();
+        final BytesRef term = new BytesRef();
+        try {
+            if(type == IndexNumericFieldData.NumericType.LONG) {
+                NumericUtils.longToPrefixCoded(Long.parseLong(after), 0, term);
+                return term;
+            }
+            if(type == IndexNumericFieldData.NumericType.INT) {
+                NumericUtils.intToPrefixCoded(Integer.parseInt(after), 0, term);
+                return term;
+            }
+        } catch(final NumberFormatException e) {
+            throw new FacetPhaseExecutionException(facetName, "invalid [after]: " + after, e);
+        }
+        throw new FacetPhaseExecutionException(facetName, "[after] is only supported on string, integer and long fields");
+    }
+
+    /**
+     * Build an automaton accepting the terms which match all of the given conditions.
+     *
+     * @param prefix a prefix which terms must start with, or null
+     * @param regex a Lucene regular expression which terms must match, or null
+     * @param include a list of terms to restrict the results to, or an empty list
+     * @param exclude a list of terms to leave out of the results, or an empty list
+     * @return the automaton
+     */
+    private static Automaton buildFilter(final String prefix, final String regex,
+            final List<BytesRef> include, final List<BytesRef> exclude) {
+        Automaton filter = BasicAutomata.makeAnyString();
+        if(prefix != null)
+            filter = BasicOperations.concatenate(BasicAutomata.makeString(prefix), filter);
+        if(regex != null)
+            filter = BasicOperations.intersection(filter, new RegExp(regex).toAutomaton());
+        if(!include.isEmpty())
+            filter = BasicOperations.intersection(filter, BasicAutomata.makeStringUnion(sorted(include)));
+        if(!exclude.isEmpty())
+            filter = BasicOperations.minus(filter, BasicAutomata.makeStringUnion(sorted(exclude)));
+        return filter;
+    }
+
+    // makeStringUnion() needs its input in sorted order, without duplicates
+    private static Collection<BytesRef> sorted(final List<BytesRef> terms) {
+        return new TreeSet<BytesRef>(terms);
     }
 }
@@ -0,0 +1,116 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.termlist;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.codecs.bloom.MurmurHash2;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Holds a fixed number of distinct terms out of a stream which may contain any number of them.
+ * Unsorted, it keeps the terms with the lowest hashes, which are a uniform random sample of all
+ * the distinct terms offered, however often and in whatever order each one turns up. Sorted,
+ * it keeps the lowest terms in byte order instead.
+ */
+final class TermReservoir {
+
+    private static final MurmurHash2 __murmurHash = MurmurHash2.INSTANCE;
+
+    private final int _size;
+    private final boolean _sorted;
+
+    // The kept terms, with the one to evict next at the top, and the same terms for lookups
+    private final EntryQueue _queue;
+    private final Set<BytesRef> _members;
+
+    /**
+     * Create a new reservoir.
+     *
+     * @param size the number of terms to keep, greater than 0
+     * @param sorted true to keep the lowest terms in byte order, false to keep a uniform sample
+     */
+    TermReservoir(final int size, final boolean sorted) {
+        _size = size;
+        _sorted = sorted;
+        _queue = new EntryQueue(size);
+        _members = new HashSet<BytesRef>(size * 2);
+    }
+
+    /**
+     * Offer a term. Terms which can't make the cut are rejected before anything is copied.
+     *
+     * @param term the term, which may be reused by the caller afterwards
+     * @return true if the term was kept
+     */
+    boolean offer(final BytesRef term) {
+        final int key = _sorted ? 0 : __murmurHash.hash(term);
+        if(_queue.size() == _size && compare(key, term, _queue.top()) >= 0)
+            return false;
+        if(_members.contains(term))
+            return false;
+        final Entry entry = new Entry(key, BytesRef.deepCopyOf(term));
+        _members.add(entry._term);
+        final Entry evicted = _queue.insertWithOverflow(entry);
+        if(evicted != null)
+            _members.remove(evicted._term);
+        return true;
+    }
+
+    /**
+     * Get the kept terms.
+     *
+     * @return the terms, in no particular order
+     */
+    Collection<BytesRef> terms() {
+        return _members;
+    }
+
+    /**
+     * Add the kept terms to a hash.
+     *
+     * @param hash the hash
+     */
+    void addTo(final BytesRefHash hash) {
+        for(final BytesRef term : _members) {
+            hash.add(term);
+        }
+    }
+
+    private static int compare(final int key, final BytesRef term, final Entry entry) {
+        if(key != entry._key)
+            return key < entry._key ? -1 : 1;
+        return term.compareTo(entry._term);
+    }
+
+    private static final class Entry {
+
+        private final int _key;
+        private final BytesRef _term;
+
+        Entry(final int key, final BytesRef term) {
+            _key = key;
+            _term = term;
+        }
+
+    }
+
+    /**
+     * A heap with the highest entry at the top.
+     */
+    private static final class EntryQueue extends PriorityQueue<Entry> {
+
+        EntryQueue(final int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(final Entry a, final Entry b) {
+            return compare(a._key, a._term, b) > 0;
+        }
+
+    }
+
+}
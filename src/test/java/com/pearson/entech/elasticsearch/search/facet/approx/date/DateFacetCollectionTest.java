@@ -0,0 +1,650 @@
+package com.pearson.entech.elasticsearch.search.facet.approx.date;
+
+import static com.google.common.collect.Maps.newTreeMap;
+import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.search.facet.FacetBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ObjectArrays;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacetBuilder;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctSlice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Slice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.XContentEnabledList;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DateFacetParser;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalCountingFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalDistinctFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedDistinctFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalSlicedFacet;
+
+/**
+ * Checks date facets against counts worked out directly from the indexed documents. The index
+ * has a single shard, and each batch of documents is flushed into a segment of its own, so we
+ * know which documents are in which segment. Post mode collects segments in parallel on this node.
+ */
+public class DateFacetCollectionTest {
+
+    private static Node __node;
+
+    private static final String __index = "collectionindex";
+
+    private static final String __type = "event";
+
+    // The same timestamps, with and without ordinals in the field data
+    private static final String __tsField = "timestamp";
+    private static final String __tsOrdsField = "timestamp_ords";
+    private static final String[] __keyFields = { __tsField, __tsOrdsField };
+
+    private static final String __userField = "user";
+
+    private static final String __tagField = "tag";
+
+    private static final String[] __tags = { "red", "green", "blue", "yellow", "black" };
+
+    // Each doc has between none and three of these
+    private static final String __labelsField = "labels";
+
+    private static final long __day = 86400000;
+
+    private static final long __start = 1325376000000L;
+
+    private static final long __end = __start + 7 * __day;
+
+    private static final AtomicInteger __counter = new AtomicInteger(0);
+
+    private final Random _random = new Random(0);
+
+    private final List<Doc> _docs = new ArrayList<Doc>();
+
+    @BeforeClass
+    public static void setUpClass() {
+        final Settings settings = ImmutableSettings.settingsBuilder()
+                .put("node.http.enabled", false)
+                .put("index.gateway.type", "none")
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0)
+                .put("index.merge.policy.merge_factor", 100)
+                .put("path.data", "target")
+                .put("refresh_interval", -1)
+                .put(DateFacetParser.PARALLEL_ENABLED_SETTING, true)
+                .put(DateFacetParser.PARALLEL_THREADS_SETTING, 4)
+                .build();
+        __node = nodeBuilder()
+                .local(true)
+                .settings(settings)
+                .clusterName("DateFacetCollectionTest")
+                .node();
+        __node.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        __node.close();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        client().admin().indices().delete(new DeleteIndexRequest("_all")).actionGet();
+        client().admin().indices().create(new CreateIndexRequest(__index)).actionGet();
+        client().admin().cluster().prepareHealth().setWaitForGreenStatus().execute().actionGet();
+        final String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                .startObject(__type)
+                .startObject("_all").field("enabled", false).endObject()
+                .startObject("_source").field("enabled", false).endObject()
+                .startObject("properties")
+                .startObject(__tsField).field("type", "date").endObject()
+                // Single-valued fields normally lose their ordinals when loaded, so keep them for this one
+                .startObject(__tsOrdsField).field("type", "date")
+                .startObject("fielddata").field("ordinals", "always").endObject().endObject()
+                .startObject(__userField).field("type", "integer").endObject()
+                .startObject(__tagField).field("type", "string").field("index", "not_analyzed").endObject()
+                .startObject(__labelsField).field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject()
+                .endObject()
+                .endObject().string();
+        client().admin().indices()
+                .preparePutMapping(__index)
+                .setType(__type)
+                .setSource(mapping)
+                .execute().actionGet();
+    }
+
+    @Test
+    public void testSlicedFacetsCollectorMode() throws Exception {
+        testSlicedFacets(FacetBuilder.Mode.COLLECTOR);
+    }
+
+    @Test
+    public void testSlicedFacetsPostMode() throws Exception {
+        testSlicedFacets(FacetBuilder.Mode.POST);
+    }
+
+    private void testSlicedFacets(final FacetBuilder.Mode mode) throws Exception {
+        // Keyed on timestamp_ords, both fields have ordinals, so each segment is counted into a
+        // timestamp x slice ordinal matrix. Keyed on timestamp, slices are counted by label as they're found.
+        for(int i = 0; i < 3; i++) {
+            indexSegment(1000, __start, __end);
+        }
+        for(final String keyField : __keyFields) {
+            final SearchResponse response = search(
+                    new DateFacetBuilder("sliced").keyField(keyField).sliceField(__tagField).interval("day").mode(mode),
+                    new DateFacetBuilder("sliced_distinct").keyField(keyField).sliceField(__tagField).distinctField(__userField)
+                            .interval("day").mode(mode));
+            final Predicate<Doc> all = Predicates.alwaysTrue();
+
+            final InternalSlicedFacet sliced = response.getFacets().facet("sliced");
+            assertEquals(expectedSliceCounts(all), sliceCounts(sliced.getTimePeriods()));
+            assertEquals(_docs.size(), sliced.getTotalCount());
+
+            final InternalSlicedDistinctFacet slicedDistinct = response.getFacets().facet("sliced_distinct");
+            assertEquals(expectedSliceCounts(all), sliceCounts(slicedDistinct.getTimePeriods()));
+            assertEquals(expectedSliceDistinctCounts(all), sliceDistinctCounts(slicedDistinct.getTimePeriods()));
+        }
+    }
+
+    @Test
+    public void testParallelCollectionMatchesSequentialCollection() throws Exception {
+        // More segments than threads, so each thread collects several of them
+        for(int i = 0; i < 10; i++) {
+            indexSegment(300, __start, __end);
+        }
+        for(final String keyField : __keyFields) {
+            final SearchResponse response = search(ObjectArrays.concat(
+                    allFacets("sequential_", keyField, FacetBuilder.Mode.COLLECTOR),
+                    allFacets("parallel_", keyField, FacetBuilder.Mode.POST),
+                    DateFacetBuilder.class));
+            final Predicate<Doc> all = Predicates.alwaysTrue();
+            assertAllFacets(response, "sequential_", all);
+            assertAllFacets(response, "parallel_", all);
+        }
+    }
+
+    @Test
+    public void testCollectingAcrossBlockBoundariesCollectorMode() throws Exception {
+        testCollectingAcrossBlockBoundaries(FacetBuilder.Mode.COLLECTOR);
+    }
+
+    @Test
+    public void testCollectingAcrossBlockBoundariesPostMode() throws Exception {
+        testCollectingAcrossBlockBoundaries(FacetBuilder.Mode.POST);
+    }
+
+    private void testCollectingAcrossBlockBoundaries(final FacetBuilder.Mode mode) throws Exception {
+        // Docs are buffered in blocks of 1024, so this segment fills two blocks and part of a third
+        indexSegment(2500, __start, __end);
+        for(final String keyField : __keyFields) {
+            final DateFacetBuilder[] filtered = allFacets("filtered_", keyField, mode);
+            for(final DateFacetBuilder facet : filtered) {
+                // Only some of the docs in each block are collected
+                facet.facetFilter(FilterBuilders.termFilter(__tagField, "red"));
+            }
+            final SearchResponse response = search(ObjectArrays.concat(
+                    allFacets("all_", keyField, mode), filtered, DateFacetBuilder.class));
+            assertAllFacets(response, "all_", Predicates.<Doc> alwaysTrue());
+            assertAllFacets(response, "filtered_", new Predicate<Doc>() {
+                @Override
+                public boolean apply(final Doc doc) {
+                    return "red".equals(doc._tag);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testSamplingCollectorMode() throws Exception {
+        testSampling(FacetBuilder.Mode.COLLECTOR);
+    }
+
+    @Test
+    public void testSamplingPostMode() throws Exception {
+        testSampling(FacetBuilder.Mode.POST);
+    }
+
+    private void testSampling(final FacetBuilder.Mode mode) throws Exception {
+        for(int i = 0; i < 2; i++) {
+            indexSegment(2500, __start, __end);
+        }
+        final Predicate<Doc> all = Predicates.alwaysTrue();
+        final Map<Long, Long> expectedCounts = expectedCounts(all);
+        final Map<Long, Long> expectedDistinctCounts = expectedDistinctCounts(all);
+        for(final String keyField : __keyFields) {
+            final SearchResponse response = search(
+                    new DateFacetBuilder("sampled").keyField(keyField).interval("day").sample(0.5f).mode(mode),
+                    new DateFacetBuilder("sampled_distinct").keyField(keyField).distinctField(__userField).interval("day").sample(0.5f).mode(mode),
+                    new DateFacetBuilder("unsampled").keyField(keyField).interval("day").sample(1).mode(mode));
+
+            // Each sampled doc is counted twice over, so the counts are even, and close to the real ones.
+            // About 700 docs a day are sampled at a rate of 0.5, so a 25% tolerance is over 7 standard deviations.
+            final InternalCountingFacet sampled = response.getFacets().facet("sampled");
+            assertEquals(0.5f, sampled.getSampleRate(), 0);
+            final Map<Long, Long> sampledCounts = periodCounts(sampled.getTimePeriods());
+            assertEquals(expectedCounts.keySet(), sampledCounts.keySet());
+            for(final Map.Entry<Long, Long> period : sampledCounts.entrySet()) {
+                final long expected = expectedCounts.get(period.getKey());
+                assertEquals(0, period.getValue() % 2);
+                assertEquals(expected, period.getValue(), expected * 0.25);
+            }
+            assertEquals(_docs.size(), sampled.getTotalCount(), _docs.size() * 0.1);
+
+            // Distinct counts are not scaled up
+            final InternalDistinctFacet sampledDistinct = response.getFacets().facet("sampled_distinct");
+            assertEquals(0.5f, sampledDistinct.getSampleRate(), 0);
+            final Map<Long, Long> sampledDistinctCounts = distinctCounts(sampledDistinct.getTimePeriods());
+            assertEquals(expectedDistinctCounts.keySet(), sampledDistinctCounts.keySet());
+            for(final Map.Entry<Long, Long> period : sampledDistinctCounts.entrySet()) {
+                assertTrue(period.getValue() > 0);
+                assertTrue(period.getValue() <= expectedDistinctCounts.get(period.getKey()));
+            }
+            for(final long count : periodCounts(sampledDistinct.getTimePeriods()).values()) {
+                assertEquals(0, count % 2);
+            }
+
+            final InternalCountingFacet unsampled = response.getFacets().facet("unsampled");
+            assertEquals(1f, unsampled.getSampleRate(), 0);
+            assertEquals(expectedCounts, periodCounts(unsampled.getTimePeriods()));
+        }
+    }
+
+    @Test
+    public void testBoundsCollectorMode() throws Exception {
+        testBounds(FacetBuilder.Mode.COLLECTOR);
+    }
+
+    @Test
+    public void testBoundsPostMode() throws Exception {
+        testBounds(FacetBuilder.Mode.POST);
+    }
+
+    private void testBounds(final FacetBuilder.Mode mode) throws Exception {
+        // Days 0-2, 3-4 and 5-6 each have a segment of their own
+        indexSegment(1000, __start, __start + 3 * __day);
+        indexSegment(1000, __start + 3 * __day, __start + 5 * __day);
+        indexSegment(1000, __start + 5 * __day, __end);
+        for(final String keyField : __keyFields) {
+            // Only part of the middle segment is in bounds, and the other two are skipped entirely
+            checkBounds(keyField, mode, __start + 3 * __day + 6 * 3600000, __start + 4 * __day + 18 * 3600000);
+            // The first segment is skipped, and all of the others are in bounds
+            checkBounds(keyField, mode, __start + 3 * __day, Long.MAX_VALUE);
+            // Every segment is skipped
+            checkBounds(keyField, mode, Long.MIN_VALUE, __start - 1);
+        }
+    }
+
+    private void checkBounds(final String keyField, final FacetBuilder.Mode mode, final long min, final long max) {
+        final DateFacetBuilder[] facets = allFacets("", keyField, mode);
+        for(final DateFacetBuilder facet : facets) {
+            facet.min(min).max(max);
+        }
+        assertAllFacets(search(facets), "", between(min, max));
+    }
+
+    @Test
+    public void testCountingCollectorMode() throws Exception {
+        testCounting(FacetBuilder.Mode.COLLECTOR);
+    }
+
+    @Test
+    public void testCountingPostMode() throws Exception {
+        testCounting(FacetBuilder.Mode.POST);
+    }
+
+    private void testCounting(final FacetBuilder.Mode mode) throws Exception {
+        // Keyed on timestamp_ords, docs are counted per ordinal, and the counts are only turned into
+        // timestamps at the end of each segment. Keyed on timestamp, they're counted per timestamp.
+        for(int i = 0; i < 3; i++) {
+            indexSegment(1000, __start, __end);
+        }
+        final Predicate<Doc> all = Predicates.alwaysTrue();
+        for(final String keyField : __keyFields) {
+            final SearchResponse response = search(
+                    new DateFacetBuilder("docs").keyField(keyField).interval("day").mode(mode),
+                    new DateFacetBuilder("labels").keyField(keyField).valueField(__labelsField).interval("day").mode(mode),
+                    new DateFacetBuilder("tags").keyField(keyField).valueField(__tagField).interval("day").mode(mode));
+
+            final InternalCountingFacet docs = response.getFacets().facet("docs");
+            assertEquals(expectedCounts(all), periodCounts(docs.getTimePeriods()));
+            assertEquals(_docs.size(), docs.getTotalCount());
+
+            // Every occurrence of the value field is counted, so docs without any aren't counted at all
+            final InternalCountingFacet labels = response.getFacets().facet("labels");
+            assertEquals(expectedLabelCounts(all), periodCounts(labels.getTimePeriods()));
+
+            // Every doc has exactly one tag
+            final InternalCountingFacet tags = response.getFacets().facet("tags");
+            assertEquals(expectedCounts(all), periodCounts(tags.getTimePeriods()));
+        }
+    }
+
+    @Test
+    public void testSharedTimestampTablesCollectorMode() throws Exception {
+        testSharedTimestampTables(FacetBuilder.Mode.COLLECTOR);
+    }
+
+    @Test
+    public void testSharedTimestampTablesPostMode() throws Exception {
+        testSharedTimestampTables(FacetBuilder.Mode.POST);
+    }
+
+    private void testSharedTimestampTables(final FacetBuilder.Mode mode) throws Exception {
+        for(int i = 0; i < 3; i++) {
+            indexSegment(1000, __start, __end);
+        }
+        final long min = __start + __day / 2;
+        final long max = __end - __day / 2;
+        for(final String keyField : __keyFields) {
+            // The first four facets have the same key field, interval and bounds, so they share
+            // one timestamp table per segment. The bounded one has its own.
+            final SearchResponse response = search(
+                    new DateFacetBuilder("first").keyField(keyField).interval("day").mode(mode),
+                    new DateFacetBuilder("second").keyField(keyField).interval("day").mode(mode),
+                    new DateFacetBuilder("distinct").keyField(keyField).distinctField(__userField).interval("day").mode(mode),
+                    new DateFacetBuilder("sliced").keyField(keyField).sliceField(__tagField).interval("day").mode(mode),
+                    new DateFacetBuilder("bounded").keyField(keyField).interval("day").min(min).max(max).mode(mode));
+            final SearchResponse alone = search(
+                    new DateFacetBuilder("alone").keyField(keyField).interval("day").mode(mode));
+
+            final Predicate<Doc> all = Predicates.alwaysTrue();
+            final Map<Long, Long> expected = expectedCounts(all);
+            final InternalCountingFacet first = response.getFacets().facet("first");
+            final InternalCountingFacet second = response.getFacets().facet("second");
+            final InternalCountingFacet single = alone.getFacets().facet("alone");
+            assertEquals(expected, periodCounts(first.getTimePeriods()));
+            assertEquals(expected, periodCounts(second.getTimePeriods()));
+            assertEquals(expected, periodCounts(single.getTimePeriods()));
+
+            final InternalDistinctFacet distinct = response.getFacets().facet("distinct");
+            assertEquals(expected, periodCounts(distinct.getTimePeriods()));
+            assertEquals(expectedDistinctCounts(all), distinctCounts(distinct.getTimePeriods()));
+
+            final InternalSlicedFacet sliced = response.getFacets().facet("sliced");
+            assertEquals(expectedSliceCounts(all), sliceCounts(sliced.getTimePeriods()));
+
+            final InternalCountingFacet bounded = response.getFacets().facet("bounded");
+            assertEquals(expectedCounts(between(min, max)), periodCounts(bounded.getTimePeriods()));
+        }
+    }
+
+    // Helper methods
+
+    private static Predicate<Doc> between(final long min, final long max) {
+        return new Predicate<Doc>() {
+            @Override
+            public boolean apply(final Doc doc) {
+                return doc._timestamp >= min && doc._timestamp <= max;
+            }
+        };
+    }
+
+    /**
+     * Build a counting, a distinct, a sliced and a sliced distinct facet, with daily intervals.
+     *
+     * @param prefix a prefix for the facet names
+     * @param keyField the key field
+     * @param mode the facet mode
+     * @return the facet builders, for further configuration
+     */
+    private DateFacetBuilder[] allFacets(final String prefix, final String keyField, final FacetBuilder.Mode mode) {
+        final DateFacetBuilder[] facets = {
+                new DateFacetBuilder(prefix + "counting").keyField(keyField).interval("day"),
+                new DateFacetBuilder(prefix + "distinct").keyField(keyField).distinctField(__userField).interval("day"),
+                new DateFacetBuilder(prefix + "sliced").keyField(keyField).sliceField(__tagField).interval("day"),
+                new DateFacetBuilder(prefix + "sliced_distinct").keyField(keyField).sliceField(__tagField).distinctField(__userField)
+                        .interval("day") };
+        // mode() returns a plain FacetBuilder, so it can't be chained with the rest
+        for(final DateFacetBuilder facet : facets) {
+            facet.mode(mode);
+        }
+        return facets;
+    }
+
+    /**
+     * Check the facets built by allFacets() against the documents which pass a filter.
+     *
+     * @param response the search response
+     * @param prefix the prefix of the facet names
+     * @param filter the filter
+     */
+    private void assertAllFacets(final SearchResponse response, final String prefix, final Predicate<Doc> filter) {
+        final InternalCountingFacet counting = response.getFacets().facet(prefix + "counting");
+        assertEquals(expectedCounts(filter), periodCounts(counting.getTimePeriods()));
+        assertEquals(Iterables.size(Iterables.filter(_docs, filter)), counting.getTotalCount());
+
+        final InternalDistinctFacet distinct = response.getFacets().facet(prefix + "distinct");
+        assertEquals(expectedCounts(filter), periodCounts(distinct.getTimePeriods()));
+        assertEquals(expectedDistinctCounts(filter), distinctCounts(distinct.getTimePeriods()));
+
+        final InternalSlicedFacet sliced = response.getFacets().facet(prefix + "sliced");
+        assertEquals(expectedSliceCounts(filter), sliceCounts(sliced.getTimePeriods()));
+
+        final InternalSlicedDistinctFacet slicedDistinct = response.getFacets().facet(prefix + "sliced_distinct");
+        assertEquals(expectedSliceCounts(filter), sliceCounts(slicedDistinct.getTimePeriods()));
+        assertEquals(expectedSliceDistinctCounts(filter), sliceDistinctCounts(slicedDistinct.getTimePeriods()));
+    }
+
+    /**
+     * A document as indexed, for working out the expected counts.
+     */
+    private static class Doc {
+
+        private final long _timestamp;
+        private final int _user;
+        private final String _tag;
+        private final int _labels;
+
+        Doc(final long timestamp, final int user, final String tag, final int labels) {
+            _timestamp = timestamp;
+            _user = user;
+            _tag = tag;
+            _labels = labels;
+        }
+
+    }
+
+    /**
+     * Index a batch of random documents, and flush them into a new segment.
+     *
+     * @param count the number of documents
+     * @param from the earliest timestamp (inclusive)
+     * @param to the latest timestamp (exclusive)
+     * @throws Exception
+     */
+    private void indexSegment(final int count, final long from, final long to) throws Exception {
+        final BulkRequestBuilder bulk = client().prepareBulk();
+        for(int i = 0; i < count; i++) {
+            final Doc doc = new Doc(from + (long) (_random.nextDouble() * (to - from)),
+                    _random.nextInt(50), __tags[_random.nextInt(__tags.length)], _random.nextInt(4));
+            _docs.add(doc);
+            final XContentBuilder source = XContentFactory.jsonBuilder()
+                    .startObject()
+                    .field(__tsField, doc._timestamp)
+                    .field(__tsOrdsField, doc._timestamp)
+                    .field(__userField, doc._user)
+                    .field(__tagField, doc._tag);
+            if(doc._labels > 0) {
+                source.startArray(__labelsField);
+                for(int j = 0; j < doc._labels; j++) {
+                    source.value("label" + j);
+                }
+                source.endArray();
+            }
+            source.endObject();
+            bulk.add(new IndexRequest(__index, __type, String.valueOf(__counter.getAndIncrement())).source(source));
+        }
+        final BulkResponse response = bulk.execute().actionGet();
+        assertFalse(response.buildFailureMessage(), response.hasFailures());
+        client().admin().indices().prepareFlush(__index).setRefresh(true).execute().actionGet();
+    }
+
+    private SearchResponse search(final FacetBuilder... facets) {
+        final SearchRequestBuilder request = client().prepareSearch(__index).setSearchType(SearchType.COUNT);
+        for(final FacetBuilder facet : facets) {
+            request.addFacet(facet);
+        }
+        final SearchResponse response = request.execute().actionGet();
+        if(response.getFailedShards() > 0) {
+            System.out.println(response);
+            fail(Joiner.on(", ").join(response.getShardFailures()));
+        }
+        return response;
+    }
+
+    private Map<Long, Long> expectedCounts(final Predicate<Doc> filter) {
+        final Map<Long, Long> counts = newTreeMap();
+        for(final Doc doc : Iterables.filter(_docs, filter)) {
+            increment(counts, day(doc._timestamp), 1);
+        }
+        return counts;
+    }
+
+    private Map<Long, Long> expectedLabelCounts(final Predicate<Doc> filter) {
+        final Map<Long, Long> counts = newTreeMap();
+        for(final Doc doc : Iterables.filter(_docs, filter)) {
+            // Periods where no doc has any labels are left out
+            if(doc._labels > 0)
+                increment(counts, day(doc._timestamp), doc._labels);
+        }
+        return counts;
+    }
+
+    private Map<Long, Long> expectedDistinctCounts(final Predicate<Doc> filter) {
+        final Map<Long, Set<Integer>> users = newTreeMap();
+        for(final Doc doc : Iterables.filter(_docs, filter)) {
+            final long day = day(doc._timestamp);
+            if(!users.containsKey(day))
+                users.put(day, new HashSet<Integer>());
+            users.get(day).add(doc._user);
+        }
+        final Map<Long, Long> counts = newTreeMap();
+        for(final Map.Entry<Long, Set<Integer>> period : users.entrySet()) {
+            counts.put(period.getKey(), (long) period.getValue().size());
+        }
+        return counts;
+    }
+
+    private Map<Long, Map<String, Long>> expectedSliceCounts(final Predicate<Doc> filter) {
+        final Map<Long, Map<String, Long>> counts = newTreeMap();
+        for(final Doc doc : Iterables.filter(_docs, filter)) {
+            final long day = day(doc._timestamp);
+            if(!counts.containsKey(day))
+                counts.put(day, new TreeMap<String, Long>());
+            increment(counts.get(day), doc._tag, 1);
+        }
+        return counts;
+    }
+
+    private Map<Long, Map<String, Long>> expectedSliceDistinctCounts(final Predicate<Doc> filter) {
+        final Map<Long, Map<String, Set<Integer>>> users = newTreeMap();
+        for(final Doc doc : Iterables.filter(_docs, filter)) {
+            final long day = day(doc._timestamp);
+            if(!users.containsKey(day))
+                users.put(day, new TreeMap<String, Set<Integer>>());
+            if(!users.get(day).containsKey(doc._tag))
+                users.get(day).put(doc._tag, new HashSet<Integer>());
+            users.get(day).get(doc._tag).add(doc._user);
+        }
+        final Map<Long, Map<String, Long>> counts = newTreeMap();
+        for(final Map.Entry<Long, Map<String, Set<Integer>>> period : users.entrySet()) {
+            final Map<String, Long> slices = newTreeMap();
+            for(final Map.Entry<String, Set<Integer>> slice : period.getValue().entrySet()) {
+                slices.put(slice.getKey(), (long) slice.getValue().size());
+            }
+            counts.put(period.getKey(), slices);
+        }
+        return counts;
+    }
+
+    private static Map<Long, Long> periodCounts(final List<? extends TimePeriod<?>> periods) {
+        final Map<Long, Long> counts = newTreeMap();
+        for(final TimePeriod<?> period : periods) {
+            counts.put(period.getTime(), period.getTotalCount());
+        }
+        return counts;
+    }
+
+    private static Map<Long, Long> distinctCounts(final List<? extends DistinctTimePeriod<?>> periods) {
+        final Map<Long, Long> counts = newTreeMap();
+        for(final DistinctTimePeriod<?> period : periods) {
+            counts.put(period.getTime(), period.getDistinctCount());
+        }
+        return counts;
+    }
+
+    private static Map<Long, Map<String, Long>> sliceCounts(
+            final List<? extends TimePeriod<? extends XContentEnabledList<? extends Slice<String>>>> periods) {
+        final Map<Long, Map<String, Long>> counts = newTreeMap();
+        for(final TimePeriod<? extends XContentEnabledList<? extends Slice<String>>> period : periods) {
+            final Map<String, Long> slices = newTreeMap();
+            for(final Slice<String> slice : period.getEntry()) {
+                slices.put(slice.getLabel(), slice.getTotalCount());
+            }
+            counts.put(period.getTime(), slices);
+        }
+        return counts;
+    }
+
+    private static Map<Long, Map<String, Long>> sliceDistinctCounts(
+            final List<DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>>> periods) {
+        final Map<Long, Map<String, Long>> counts = newTreeMap();
+        for(final DistinctTimePeriod<XContentEnabledList<DistinctSlice<String>>> period : periods) {
+            final Map<String, Long> slices = newTreeMap();
+            for(final DistinctSlice<String> slice : period.getEntry()) {
+                slices.put(slice.getLabel(), slice.getDistinctCount());
+            }
+            counts.put(period.getTime(), slices);
+        }
+        return counts;
+    }
+
+    private static <K> void increment(final Map<K, Long> counts, final K key, final long by) {
+        final Long count = counts.get(key);
+        counts.put(key, count == null ? by : count + by);
+    }
+
+    private static long day(final long timestamp) {
+        return timestamp - timestamp % __day;
+    }
+
+    private Client client() {
+        return __node.client();
+    }
+
+}
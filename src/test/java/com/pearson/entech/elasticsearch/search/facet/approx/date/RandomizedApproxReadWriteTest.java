@@ -50,6 +50,7 @@ import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFa
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.external.NullEntry;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalDistinctFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalMultiIntervalFacet;
 
 public class RandomizedApproxReadWriteTest {
 
@@ -346,6 +347,59 @@ public class RandomizedApproxReadWriteTest {
         assertThat(facet.getDistinctCount(), equalTo(3l));
     }
 
+    @Test
+    public void testMultipleIntervalsMatchSingleIntervals() throws Exception {
+        client().admin().cluster().prepareHealth().setWaitForEvents(Priority.LANGUID).setWaitForGreenStatus().execute().actionGet();
+
+        client().prepareIndex(__index, __type3).setSource(jsonBuilder().startObject()
+                .field("date", "2009-03-05T23:31:01")
+                .field("num", 1)
+                .endObject()).execute().actionGet();
+        client().admin().indices().prepareFlush().setRefresh(true).execute().actionGet();
+
+        client().prepareIndex(__index, __type3).setSource(jsonBuilder().startObject()
+                .field("date", "2009-03-05T18:01:01")
+                .field("num", 2)
+                .endObject()).execute().actionGet();
+        client().prepareIndex(__index, __type3).setSource(jsonBuilder().startObject()
+                .field("date", "2009-03-05T22:01:01")
+                .field("num", 3)
+                .endObject()).execute().actionGet();
+        client().admin().indices().prepareRefresh().execute().actionGet();
+
+        // The day facet is rolled up from the hour facet, across a time zone boundary
+        final SearchResponse searchResponse = client().prepareSearch()
+                .setQuery(matchAllQuery())
+                .addFacet(new DateFacetBuilder("multi").keyField("date").distinctField("num").intervals("day", "hour").preZone("+02:00"))
+                .addFacet(new DateFacetBuilder("day").keyField("date").distinctField("num").interval("day").preZone("+02:00"))
+                .addFacet(new DateFacetBuilder("hour").keyField("date").distinctField("num").interval("hour").preZone("+02:00"))
+                .execute().actionGet();
+
+        if(searchResponse.getFailedShards() > 0) {
+            System.out.println(searchResponse);
+            fail(Joiner.on(", ").join(searchResponse.getShardFailures()));
+        }
+
+        final InternalMultiIntervalFacet multi = searchResponse.getFacets().facet("multi");
+        assertEquals(2, multi.getIntervals().size());
+        assertEquals("day", multi.getIntervals().get(0).getName());
+        assertEquals("hour", multi.getIntervals().get(1).getName());
+        for(final String interval : new String[] { "day", "hour" }) {
+            final InternalDistinctFacet rolledUp = (InternalDistinctFacet) multi.getInterval(interval);
+            final InternalDistinctFacet single = searchResponse.getFacets().facet(interval);
+            assertEquals(single.getEntries().size(), rolledUp.getEntries().size());
+            for(int i = 0; i < single.getEntries().size(); i++) {
+                assertEquals(single.getEntries().get(i).getTime(), rolledUp.getEntries().get(i).getTime());
+                assertEquals(single.getEntries().get(i).getTotalCount(), rolledUp.getEntries().get(i).getTotalCount());
+                assertEquals(single.getEntries().get(i).getDistinctCount(), rolledUp.getEntries().get(i).getDistinctCount());
+            }
+            assertEquals(single.getTotalCount(), rolledUp.getTotalCount());
+            assertEquals(single.getDistinctCount(), rolledUp.getDistinctCount());
+        }
+        assertEquals(2, multi.getInterval("day").getEntries().size());
+        assertEquals(3, multi.getInterval("hour").getEntries().size());
+    }
+
     @Test
     public void testWithMaxOneDocPerDayBucketOnAtomicField() throws Exception {
         putSync(newID(), 1, __days[0]);
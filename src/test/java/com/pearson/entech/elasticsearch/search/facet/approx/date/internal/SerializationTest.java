@@ -2,9 +2,17 @@ package com.pearson.entech.elasticsearch.search.facet.approx.date.internal;
 
 import static com.google.common.collect.Maps.newHashMap;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.CacheRecycler;
@@ -15,9 +23,23 @@ import org.elasticsearch.common.trove.ExtTHashMap;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
 import org.elasticsearch.common.trove.map.hash.TLongIntHashMap;
 import org.elasticsearch.common.trove.map.hash.TObjectIntHashMap;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.InternalFacet;
 import org.junit.Test;
 
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.google.common.collect.Lists;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DateFacet;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.DistinctTimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.NullEntry;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.Slice;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.SliceList;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.TimePeriod;
+import com.pearson.entech.elasticsearch.search.facet.approx.date.external.XContentEnabledList;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.DistinctCountPayload;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalCountingFacet;
 import com.pearson.entech.elasticsearch.search.facet.approx.date.internal.InternalDistinctFacet;
@@ -40,6 +62,17 @@ public class SerializationTest {
         testSerializingCountingFacet(counts);
     }
 
+    @Test
+    public void testSerializingCountingFacetWithIrregularKeys() throws Exception {
+        final TLongIntHashMap counts = CacheRecycler.popLongIntMap();
+        // Keys before 1970, and gaps which are different multiples of the interval
+        counts.put(-7200000, 1);
+        counts.put(3600000, 2);
+        counts.put(-3600000, 3);
+        counts.put(36000000, 4);
+        testSerializingCountingFacet(counts);
+    }
+
     private void testSerializingCountingFacet(final TLongIntHashMap counts) throws Exception {
         final TLongIntHashMap sentCounts = new TLongIntHashMap(counts);
         final InternalCountingFacet toSend = new InternalCountingFacet("foo", sentCounts);
@@ -117,6 +150,251 @@ public class SerializationTest {
         }
     }
 
+    @Test
+    public void testCompressingSparseDistinctCounters() throws Exception {
+        final DistinctCountPayload payload = new DistinctCountPayload(0);
+        payload.update(new BytesRef("marge"));
+        payload.update(new BytesRef("homer"));
+        final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+        counts.put(1, payload);
+        final BytesStreamOutput bso = new BytesStreamOutput();
+        new InternalDistinctFacet("bar", counts).writeTo(bso);
+        // The estimator's registers are almost all zero, so they compress to a fraction of their size
+        assertTrue(bso.bytes().length() < 16 * 1024);
+        final InternalDistinctFacet received = new InternalDistinctFacet();
+        received.readFrom(new BytesStreamInput(bso.bytes()));
+        final Map<Long, Integer> expectedCounts = newHashMap();
+        expectedCounts.put(1l, 2);
+        compareDistinctCounts(expectedCounts, expectedCounts,
+                new ExtTLongObjectHashMap<DistinctCountPayload>(received.peekCounts()));
+    }
+
+    @Test
+    public void testSerializingFacetsEitherSideOfCompressionThreshold() throws Exception {
+        // The counting facet estimates 6 bytes per period
+        final int periodsUnder = DateFacet.COMPRESSION_THRESHOLD / 6 - 1;
+        final int periodsOver = DateFacet.COMPRESSION_THRESHOLD / 6 + 1;
+        final int sizeUnder = testRelayingCountingFacet(periodsUnder);
+        final int sizeOver = testRelayingCountingFacet(periodsOver);
+        // Every period looks the same on the wire, so the larger facet compresses to less than the smaller one
+        assertTrue(sizeOver < sizeUnder);
+    }
+
+    private int testRelayingCountingFacet(final int periods) throws Exception {
+        final TLongIntHashMap counts = CacheRecycler.popLongIntMap();
+        for(int i = 0; i < periods; i++) {
+            counts.put(i * 60000l, 1);
+        }
+        final BytesStreamOutput bso = new BytesStreamOutput();
+        new InternalCountingFacet("foo", new TLongIntHashMap(counts)).writeTo(bso);
+        final int size = bso.bytes().length();
+        // Send the received facet on again before reading it, as a node may
+        final InternalCountingFacet relay = new InternalCountingFacet();
+        relay.readFrom(new BytesStreamInput(bso.bytes()));
+        final InternalCountingFacet received = new InternalCountingFacet();
+        serializeAndDeserialize(relay, received);
+        compareCounts(counts, new TLongIntHashMap(received.peekCounts()));
+        return size;
+    }
+
+    @Test
+    public void testSerializingExactCounter() throws Exception {
+        final CountThenEstimateBytes sent = new CountThenEstimateBytes(100, new StreamableHyperLogLog.Builder(0.0025));
+        for(int i = 0; i < 50; i++) {
+            sent.offerBytesRef(new BytesRef("term" + i));
+        }
+        final CountThenEstimateBytes received = serializeAndDeserialize(sent);
+        assertFalse(received.tipped());
+        assertEquals(50, received.cardinality());
+        // The exact counter is still usable after being read back
+        assertTrue(received.offerBytesRef(new BytesRef("term50")));
+        assertFalse(received.offerBytesRef(new BytesRef("term0")));
+    }
+
+    @Test
+    public void testSerializingTippedCounter() throws Exception {
+        final CountThenEstimateBytes sent = new CountThenEstimateBytes(10, new StreamableHyperLogLog.Builder(0.0025));
+        for(int i = 0; i < 500; i++) {
+            sent.offerBytesRef(new BytesRef("term" + i));
+        }
+        assertTrue(sent.tipped());
+        final CountThenEstimateBytes received = serializeAndDeserialize(sent);
+        assertTrue(received.tipped());
+        assertTrue(received._estimator instanceof StreamableHyperLogLog);
+        assertEquals(sent.cardinality(), received.cardinality());
+    }
+
+    @Test
+    public void testSkippingCounters() throws Exception {
+        final CountThenEstimateBytes exact = new CountThenEstimateBytes(100, new StreamableHyperLogLog.Builder(0.0025));
+        final CountThenEstimateBytes tipped = new CountThenEstimateBytes(0, new StreamableHyperLogLog.Builder(0.0025));
+        for(int i = 0; i < 50; i++) {
+            exact.offerBytesRef(new BytesRef("term" + i));
+            tipped.offerBytesRef(new BytesRef("term" + i));
+        }
+        final BytesStreamOutput bso = new BytesStreamOutput();
+        exact.writeTo(bso);
+        tipped.writeTo(bso);
+        bso.writeVInt(42);
+        final BytesStreamInput in = new BytesStreamInput(bso.bytes());
+        CountThenEstimateBytes.skip(in);
+        CountThenEstimateBytes.skip(in);
+        assertEquals(42, in.readVInt());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testRegisterArraySizeMatchesHyperLogLog() throws Exception {
+        // words() mirrors RegisterSet's own sizing, which stream-lib doesn't expose
+        for(int log2m = 4; log2m <= 20; log2m++) {
+            assertEquals(new HyperLogLog(log2m).sizeof(), StreamableHyperLogLog.words(1 << log2m) * 4);
+        }
+    }
+
+    private CountThenEstimateBytes serializeAndDeserialize(final CountThenEstimateBytes toSend) throws Exception {
+        final BytesStreamOutput bso = new BytesStreamOutput();
+        toSend.writeTo(bso);
+        final BytesStreamInput in = new BytesStreamInput(bso.bytes());
+        final CountThenEstimateBytes received = new CountThenEstimateBytes(in, toSend.getTippingPoint(),
+                new StreamableHyperLogLog.Builder(0.0025));
+        // Everything written has been read
+        assertEquals(0, in.available());
+        return received;
+    }
+
+    @Test
+    public void testReducingDeserializedDistinctFacets() throws Exception {
+        final InternalDistinctFacet[] received = new InternalDistinctFacet[3];
+        for(int i = 0; i < received.length; i++) {
+            final DistinctCountPayload payload = new DistinctCountPayload(i);
+            payload.update(new BytesRef("marge"));
+            payload.update(new BytesRef("shard" + i));
+            final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+            counts.put(1, payload);
+            received[i] = new InternalDistinctFacet();
+            serializeAndDeserialize(new InternalDistinctFacet("bar", counts), received[i]);
+        }
+        // Sources are merged straight from their serialized form
+        final InternalDistinctFacet reduced = (InternalDistinctFacet) received[0].reduce(
+                Lists.<Facet> newArrayList(received[0], received[1], received[2]));
+        final Map<Long, Integer> expectedCounts = newHashMap();
+        expectedCounts.put(1l, 6);
+        final Map<Long, Integer> expectedCardinalities = newHashMap();
+        expectedCardinalities.put(1l, 4);
+        compareDistinctCounts(expectedCounts, expectedCardinalities,
+                new ExtTLongObjectHashMap<DistinctCountPayload>(reduced.peekCounts()));
+    }
+
+    @Test
+    public void testReducingDistinctFacetsInParallel() throws Exception {
+        final int periods = ParallelReduce.MIN_PERIODS * 2;
+        final InternalDistinctFacet[] facets = new InternalDistinctFacet[3];
+        for(int i = 0; i < facets.length; i++) {
+            final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+            for(int j = 0; j < periods; j++) {
+                final DistinctCountPayload payload = new DistinctCountPayload(i);
+                payload.update(new BytesRef("marge"));
+                payload.update(new BytesRef("shard" + i));
+                counts.put(j * 3600000l, payload);
+            }
+            facets[i] = new InternalDistinctFacet("bar", counts);
+            if(i > 0) {
+                // Mix serialized and in-memory sources
+                final InternalDistinctFacet received = new InternalDistinctFacet();
+                serializeAndDeserialize(facets[i], received);
+                facets[i] = received;
+            }
+        }
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final InternalDistinctFacet reduced = (InternalDistinctFacet) facets[0].reduce(
+                    Lists.<Facet> newArrayList(facets[0], facets[1], facets[2]), pool);
+            final Map<Long, Integer> expectedCounts = newHashMap();
+            final Map<Long, Integer> expectedCardinalities = newHashMap();
+            for(int j = 0; j < periods; j++) {
+                expectedCounts.put(j * 3600000l, 6);
+                expectedCardinalities.put(j * 3600000l, 4);
+            }
+            compareDistinctCounts(expectedCounts, expectedCardinalities,
+                    new ExtTLongObjectHashMap<DistinctCountPayload>(reduced.peekCounts()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReducingWithPoolOfLocalFacet() throws Exception {
+        final int periods = ParallelReduce.MIN_PERIODS * 2;
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final InternalDistinctFacet[] facets = new InternalDistinctFacet[3];
+            for(int i = 0; i < facets.length; i++) {
+                final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+                for(int j = 0; j < periods; j++) {
+                    final DistinctCountPayload payload = new DistinctCountPayload(i);
+                    payload.update(new BytesRef("marge"));
+                    counts.put(j * 3600000l, payload);
+                }
+                facets[i] = new InternalDistinctFacet("bar", counts);
+                facets[i].setReducePool(pool);
+                if(i != 1) {
+                    // Received facets lose the pool, so only the local one in the middle still has it
+                    final InternalDistinctFacet received = new InternalDistinctFacet();
+                    serializeAndDeserialize(facets[i], received);
+                    facets[i] = received;
+                }
+            }
+            // The pool only starts threads when it is first used
+            assertEquals(0, pool.getPoolSize());
+            final InternalDistinctFacet reduced = (InternalDistinctFacet) facets[0].reduce(
+                    Lists.<Facet> newArrayList(facets[0], facets[1], facets[2]));
+            assertTrue(pool.getPoolSize() > 0);
+            assertEquals(periods, reduced.peekCounts().size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadingDistinctFacetFromManyThreads() throws Exception {
+        final ExtTLongObjectHashMap<DistinctCountPayload> counts = CacheRecycler.popLongObjectMap();
+        for(int j = 0; j < 100; j++) {
+            final DistinctCountPayload payload = new DistinctCountPayload(1000);
+            payload.update(new BytesRef("marge"));
+            payload.update(new BytesRef("homer" + j));
+            counts.put(j * 3600000l, payload);
+        }
+        final InternalDistinctFacet received = new InternalDistinctFacet();
+        serializeAndDeserialize(new InternalDistinctFacet("bar", counts), received);
+
+        // Every reader should see the one published result, however the calls interleave
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<List<DistinctTimePeriod<NullEntry>>>> results = Lists.newArrayList();
+            for(int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<List<DistinctTimePeriod<NullEntry>>>() {
+                    @Override
+                    public List<DistinctTimePeriod<NullEntry>> call() throws Exception {
+                        start.await();
+                        assertEquals(200, received.getTotalCount());
+                        assertEquals(101, received.getDistinctCount());
+                        return received.getTimePeriods();
+                    }
+                }));
+            }
+            start.countDown();
+            final List<DistinctTimePeriod<NullEntry>> first = results.get(0).get();
+            assertEquals(100, first.size());
+            for(final Future<List<DistinctTimePeriod<NullEntry>>> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void testSerializingEmptySlicedDistinctFacet() throws Exception {
         final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts = CacheRecycler.popLongObjectMap();
@@ -233,6 +511,221 @@ public class SerializationTest {
         testSerializingSlicedFacet(counts);
     }
 
+    @Test
+    public void testReducingDeserializedSlicedFacets() throws Exception {
+        final InternalSlicedFacet[] received = new InternalSlicedFacet[2];
+        for(int i = 0; i < received.length; i++) {
+            final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+            for(long key = 1; key <= 2; key++) {
+                final TObjectIntHashMap<BytesRef> period = CacheRecycler.popObjectIntMap();
+                period.put(new BytesRef("itchy"), 1);
+                period.put(new BytesRef("shard" + i), 2);
+                counts.put(key, period);
+            }
+            received[i] = new InternalSlicedFacet();
+            serializeAndDeserialize(new InternalSlicedFacet("qux", counts), received[i]);
+        }
+        final InternalSlicedFacet reduced = (InternalSlicedFacet) received[0].reduce(
+                Lists.<Facet> newArrayList(received[0], received[1]));
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> reducedCounts = reduced.peekCounts();
+        assertEquals(2, reducedCounts.size());
+        BytesRef itchy = null;
+        for(final long key : reducedCounts.keys()) {
+            final TObjectIntHashMap<BytesRef> period = reducedCounts.get(key);
+            assertEquals(3, period.size());
+            assertEquals(2, period.get(new BytesRef("itchy")));
+            assertEquals(2, period.get(new BytesRef("shard0")));
+            assertEquals(2, period.get(new BytesRef("shard1")));
+            // Equal labels from all the shards share one instance
+            for(final BytesRef label : period.keySet()) {
+                if(label.utf8ToString().equals("itchy")) {
+                    if(itchy != null)
+                        assertSame(itchy, label);
+                    itchy = label;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReducingLargeSlicedFacets() throws Exception {
+        // Enough periods for the shard data to be compressed, so it's merged straight from the stream
+        final int periods = DateFacet.COMPRESSION_THRESHOLD / 6;
+        final InternalSlicedFacet[] received = new InternalSlicedFacet[3];
+        for(int i = 0; i < received.length; i++) {
+            final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+            for(long key = 0; key < periods; key++) {
+                final TObjectIntHashMap<BytesRef> period = CacheRecycler.popObjectIntMap();
+                period.put(new BytesRef("itchy"), 1);
+                period.put(new BytesRef("shard" + i), i + 1);
+                counts.put(key, period);
+            }
+            final InternalSlicedFacet shard = new InternalSlicedFacet("qux", counts);
+            if(i == 0) {
+                // Reduce into a facet which is still in memory
+                received[i] = shard;
+            } else {
+                received[i] = new InternalSlicedFacet();
+                serializeAndDeserialize(shard, received[i]);
+            }
+        }
+        final InternalSlicedFacet reduced = (InternalSlicedFacet) received[0].reduce(
+                Lists.<Facet> newArrayList(received[0], received[1], received[2]));
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> reducedCounts = reduced.peekCounts();
+        assertEquals(periods, reducedCounts.size());
+        for(final long key : reducedCounts.keys()) {
+            final TObjectIntHashMap<BytesRef> period = reducedCounts.get(key);
+            assertEquals(4, period.size());
+            assertEquals(3, period.get(new BytesRef("itchy")));
+            assertEquals(1, period.get(new BytesRef("shard0")));
+            assertEquals(2, period.get(new BytesRef("shard1")));
+            assertEquals(3, period.get(new BytesRef("shard2")));
+        }
+    }
+
+    @Test
+    public void testReducingTrimmedSlicedFacets() throws Exception {
+        final int[][] shardCounts = { { 5, 4, 1 }, { 1, 3, 2 } };
+        final String[] labels = { "a", "b", "c" };
+        final InternalSlicedFacet[] received = new InternalSlicedFacet[shardCounts.length];
+        for(int i = 0; i < received.length; i++) {
+            final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+            final TObjectIntHashMap<BytesRef> period = CacheRecycler.popObjectIntMap();
+            for(int j = 0; j < labels.length; j++) {
+                period.put(new BytesRef(labels[j]), shardCounts[i][j]);
+            }
+            counts.put(1, period);
+            final InternalSlicedFacet toSend = new InternalSlicedFacet("qux", counts);
+            // Each shard keeps its top 2, and the reduced facet keeps the top 1
+            toSend.trimSlices(1, 2);
+            received[i] = new InternalSlicedFacet();
+            serializeAndDeserialize(toSend, received[i]);
+        }
+        final InternalSlicedFacet reduced = (InternalSlicedFacet) received[0].reduce(
+                Lists.<Facet> newArrayList(received[0], received[1]));
+        final TimePeriod<XContentEnabledList<Slice<String>>> period = reduced.getTimePeriods().get(0);
+        assertEquals(16, period.getTotalCount());
+        assertEquals(1, period.getEntry().size());
+        assertEquals("b", period.getEntry().get(0).getLabel());
+        assertEquals(7, period.getEntry().get(0).getTotalCount());
+        assertEquals(9, ((SliceList<Slice<String>>) period.getEntry()).getOther().getTotalCount());
+    }
+
+    @Test
+    public void testShardSizeWithoutSizeKeepsAllSlices() throws Exception {
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+        final TObjectIntHashMap<BytesRef> period = CacheRecycler.popObjectIntMap();
+        period.put(new BytesRef("a"), 5);
+        period.put(new BytesRef("b"), 4);
+        period.put(new BytesRef("c"), 1);
+        counts.put(1, period);
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> expected = deepCopySliced(counts);
+        final InternalSlicedFacet toSend = new InternalSlicedFacet("qux", counts);
+        // With no size there's no other slice, so nothing may be trimmed
+        toSend.trimSlices(0, 2);
+        final InternalSlicedFacet received = new InternalSlicedFacet();
+        serializeAndDeserialize(toSend, received);
+        compareSlicedCounts(expected, new ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>>(received.peekCounts()));
+        assertEquals(10, received.getTimePeriods().get(0).getTotalCount());
+    }
+
+    @Test
+    public void testShardSizeWithoutSizeKeepsAllDistinctSlices() throws Exception {
+        final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> counts = CacheRecycler.popLongObjectMap();
+        final ExtTHashMap<BytesRef, DistinctCountPayload> period = CacheRecycler.popHashMap();
+        final Map<BytesRef, Integer> periodCounts = newHashMap();
+        final Map<BytesRef, Integer> periodCards = newHashMap();
+        final String[] labels = { "a", "b", "c" };
+        for(int i = 0; i < labels.length; i++) {
+            final DistinctCountPayload payload = new DistinctCountPayload(100);
+            for(int j = 0; j <= i; j++) {
+                payload.update(new BytesRef("value" + j));
+            }
+            period.put(new BytesRef(labels[i]), payload);
+            periodCounts.put(new BytesRef(labels[i]), i + 1);
+            periodCards.put(new BytesRef(labels[i]), i + 1);
+        }
+        counts.put(1, period);
+        final Map<Long, Map<BytesRef, Integer>> expectedCounts = newHashMap();
+        expectedCounts.put(1l, periodCounts);
+        final Map<Long, Map<BytesRef, Integer>> expectedCards = newHashMap();
+        expectedCards.put(1l, periodCards);
+        final InternalSlicedDistinctFacet toSend = new InternalSlicedDistinctFacet("baz", counts);
+        toSend.trimSlices(0, 2);
+        final InternalSlicedDistinctFacet received = new InternalSlicedDistinctFacet();
+        serializeAndDeserialize(toSend, received);
+        final ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>> receivedCounts =
+                new ExtTLongObjectHashMap<ExtTHashMap<BytesRef, DistinctCountPayload>>(received.peekCounts());
+        assertEquals(3, receivedCounts.get(1).size());
+        compareSlicedDistinctCounts(expectedCounts, expectedCards, receivedCounts);
+    }
+
+    @Test
+    public void testRenderingSlicedFacetStraightFromData() throws Exception {
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+        final String[] labels = { "a", "b", "c" };
+        for(long key = 2; key >= 1; key--) {
+            final TObjectIntHashMap<BytesRef> period = CacheRecycler.popObjectIntMap();
+            for(int j = 0; j < labels.length; j++) {
+                period.put(new BytesRef(labels[j]), (int) key * j + 1);
+            }
+            counts.put(key * 3600000, period);
+        }
+        final InternalSlicedFacet streamed = new InternalSlicedFacet("qux", deepCopySliced(counts));
+        final InternalSlicedFacet materialized = new InternalSlicedFacet("qux", deepCopySliced(counts));
+        streamed.trimSlices(2, 2);
+        materialized.trimSlices(2, 2);
+
+        final XContentBuilder actual = XContentFactory.jsonBuilder().startObject();
+        streamed.toXContent(actual, ToXContent.EMPTY_PARAMS);
+        actual.endObject();
+
+        // Should match the output of the period objects used by Java clients
+        final XContentBuilder expected = XContentFactory.jsonBuilder().startObject();
+        expected.startObject("qux").field("_type", InternalSlicedFacet.TYPE).field("count", 15);
+        expected.startArray("entries");
+        for(final TimePeriod<XContentEnabledList<Slice<String>>> period : materialized.getTimePeriods()) {
+            period.toXContent(expected, ToXContent.EMPTY_PARAMS);
+        }
+        expected.endArray().endObject().endObject();
+        assertEquals(expected.string(), actual.string());
+    }
+
+    @Test
+    public void testRenderingColumnarSlicedFacet() throws Exception {
+        final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts = CacheRecycler.popLongObjectMap();
+        final String[] labels = { "a", "b", "c" };
+        for(long key = 1; key <= 2; key++) {
+            final TObjectIntHashMap<BytesRef> period = CacheRecycler.popObjectIntMap();
+            for(int j = 0; j < labels.length; j++) {
+                period.put(new BytesRef(labels[j]), (int) key * j + 1);
+            }
+            counts.put(key * 3600000, period);
+        }
+        final InternalSlicedFacet toSend = new InternalSlicedFacet("qux", counts);
+        toSend.trimSlices(2, 2);
+        toSend.setColumnar(true);
+        final InternalSlicedFacet received = new InternalSlicedFacet();
+        serializeAndDeserialize(toSend, received);
+        assertTrue(received.isColumnar());
+
+        final XContentBuilder actual = XContentFactory.jsonBuilder().startObject();
+        received.toXContent(actual, ToXContent.EMPTY_PARAMS);
+        actual.endObject();
+        assertEquals("{\"qux\":{\"_type\":\"sliced_date_facet\",\"count\":15,"
+                + "\"times\":[3600000,7200000],\"counts\":[6,9],\"labels\":[\"c\",\"b\"],"
+                + "\"slices\":{\"offsets\":[0,2,4],\"labels\":[0,1,0,1],\"counts\":[3,2,5,3]},"
+                + "\"other\":{\"counts\":[1,1]}}}", actual.string());
+    }
+
+    @Test
+    public void testReducingNoMultiIntervalFacets() throws Exception {
+        final InternalMultiIntervalFacet facet = new InternalMultiIntervalFacet("foo", Lists.<DateFacet<?>> newArrayList());
+        final InternalMultiIntervalFacet reduced = (InternalMultiIntervalFacet) facet.reduce(Lists.<Facet> newArrayList());
+        assertEquals("foo", reduced.getName());
+        assertEquals(0, reduced.getIntervals().size());
+    }
+
     private void testSerializingSlicedFacet(final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> counts) throws Exception {
         final ExtTLongObjectHashMap<TObjectIntHashMap<BytesRef>> sentCounts =
                 deepCopySliced(counts);
@@ -3,10 +3,13 @@ package com.pearson.entech.elasticsearch.search.facet.approx.termlist;
 import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.TestUtils.generateRandomInts;
 import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.TestUtils.generateRandomLongs;
 import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.TestUtils.generateRandomWords;
+import static com.google.common.collect.Lists.newArrayList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import org.apache.lucene.util.BytesRef;
@@ -14,6 +17,8 @@ import org.apache.lucene.util.BytesRefHash;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.stream.BytesStreamInput;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.trove.set.hash.TLongHashSet;
+import org.elasticsearch.search.facet.Facet;
 import org.elasticsearch.search.facet.InternalFacet;
 import org.junit.Test;
 
@@ -79,6 +84,69 @@ public class SerializationTest {
         assertEquals(randomWords, entries);
     }
 
+    @Test
+    public void testReducingSortedFacets() throws Exception {
+        final String[][] shards = { { "pear", "apple", "fig" }, { "kiwi", "apple", "date" }, { "banana", "fig", "lime" } };
+        final List<Facet> facets = newArrayList();
+        for(final String[] shard : shards) {
+            final BytesRefHash hash = new BytesRefHash();
+            for(final String word : shard) {
+                hash.add(new BytesRef(word));
+            }
+            final InternalStringTermListFacet sent = new InternalStringTermListFacet("foo", hash, Constants.FIELD_DATA_TYPE.STRING, 4);
+            final InternalStringTermListFacet received = new InternalStringTermListFacet();
+            serializeAndDeserialize(sent, received);
+            facets.add(received);
+        }
+        final TermListFacet reduced = (TermListFacet) ((InternalStringTermListFacet) facets.get(0)).reduce(facets);
+        assertEquals(Arrays.asList("apple", "banana", "date", "fig"), reduced.getEntries());
+    }
+
+    @Test
+    public void testLongFacetSerialization() throws Exception {
+        final List<Long> randomLongs = generateRandomLongs(1000);
+        final TLongHashSet sentLongs = new TLongHashSet();
+        for(final Long value : randomLongs) {
+            sentLongs.add(value);
+        }
+
+        final InternalLongTermListFacet sentFacet = new InternalLongTermListFacet("foo", sentLongs);
+        final InternalLongTermListFacet receivedFacet = new InternalLongTermListFacet();
+        serializeAndDeserialize(sentFacet, receivedFacet);
+        assertEquals("foo", receivedFacet.getName());
+        final List<? extends String> entries = receivedFacet.getEntries();
+        assertEquals(new HashSet<Long>(randomLongs).size(), entries.size());
+        for(final String entry : entries) {
+            assertTrue(randomLongs.contains(Long.parseLong(entry)));
+        }
+    }
+
+    @Test
+    public void testReducingSortedLongFacets() throws Exception {
+        final long[][] shards = { { 5, Long.MIN_VALUE, 17 }, { -3, 5, Long.MAX_VALUE }, { 0, 17, 2 } };
+        final List<Facet> facets = newArrayList();
+        for(final long[] shard : shards) {
+            final InternalLongTermListFacet sent = new InternalLongTermListFacet("foo", new TLongHashSet(shard), 5);
+            final InternalLongTermListFacet received = new InternalLongTermListFacet();
+            serializeAndDeserialize(sent, received);
+            facets.add(received);
+        }
+        final TermListFacet reduced = (TermListFacet) ((InternalLongTermListFacet) facets.get(0)).reduce(facets);
+        assertEquals(Arrays.asList(Long.toString(Long.MIN_VALUE), "-3", "0", "2", "5"), reduced.getEntries());
+        assertEquals("5", reduced.getNext());
+    }
+
+    @Test
+    public void testSerializingSortedLongsWithHugeGaps() throws Exception {
+        // Adjacent values more than Long.MAX_VALUE apart
+        final long[] longs = { -5000000000000000000L, 5000000000000000000L, Long.MIN_VALUE, Long.MAX_VALUE, 0, 1 };
+        final InternalLongTermListFacet sent = new InternalLongTermListFacet("foo", new TLongHashSet(longs), 0);
+        final InternalLongTermListFacet received = new InternalLongTermListFacet();
+        serializeAndDeserialize(sent, received);
+        assertEquals(Arrays.asList(Long.toString(Long.MIN_VALUE), "-5000000000000000000", "0", "1",
+                "5000000000000000000", Long.toString(Long.MAX_VALUE)), received.getEntries());
+    }
+
     // TODO this is a direct copy from SerializationTest for date facets
     private <T extends InternalFacet> void serializeAndDeserialize(final T toSend, final T toReceive) throws Exception {
         final BytesStreamOutput bso = new BytesStreamOutput();
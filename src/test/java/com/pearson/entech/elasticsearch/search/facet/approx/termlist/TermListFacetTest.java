@@ -5,9 +5,12 @@ import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.Test
 import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.TestUtils.generateRandomInts;
 import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.TestUtils.generateRandomLongs;
 import static com.pearson.entech.elasticsearch.search.facet.approx.termlist.TestUtils.generateRandomWords;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -18,6 +21,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.elasticsearch.ElasticSearchException;
@@ -32,6 +36,7 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.search.facet.FacetBuilder;
 import org.junit.AfterClass;
@@ -129,6 +134,170 @@ public class TermListFacetTest {
         checkStringSearchResponse(response1, numOfDocs, uniqs.size(), words);
     }
 
+    @Test
+    public void testFilteringFixedVocabularyPostMode() throws Exception {
+        testFilteringFixedVocabulary(Constants.POST_MODE);
+    }
+
+    @Test
+    public void testFilteringFixedVocabularyCollectorMode() throws Exception {
+        testFilteringFixedVocabulary(Constants.COLLECTOR_MODE);
+    }
+
+    private void testFilteringFixedVocabulary(final String mode) throws Exception {
+        final String[] words = { "foo", "bar", "baz", "test", "alpha", "beta", "phi", "rho" };
+        for(final String word : words) {
+            putSync(newID(), word, word, 0, 0);
+        }
+
+        checkStringSearchResponse(getFilteredTermList(new TermListFacetBuilder(__facetName)
+                .prefix("b").exclude("beta"), mode), words.length, 2, Arrays.asList("bar", "baz"));
+        checkStringSearchResponse(getFilteredTermList(new TermListFacetBuilder(__facetName)
+                .regex(".h.*"), mode), words.length, 2, Arrays.asList("phi", "rho"));
+        checkStringSearchResponse(getFilteredTermList(new TermListFacetBuilder(__facetName)
+                .include("foo", "test", "missing"), mode), words.length, 2, Arrays.asList("foo", "test"));
+    }
+
+    @Test
+    public void testSortingFixedVocabularyPostMode() throws Exception {
+        testSortingFixedVocabulary(Constants.POST_MODE);
+    }
+
+    @Test
+    public void testSortingFixedVocabularyCollectorMode() throws Exception {
+        testSortingFixedVocabulary(Constants.COLLECTOR_MODE);
+    }
+
+    private void testSortingFixedVocabulary(final String mode) throws Exception {
+        final String[] words = { "foo", "bar", "baz", "test", "alpha", "beta", "phi", "rho" };
+        for(final String word : words) {
+            putSync(newID(), word, word, 0, 0);
+        }
+
+        final SearchResponse response = getFilteredTermList(new TermListFacetBuilder(__facetName).sort(true).size(4), mode);
+        final TermListFacet facet = response.getFacets().facet(__facetName);
+        assertEquals(Arrays.asList("alpha", "bar", "baz", "beta"), facet.getEntries());
+    }
+
+    @Test
+    public void testCappingFixedVocabularyCollectorMode() throws Exception {
+        final String[] words = { "foo", "bar", "baz", "test", "alpha", "beta", "phi", "rho" };
+        for(final String word : words) {
+            putSync(newID(), word, word, 0, 0);
+        }
+
+        // Each shard keeps at most 2 terms, whichever segment they were found in
+        final SearchResponse sampled = getFilteredTermList(new TermListFacetBuilder(__facetName)
+                .maxPerShard(2), Constants.COLLECTOR_MODE);
+        final TermListFacet sample = sampled.getFacets().facet(__facetName);
+        assertTrue(sample.getEntries().size() <= 6);
+        assertTrue(Arrays.asList(words).containsAll(sample.getEntries()));
+
+        // Sorted, each shard keeps its lowest 2 terms, so the first 2 overall are among them
+        final SearchResponse sorted = getFilteredTermList(new TermListFacetBuilder(__facetName)
+                .maxPerShard(2).sort(true).size(2), Constants.COLLECTOR_MODE);
+        final TermListFacet lowest = sorted.getFacets().facet(__facetName);
+        assertEquals(Arrays.asList("alpha", "bar"), lowest.getEntries());
+    }
+
+    @Test
+    public void testPagingFixedVocabularyPostMode() throws Exception {
+        testPagingFixedVocabulary(Constants.POST_MODE);
+    }
+
+    @Test
+    public void testPagingFixedVocabularyCollectorMode() throws Exception {
+        testPagingFixedVocabulary(Constants.COLLECTOR_MODE);
+    }
+
+    private void testPagingFixedVocabulary(final String mode) throws Exception {
+        final String[] words = { "foo", "bar", "baz", "test", "alpha", "beta", "phi", "rho" };
+        for(final String word : words) {
+            putSync(newID(), word, word, 0, 0);
+        }
+
+        final List<String> pages = newArrayList();
+        String after = null;
+        do {
+            final SearchResponse response = getFilteredTermList(new TermListFacetBuilder(__facetName)
+                    .sort(true).size(3).after(after), mode);
+            final TermListFacet facet = response.getFacets().facet(__facetName);
+            pages.addAll(facet.getEntries());
+            after = facet.getNext();
+        } while(after != null);
+        assertEquals(Arrays.asList("alpha", "bar", "baz", "beta", "foo", "phi", "rho", "test"), pages);
+
+        final SearchResponse response = getFilteredTermList(new TermListFacetBuilder(__facetName)
+                .prefix("b").sort(true).size(2).after("bar"), mode);
+        final TermListFacet facet = response.getFacets().facet(__facetName);
+        assertEquals(Arrays.asList("baz", "beta"), facet.getEntries());
+        assertEquals("beta", facet.getNext());
+    }
+
+    @Test
+    public void testPagingRandomVocabularyCollectorMode() throws Exception {
+        // Each doc is refreshed on its own, so the terms are spread over many segments
+        final List<String> words = generateRandomWords(60);
+        for(final String word : words) {
+            putSync(newID(), word, word, 0, 0);
+        }
+
+        final List<String> pages = newArrayList();
+        String after = null;
+        do {
+            final SearchResponse response = getFilteredTermList(new TermListFacetBuilder(__facetName)
+                    .maxPerShard(7).sort(true).size(7).after(after), Constants.COLLECTOR_MODE);
+            final TermListFacet facet = response.getFacets().facet(__facetName);
+            pages.addAll(facet.getEntries());
+            after = facet.getNext();
+        } while(after != null);
+        final List<String> expected = newArrayList(new TreeSet<String>(words));
+        assertEquals(expected, pages);
+    }
+
+    @Test
+    public void testPageSizeOverMaxPerShard() throws Exception {
+        putSync(newID(), "foo", "foo", 0, 0);
+        try {
+            getFilteredTermList(new TermListFacetBuilder(__facetName).maxPerShard(5).sort(true).size(10), Constants.COLLECTOR_MODE);
+            fail();
+        } catch(final SearchPhaseExecutionException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testPagingFixedLongsPostMode() throws Exception {
+        testPagingFixedLongs(Constants.POST_MODE);
+    }
+
+    @Test
+    public void testPagingFixedLongsCollectorMode() throws Exception {
+        testPagingFixedLongs(Constants.COLLECTOR_MODE);
+    }
+
+    private void testPagingFixedLongs(final String mode) throws Exception {
+        final long[] longs = { 300, -7, 123456789012L, 0, 42, -100000, 5 };
+        for(final long value : longs) {
+            putSync(newID(), "", "", 0, value);
+        }
+
+        final List<String> pages = newArrayList();
+        String after = null;
+        do {
+            final TermListFacetBuilder facet = new TermListFacetBuilder(__facetName).sort(true).size(3).after(after);
+            facet.keyField(__longField1).mode(FacetBuilder.Mode.valueOf(mode.toUpperCase()));
+            final SearchResponse response = client().prepareSearch(__index)
+                    .setSearchType(SearchType.COUNT)
+                    .addFacet(facet)
+                    .execute().actionGet();
+            final TermListFacet page = response.getFacets().facet(__facetName);
+            pages.addAll(page.getEntries());
+            after = page.getNext();
+        } while(after != null);
+        assertEquals(Arrays.asList("-100000", "-7", "0", "5", "42", "300", "123456789012"), pages);
+    }
+
     @Test
     public void testWithFixedIntegersPostMode() throws Exception {
         testWithFixedIntegers(Constants.POST_MODE);
@@ -218,6 +387,88 @@ public class TermListFacetTest {
         }
     }
 
+    @Test
+    public void testPostModeWithAndWithoutDeletions() throws Exception {
+        final String[] words = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot" };
+        // Both batches hold every word, so the second segment of each shard mostly holds terms
+        // already found in the first. Each word is in both "first" and "second" docs.
+        // "golf" is only in one doc, which is deleted below, and "hotel" is only in one doc which isn't.
+        final int golf = newID();
+        for(int batch = 0; batch < 2; batch++) {
+            for(int i = 0; i < 30; i++) {
+                addToBulk(newID(), words[i % words.length], (i / words.length) % 2 == 0 ? "first" : "second", 0, 0);
+            }
+            if(batch == 1) {
+                addToBulk(golf, "golf", "second", 0, 0);
+                addToBulk(newID(), "hotel", "second", 0, 0);
+            }
+            sendBulkAsSegment();
+        }
+
+        // With no deletions, every doc in every segment is a hit, so postings aren't read at all
+        final Set<String> expected = new TreeSet<String>(Arrays.asList(words));
+        expected.add("golf");
+        expected.add("hotel");
+        assertEquals(expected, listTerms(matchAllQuery(), new TermListFacetBuilder(__facetName), Constants.POST_MODE));
+        assertEquals(expected, listTerms(matchAllQuery(), new TermListFacetBuilder(__facetName), Constants.COLLECTOR_MODE));
+
+        // Only some docs are hits, so postings are read for terms not already found
+        final Set<String> first = new TreeSet<String>(Arrays.asList(words));
+        assertEquals(first, listTerms(termQuery(__txtField2, "first"), new TermListFacetBuilder(__facetName), Constants.POST_MODE));
+        assertEquals(first, listTerms(termQuery(__txtField2, "first"), new TermListFacetBuilder(__facetName), Constants.COLLECTOR_MODE));
+
+        // Every live doc is a hit, but the deleted doc's terms are still in its segment
+        client().prepareDelete(__index, __type, String.valueOf(golf)).setRouting(String.valueOf(golf)).execute().actionGet();
+        client().admin().indices().prepareRefresh(__index).execute().actionGet();
+        expected.remove("golf");
+        assertEquals(expected, listTerms(matchAllQuery(), new TermListFacetBuilder(__facetName), Constants.POST_MODE));
+        assertEquals(expected, listTerms(matchAllQuery(), new TermListFacetBuilder(__facetName), Constants.COLLECTOR_MODE));
+    }
+
+    @Test
+    public void testCollectingOrdinalsAcrossSegments() throws Exception {
+        // Each batch goes into a new segment on each shard, with an overlapping range of words,
+        // so the same ordinal stands for different words in different segments
+        final List<String> words = newArrayList();
+        for(int i = 0; i < 40; i++) {
+            words.add("word" + (char) ('a' + i / 26) + (char) ('a' + i % 26));
+        }
+        final Set<String> all = new TreeSet<String>();
+        final Set<String> even = new TreeSet<String>();
+        for(int batch = 0; batch < 4; batch++) {
+            for(int i = 0; i < 20; i++) {
+                final String word = words.get(batch * 6 + i);
+                addToBulk(newID(), word, i % 2 == 0 ? "even" : "odd", 0, 0);
+                all.add(word);
+                if(i % 2 == 0)
+                    even.add(word);
+            }
+            sendBulkAsSegment();
+        }
+
+        // With room for every term, the bitsets give exactly the terms of the matching docs
+        for(final String mode : new String[] { Constants.COLLECTOR_MODE, Constants.POST_MODE }) {
+            assertEquals(all, listTerms(matchAllQuery(), new TermListFacetBuilder(__facetName).maxPerShard(100), mode));
+            assertEquals(even, listTerms(termQuery(__txtField2, "even"), new TermListFacetBuilder(__facetName).maxPerShard(100), mode));
+        }
+
+        // Each shard keeps at most 5 of its terms
+        final Set<String> capped = listTerms(matchAllQuery(),
+                new TermListFacetBuilder(__facetName).maxPerShard(5), Constants.COLLECTOR_MODE);
+        assertTrue(capped.size() >= 5 && capped.size() <= 15);
+        assertTrue(all.containsAll(capped));
+
+        // Sorted, each shard keeps its lowest 5 terms, so the lowest 5 overall are among them
+        final TermListFacetBuilder sorted = new TermListFacetBuilder(__facetName).maxPerShard(5).sort(true).size(5);
+        sorted.keyField(__txtField1).mode(FacetBuilder.Mode.COLLECTOR);
+        final SearchResponse response = client().prepareSearch(__index)
+                .setSearchType(SearchType.COUNT)
+                .addFacet(sorted)
+                .execute().actionGet();
+        final TermListFacet lowest = response.getFacets().facet(__facetName);
+        assertEquals(newArrayList(all).subList(0, 5), lowest.getEntries());
+    }
+
     // Helper methods
 
     private void testWithFixedIntegers(final String mode) throws Exception {
@@ -432,6 +683,14 @@ public class TermListFacetTest {
                 .execute().actionGet();
     }
 
+    private SearchResponse getFilteredTermList(final TermListFacetBuilder facet, final String mode) {
+        facet.keyField(__txtField1).mode(FacetBuilder.Mode.valueOf(mode.toUpperCase()));
+        return client().prepareSearch(__index)
+                .setSearchType(SearchType.COUNT)
+                .addFacet(facet)
+                .execute().actionGet();
+    }
+
     private SearchResponse getTermList(final String jsonFilename) throws FileNotFoundException {
         return client().prepareSearch(__index)
                 .setSource(new Scanner(new File(jsonFilename)).useDelimiter("\\Z").next())
@@ -439,6 +698,17 @@ public class TermListFacetTest {
                 .actionGet();
     }
 
+    private Set<String> listTerms(final QueryBuilder query, final TermListFacetBuilder facet, final String mode) {
+        facet.keyField(__txtField1).mode(FacetBuilder.Mode.valueOf(mode.toUpperCase()));
+        final SearchResponse response = client().prepareSearch(__index)
+                .setSearchType(SearchType.COUNT)
+                .setQuery(query)
+                .addFacet(facet)
+                .execute().actionGet();
+        final TermListFacet termList = response.getFacets().facet(__facetName);
+        return new TreeSet<String>(termList.getEntries());
+    }
+
     private void putSync(final int id, final String value1, final String value2,
             final int iValue1, final long lValue)
             throws ElasticSearchException,
@@ -481,6 +751,18 @@ public class TermListFacetTest {
         bulk.execute().actionGet();
     }
 
+    /**
+     * Send the buffered docs in a single bulk request and refresh, so each shard gets them in a new segment.
+     */
+    private void sendBulkAsSegment() {
+        final BulkRequestBuilder bulk = client().prepareBulk();
+        for(final IndexRequest req : _bulkBuffer) {
+            bulk.add(req);
+        }
+        _bulkBuffer.clear();
+        bulk.setRefresh(true).execute().actionGet();
+    }
+
     private void checkStringSearchResponse(final SearchResponse sr, final int numOfDocs, final int numOfElements, final List<String> words) {
 
         assertEquals(numOfDocs, sr.getHits().getTotalHits());